@@ -0,0 +1,83 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@link Server#deleteAccount(String)} for an offline user that is a
+ * member of some groups. Every iteration deletes a fresh batch of users from
+ * a registry of the given size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = DeleteAccountBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = DeleteAccountBenchmark.BATCH)
+@Fork(1)
+public class DeleteAccountBenchmark {
+    /**
+     * Number of users deleted per iteration
+     */
+    static final int BATCH = 1000;
+
+    /**
+     * Number of user accounts besides those deleted
+     */
+    @Param({"1000", "100000"})
+    int registrySize;
+
+    /**
+     * Number of groups each deleted user is a member of
+     */
+    @Param({"0", "10"})
+    int memberships;
+
+    private Server server;
+    private String[] groups;
+    private String[] victims;
+    private int next, iteration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        server = new Server();
+        String[] users = Fixtures.users(server, "user", registrySize);
+        groups = new String[memberships];
+        for (int i = 0; i < memberships; i++) {
+            groups[i] = "group" + i;
+            Fixtures.group(server, groups[i], users);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void addVictims() throws RemoteException {
+        victims = Fixtures.users(server, "victim" + iteration++ + "-", BATCH);
+        for (String group : groups)
+            for (String victim : victims)
+                server.addGroupMember(group, victim);
+        next = 0;
+    }
+
+    @Benchmark
+    public int deleteAccount() {
+        return server.deleteAccount(victims[next++]);
+    }
+}
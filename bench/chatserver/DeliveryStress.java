@@ -0,0 +1,218 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stress test of message delivery: checks that no message is lost or
+ * delivered twice while clients log in and out and messages are sent to
+ * them and to a group of all of them, from many threads at once. Run as
+ * <pre>
+ *     java -cp build/bench.jar:build/api.jar:build/server.jar:build/client.jar chatserver.DeliveryStress
+ *         [users] [senders] [messages per sender] [churners] [failure percent]
+ * </pre>
+ *
+ * Each client fails the given percentage of deliveries with a
+ * RemoteException, as if the connection had dropped, until all sends are
+ * done: half of them before the client has seen the messages, half after,
+ * as if only the reply had been lost. Then every user logs in once more, and the test waits for the
+ * mailboxes to drain to the clients, which happens in the background. It
+ * exits with status 1 if a message did not arrive, arrived twice, or was
+ * delivered under the sequence number of another message.
+ */
+public class DeliveryStress {
+    /**
+     * Time to wait for all messages to arrive after the last login, in milliseconds
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Stand-in for a client, which keeps its state across logins like
+     * chatclient.Client: it skips messages with sequence numbers it has
+     * already seen, and counts every message it accepts.
+     */
+    static class StressClient implements ClientCallback {
+        /**
+         * Number of times each message was accepted, by message
+         */
+        final ConcurrentHashMap<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+
+        /**
+         * The message accepted under each sequence number of the current epoch
+         */
+        private final ConcurrentHashMap<Long, String> sequenced = new ConcurrentHashMap<Long, String>();
+
+        private long epoch;
+        private long lastSequence;
+
+        private final int failurePercent;
+        private final AtomicBoolean flaky;
+        private final LongAdder failures;
+        private final LongAdder conflicts;
+
+        /**
+         * @param	 failurePercent	 percentage of deliveries to fail while flaky is set
+         * @param	 flaky	 whether deliveries may fail
+         * @param	 failures	 counts the deliveries failed
+         * @param	 conflicts	 counts the sequence numbers that were reused for another message
+         */
+        StressClient(int failurePercent, AtomicBoolean flaky, LongAdder failures, LongAdder conflicts) {
+            this.failurePercent = failurePercent;
+            this.flaky = flaky;
+            this.failures = failures;
+            this.conflicts = conflicts;
+        }
+
+        @Override
+        public void receiveMessage(String message) throws RemoteException {
+            receiveMessages(List.of(message));
+        }
+
+        @Override
+        public void receiveMessages(List<String> messages) throws RemoteException {
+            fail();
+            for (String message : messages)
+                accept(message);
+        }
+
+        @Override
+        public synchronized long receiveSequenced(long epoch, long firstSequence, List<String> messages) throws RemoteException {
+            boolean lostReply = ThreadLocalRandom.current().nextBoolean();
+            if (!lostReply)
+                fail();
+            if (epoch != this.epoch) {
+                this.epoch = epoch;
+                lastSequence = firstSequence - 1;
+                sequenced.clear();
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                String earlier = sequenced.putIfAbsent(firstSequence + i, messages.get(i));
+                if (earlier != null && !earlier.equals(messages.get(i)))
+                    conflicts.increment();
+                if (firstSequence + i > lastSequence) {
+                    accept(messages.get(i));
+                    lastSequence = firstSequence + i;
+                }
+            }
+            if (lostReply)
+                fail();
+            return lastSequence;
+        }
+
+        private void fail() throws RemoteException {
+            if (flaky.get() && ThreadLocalRandom.current().nextInt(100) < failurePercent) {
+                failures.increment();
+                throw new RemoteException("Connection dropped");
+            }
+        }
+
+        private void accept(String message) {
+            received.computeIfAbsent(message, m -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int churners = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int failurePercent = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        Server server = new Server();
+        AtomicBoolean flaky = new AtomicBoolean(true);
+        LongAdder failures = new LongAdder(), conflicts = new LongAdder();
+        String[] names = Fixtures.users(server, "user", users);
+        StressClient[] clients = new StressClient[users];
+        for (int i = 0; i < users; i++)
+            clients[i] = new StressClient(failurePercent, flaky, failures, conflicts);
+        Fixtures.group(server, "group", names);
+
+        // Every tenth message goes to the group, the others to one user each
+        ExecutorService threads = Executors.newFixedThreadPool(senders + churners);
+        List<Future<?>> running = new ArrayList<Future<?>>();
+        AtomicInteger sent = new AtomicInteger();
+        for (int t = 0; t < senders; t++) {
+            running.add(threads.submit(() -> {
+                for (int k = 0; k < messages; k++) {
+                    int n = sent.getAndIncrement();
+                    if (n % 10 == 0)
+                        server.sendMessage("group", "message" + n);
+                    else
+                        server.sendMessage(names[n % users], "message" + n);
+                }
+                return null;
+            }));
+        }
+        for (int t = 0; t < churners; t++) {
+            Random random = new Random(t);
+            running.add(threads.submit(() -> {
+                for (int k = 0; k < messages; k++) {
+                    int i = random.nextInt(users);
+                    if (random.nextBoolean())
+                        server.login(names[i], clients[i]);
+                    else
+                        server.logout(names[i]);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : running)
+            task.get();
+        threads.shutdown();
+
+        flaky.set(false);
+        for (int i = 0; i < users; i++)
+            server.login(names[i], clients[i]);
+        int total = sent.get();
+        long toGroup = (total + 9) / 10;
+        long expected = toGroup * users + total - toGroup;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (received(clients) < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        long lost = 0, duplicated = 0;
+        for (int n = 0; n < total; n++) {
+            String message = "message" + n;
+            for (int i = 0; i < users; i++) {
+                if (n % 10 != 0 && n % users != i)
+                    continue;
+                AtomicInteger count = clients[i].received.get(message);
+                if (count == null)
+                    lost++;
+                else if (count.get() > 1)
+                    duplicated += count.get() - 1;
+            }
+        }
+        System.out.println("sent " + total + " messages, " + expected + " deliveries, " + failures.sum()
+            + " deliveries failed: " + lost + " lost, " + duplicated + " duplicated, "
+            + conflicts.sum() + " sequence numbers reused");
+        System.exit(lost == 0 && duplicated == 0 && conflicts.sum() == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return number of distinct messages the clients have accepted
+     */
+    private static long received(StressClient[] clients) {
+        long received = 0;
+        for (StressClient client : clients)
+            received += client.received.size();
+        return received;
+    }
+}
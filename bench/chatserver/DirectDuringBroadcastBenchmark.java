@@ -0,0 +1,182 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of a direct message, from sending it until its recipient's client
+ * has it, with and without a broadcast storm: a background thread that
+ * keeps broadcasting to a large group, all of whose members are logged in,
+ * so that the delivery workers always have the group's drains queued. The
+ * members' clients take a while to receive each batch, as a stand-in for the
+ * round trip to a remote client. The storm waits for most of each broadcast
+ * to be delivered before it sends the next, so that no Outbox overflows. The
+ * server's delivery.*.wait metrics are printed after the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectDuringBroadcastBenchmark {
+    /**
+     * Whether a broadcast storm runs during the benchmark
+     */
+    @Param({"false", "true"})
+    boolean storm;
+
+    /**
+     * Number of members of the group broadcast to
+     */
+    @Param({"10000"})
+    int groupSize;
+
+    /**
+     * Time each member's client takes to receive a batch, in microseconds
+     */
+    @Param({"100"})
+    int deliveryMicros;
+
+    /**
+     * Callback counting messages in a counter shared by several clients.
+     */
+    static class SharedCounterClient implements ClientCallback {
+        private final LongAdder received;
+        private final long delayNanos;
+
+        SharedCounterClient(LongAdder received, long delayNanos) {
+            this.received = received;
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        public void receiveMessage(String message) {
+            LockSupport.parkNanos(delayNanos);
+            received.increment();
+        }
+
+        @Override
+        public long receiveSequenced(long epoch, long firstSequence, List<String> messages) {
+            LockSupport.parkNanos(delayNanos);
+            received.add(messages.size());
+            return firstSequence + messages.size() - 1;
+        }
+    }
+
+    /**
+     * Callback of the recipient of the direct messages, which the benchmark
+     * thread waits on.
+     */
+    static class RecipientClient implements ClientCallback {
+        volatile long received;
+
+        @Override
+        public synchronized void receiveMessage(String message) {
+            received++;
+        }
+
+        @Override
+        public synchronized long receiveSequenced(long epoch, long firstSequence, List<String> messages) {
+            received += messages.size();
+            return firstSequence + messages.size() - 1;
+        }
+    }
+
+    private Server server;
+    private String[] members;
+    private final LongAdder broadcastReceived = new LongAdder();
+    private final RecipientClient recipient = new RecipientClient();
+    private volatile boolean running;
+    private Thread stormThread;
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        server = new Server();
+        members = Fixtures.users(server, "member", groupSize);
+        login();
+        Fixtures.group(server, "group", members);
+        server.addAccount("recipient");
+        server.login("recipient", recipient);
+        if (!storm)
+            return;
+        running = true;
+        stormThread = new Thread(this::broadcastStorm, "storm");
+        stormThread.setDaemon(true);
+        stormThread.start();
+    }
+
+    /**
+     * Logs in again any member whose Outbox overflowed into a mailbox.
+     */
+    @TearDown(Level.Iteration)
+    public void reset() {
+        login();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        if (stormThread != null)
+            stormThread.join();
+        server.getMetrics().values.forEach((name, value) -> {
+            if (name.startsWith("delivery."))
+                System.out.println(name + " " + value);
+        });
+    }
+
+    @Benchmark
+    public long direct() {
+        long before = recipient.received;
+        server.sendMessage("recipient", "x");
+        long after;
+        while ((after = recipient.received) == before)
+            Thread.onSpinWait();
+        return after;
+    }
+
+    private void login() {
+        for (String member : members)
+            server.login(member, new SharedCounterClient(broadcastReceived, deliveryMicros * 1000L));
+    }
+
+    /**
+     * Keeps broadcasting to the group, with at most about one and a half
+     * broadcasts undelivered at a time.
+     */
+    private void broadcastStorm() {
+        long sent = 0;
+        while (running) {
+            if (sent - broadcastReceived.sum() > groupSize / 2) {
+                Thread.onSpinWait();
+                continue;
+            }
+            sent += server.broadcastMessage("group", "storm").online;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chatclient.ClientCallback;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to fan a message out to the members of a group, all of them logged
+ * in, through {@link Server.Group#receiveMessage(String)} as for a message
+ * sent to the group, and through {@link Server#broadcastMessage(String, String)}
+ * with its summary. Both only queue the message in the members' Outboxes.
+ *
+ * broadcastDelivered() also waits until every member has received the
+ * message, so its score is the time until the last one has. Each member's
+ * client records when it received the message, and the distribution of
+ * these times over the members, from the start of the broadcast, is printed
+ * after every iteration as fanout.delivered.p50Micros, .p99Micros and
+ * .maxMicros.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    /**
+     * Number of members of the group
+     */
+    @Param({"10", "1000", "10000"})
+    int groupSize;
+
+    /**
+     * Number of characters per message
+     */
+    @Param({"16", "1024"})
+    int messageSize;
+
+    /**
+     * Stand-in for a member's client, which acknowledges every message
+     * immediately and records when it last received one.
+     */
+    static class StampingClient implements ClientCallback {
+        /**
+         * Number of messages received
+         */
+        volatile long received;
+
+        /**
+         * Value of System.nanoTime() when the last message was received
+         */
+        volatile long receivedAt;
+
+        @Override
+        public synchronized void receiveMessage(String message) {
+            receivedAt = System.nanoTime();
+            received++;
+        }
+
+        @Override
+        public synchronized long receiveSequenced(long epoch, long firstSequence, List<String> messages) {
+            receivedAt = System.nanoTime();
+            received += messages.size();
+            return firstSequence + messages.size() - 1;
+        }
+    }
+
+    private Server server;
+    private String[] members;
+    private StampingClient[] clients;
+    private String message;
+
+    /**
+     * Time from the start of a broadcast until each member received it, in nanoseconds
+     */
+    private Histogram delivered;
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        server = new Server();
+        members = Fixtures.users(server, "member", groupSize);
+        Fixtures.group(server, "group", members);
+        message = Fixtures.message(messageSize);
+    }
+
+    /**
+     * Logs in every member with a new client, replacing any whose Outbox
+     * overflowed into a mailbox during the last iteration.
+     */
+    @Setup(Level.Iteration)
+    public void login() {
+        clients = new StampingClient[members.length];
+        for (int i = 0; i < members.length; i++) {
+            clients[i] = new StampingClient();
+            server.login(members[i], clients[i]);
+        }
+        delivered = new Histogram();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        delivered.addTo(values, "fanout.delivered", "Micros", 1000);
+        // Only broadcastDelivered() waits for the members
+        if (values.get("fanout.delivered.count") > 0)
+            values.forEach((name, value) -> System.out.println(name + " " + value));
+    }
+
+    @Benchmark
+    public void sendToGroup() throws RemoteException {
+        server.sendMessage("group", message);
+    }
+
+    @Benchmark
+    public FanoutSummary broadcast() {
+        return server.broadcastMessage("group", message);
+    }
+
+    @Benchmark
+    public long broadcastDelivered() {
+        long expected = clients[0].received + 1;
+        long start = System.nanoTime();
+        server.broadcastMessage("group", message);
+        long last = start;
+        for (StampingClient client : clients) {
+            while (client.received < expected)
+                Thread.onSpinWait();
+            delivered.record(client.receivedAt - start);
+            last = Math.max(last, client.receivedAt);
+        }
+        return last - start;
+    }
+}
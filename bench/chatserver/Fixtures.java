@@ -0,0 +1,96 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helpers to populate a {@link Server} for the benchmarks, in process and
+ * without an RMI registry.
+ */
+class Fixtures {
+    /**
+     * In-process stand-in for a client's callback. It accepts and acknowledges
+     * every message immediately, and counts them.
+     */
+    static class NullClient implements ClientCallback {
+        final LongAdder received = new LongAdder();
+
+        @Override
+        public void receiveMessage(String message) {
+            received.increment();
+        }
+
+        @Override
+        public void receiveMessages(List<String> messages) {
+            received.add(messages.size());
+        }
+
+        @Override
+        public long receiveSequenced(long epoch, long firstSequence, List<String> messages) {
+            received.add(messages.size());
+            return firstSequence + messages.size() - 1;
+        }
+    }
+
+    /**
+     * @param	 size	 number of characters
+     * @return a message of the given size
+     */
+    static String message(int size) {
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        return new String(text);
+    }
+
+    /**
+     * Adds user accounts named prefix0, prefix1, ...
+     *
+     * @param	 server	 the server to add the accounts to
+     * @param	 prefix	 prefix of the account names
+     * @param	 count	 number of accounts
+     * @return the names of the accounts
+     */
+    static String[] users(Server server, String prefix, int count) throws RemoteException {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = prefix + i;
+            server.addAccount(names[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Logs in a {@link NullClient} for each of the accounts, replacing any
+     * client logged in before.
+     *
+     * @param	 server	 the server to log in to
+     * @param	 names	 names of the accounts
+     */
+    static void login(Server server, String[] names) {
+        for (String name : names)
+            server.login(name, new NullClient());
+    }
+
+    /**
+     * Adds a group with the given members.
+     *
+     * @param	 server	 the server to add the group to
+     * @param	 group	 name of the group
+     * @param	 members	 names of the members
+     */
+    static void group(Server server, String group, String[] members) throws RemoteException {
+        server.addGroup(group);
+        for (String member : members)
+            server.addGroupMember(group, member);
+    }
+}
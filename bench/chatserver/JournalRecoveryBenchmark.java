@@ -0,0 +1,130 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Startup time of a server recovering its state from the journal: the
+ * accounts, their groups and the messages queued in their mailboxes. The
+ * journal is written once per trial, as a server would: the accounts, each
+ * a member of one group, then the messages, round robin over the accounts,
+ * then the deletion of some of the accounts.
+ *
+ * recover() opens the journal as written with the default snapshot
+ * interval, i.e. a snapshot plus the segments written after it, replayLog()
+ * with every record in the log, so that all of it is replayed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class JournalRecoveryBenchmark {
+    /**
+     * Number of user accounts
+     */
+    @Param({"1000000"})
+    int accounts;
+
+    /**
+     * Number of messages queued in all mailboxes together
+     */
+    @Param({"10000000"})
+    int messages;
+
+    /**
+     * Number of groups the accounts are spread over
+     */
+    @Param({"1000"})
+    int groups;
+
+    /**
+     * Number of accounts deleted after the messages were queued
+     */
+    @Param({"10000"})
+    int deleted;
+
+    /**
+     * Size of each message in characters
+     */
+    @Param({"32"})
+    int messageSize;
+
+    private File dir;
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("journal-bench").toFile();
+        Journal journal = Journal.open(dir);
+        for (int g = 0; g < groups; g++)
+            journal.addGroup("group" + g);
+        for (int i = 0; i < accounts; i++) {
+            journal.addAccount("user" + i);
+            journal.addMember("group" + i % groups, "user" + i);
+        }
+        byte[] message = Fixtures.message(messageSize).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < messages; i++)
+            journal.enqueue("user" + i % accounts, message);
+        for (int i = 0; i < deleted; i++)
+            journal.delete("user" + (long)i * accounts / deleted);
+        journal.sync();
+        journal.awaitCompaction();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        server.mailStore.close();
+        server = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+    public Server recover() throws IOException {
+        return open();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dchatserver.journal.snapshotRecords=1000000000"})
+    public Server replayLog() throws IOException {
+        return open();
+    }
+
+    private Server open() throws IOException {
+        server = new Server(Journal.open(dir));
+        return server;
+    }
+}
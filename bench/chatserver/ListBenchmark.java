@@ -0,0 +1,71 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to list the user accounts matching a query, all at once through
+ * {@link Server#listAccounts(String)} and as the first page through
+ * {@link Server#listAccountsPage(String, String, int)}. The queries list all
+ * accounts, those with a literal prefix, which come from the index alone, and
+ * those matching a suffix, which have to be matched one by one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListBenchmark {
+    /**
+     * Number of user accounts, with as many groups again
+     */
+    @Param({"1000", "100000"})
+    int registrySize;
+
+    /**
+     * Regular expression the account names are matched against
+     */
+    @Param({".*", "user1.*", ".*7"})
+    String query;
+
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        server = new Server();
+        Fixtures.users(server, "user", registrySize);
+        for (int i = 0; i < registrySize; i++)
+            server.addGroup("group" + i);
+    }
+
+    @Benchmark
+    public List<String> list() throws RemoteException {
+        return server.listAccounts(query);
+    }
+
+    @Benchmark
+    public ListPage firstPage() throws RemoteException {
+        return server.listAccountsPage(query, null, 100);
+    }
+}
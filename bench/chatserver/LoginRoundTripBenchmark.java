@@ -0,0 +1,97 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import chatclient.NioChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time for a new user to log in over the framed TCP front end on the loopback
+ * interface: in a single round-trip with
+ * {@link ChatServer#loginOrCreate(String, chatclient.ClientCallback)}, or in
+ * three with checkForAccount, addAccount and login as clients did before.
+ *
+ * On the loopback interface a round-trip costs next to nothing, so the
+ * stub is wrapped in a proxy that waits for rttMillis before every call, as
+ * a stand-in for the network between a client and the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginRoundTripBenchmark {
+    /**
+     * Round-trip time added to every call, in milliseconds
+     */
+    @Param({"0", "1", "50"})
+    int rttMillis;
+
+    private ChatServer server;
+    private int count;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        NioServer nio = new NioServer(new Server(), 0);
+        nio.start();
+        server = delayed(new NioChatServer("localhost", nio.getPort()), TimeUnit.MILLISECONDS.toNanos(rttMillis));
+    }
+
+    /**
+     * Wraps a server stub so that every call waits for the given time before
+     * it is made.
+     *
+     * @param	 server	 the stub
+     * @param	 delayNanos	 time to wait before every call, in nanoseconds
+     * @return the wrapped stub
+     */
+    static ChatServer delayed(ChatServer server, long delayNanos) {
+        if (delayNanos == 0)
+            return server;
+        return (ChatServer)Proxy.newProxyInstance(ChatServer.class.getClassLoader(), new Class<?>[] {ChatServer.class},
+            (proxy, method, args) -> {
+                LockSupport.parkNanos(delayNanos);
+                try {
+                    return method.invoke(server, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    @Benchmark
+    public LoginResult loginOrCreate() throws RemoteException {
+        return server.loginOrCreate("single" + count++, new Fixtures.NullClient());
+    }
+
+    @Benchmark
+    public void checkAddLogin() throws RemoteException {
+        String name = "triple" + count++;
+        if (!server.checkForAccount(name))
+            server.addAccount(name);
+        server.login(name, new Fixtures.NullClient());
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for a user to log in when its {@link Server.Mailbox} holds the given
+ * number of messages, and for the client to have received all of them. The
+ * login returns once the mailbox is handed to the client's {@link Outbox},
+ * which streams the messages in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class MailboxDrainBenchmark {
+    /**
+     * Number of messages in the mailbox
+     */
+    @Param({"100", "10000"})
+    int depth;
+
+    /**
+     * Number of characters per message
+     */
+    @Param({"16", "1024"})
+    int messageSize;
+
+    private Server server;
+    private String message;
+    private String name;
+    private int count;
+
+    /**
+     * Number of messages the mailbox actually holds, after its quota
+     */
+    private long queued;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = new Server();
+        message = Fixtures.message(messageSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws RemoteException {
+        name = "user" + count++;
+        server.addAccount(name);
+        for (int i = 0; i < depth; i++)
+            server.sendMessage(name, message);
+        queued = server.getMetrics().values.get("mailbox.queued");
+    }
+
+    @TearDown(Level.Invocation)
+    public void delete() {
+        server.deleteAccount(name);
+    }
+
+    @Benchmark
+    public Fixtures.NullClient login() {
+        Fixtures.NullClient client = new Fixtures.NullClient();
+        server.login(name, client);
+        return client;
+    }
+
+    @Benchmark
+    public Fixtures.NullClient loginAndDrain() {
+        Fixtures.NullClient client = new Fixtures.NullClient();
+        server.login(name, client);
+        // Yields rather than spins, leaving the CPU to the delivery workers on small machines
+        while (client.received.sum() < queued)
+            Thread.yield();
+        return client;
+    }
+}
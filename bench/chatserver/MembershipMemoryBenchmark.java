@@ -0,0 +1,134 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory footprint of a large registry: the heap the server retains for the
+ * given numbers of offline users and of groups, each group with members
+ * picked at random among the users. It is printed once the registry is
+ * populated, in two parts: the accounts, with their mailboxes and index
+ * entries, per account, and then the groups and their memberships, per
+ * membership, which is what the representation of the members decides. The
+ * names of the users are allocated beforehand and not counted.
+ *
+ * The benchmark itself times a broadcast to one of the groups, whose
+ * members are logged in, i.e. iterating a group's members in a registry of
+ * that size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MembershipMemoryBenchmark {
+    /**
+     * Number of user accounts
+     */
+    @Param({"1000000"})
+    int accounts;
+
+    /**
+     * Number of groups
+     */
+    @Param({"10000"})
+    int groups;
+
+    /**
+     * Number of members of each group
+     */
+    @Param({"10", "100"})
+    int groupSize;
+
+    private Server server;
+
+    /**
+     * Names of the users, kept so that they stay reachable, and out of the
+     * difference, until the last measurement
+     */
+    private String[] users;
+
+    private String[] members;
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        users = new String[accounts];
+        for (int i = 0; i < accounts; i++)
+            users[i] = "user" + i;
+        Random random = new Random(262);
+        long before = retainedHeap();
+        server = new Server();
+        for (String user : users)
+            server.addAccount(user);
+        long accountsOnly = retainedHeap();
+        for (int i = 0; i < groups; i++) {
+            String[] picked = new String[groupSize];
+            for (int j = 0; j < groupSize; j++)
+                picked[j] = users[random.nextInt(accounts)];
+            Fixtures.group(server, "group" + i, picked);
+            if (i == 0)
+                members = picked;
+        }
+        long memberships = retainedHeap() - accountsOnly;
+        System.out.println("retained heap of accounts: " + (accountsOnly - before) + " bytes, " +
+            (accountsOnly - before) / accounts + " bytes per account");
+        System.out.println("retained heap of groups: " + memberships + " bytes, " +
+            memberships / ((long)groups * groupSize) + " bytes per membership");
+        Fixtures.login(server, members);
+    }
+
+    /**
+     * Logs in again any member whose Outbox overflowed into a mailbox.
+     */
+    @TearDown(Level.Iteration)
+    public void reset() {
+        Fixtures.login(server, members);
+    }
+
+    @Benchmark
+    public FanoutSummary broadcast() {
+        return server.broadcastMessage("group0", "x");
+    }
+
+    /**
+     * @return bytes of heap in use after collecting garbage
+     */
+    private static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A collection right after populating the registry may not free everything yet, and
+        // stopping as soon as one frees nothing more left megabytes of noise in the difference
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
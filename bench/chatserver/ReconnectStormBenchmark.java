@@ -0,0 +1,160 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time to full recovery from a reconnect storm: all users, each with
+ * messages waiting in its mailbox, log in at once, and the time is taken
+ * until every client has received all of its messages. Logins the server
+ * throttles are retried after the delay it suggests. The clients take a
+ * while to receive each batch, as a stand-in for the round trip to a remote
+ * client.
+ *
+ * unbounded() replays all mailboxes at once, bounded() with a
+ * {@link ReplayPool} of 64 slots and 1000 waiting places. The server's
+ * logins.throttled and replay.* metrics are printed after the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ReconnectStormBenchmark {
+    /**
+     * Number of users reconnecting
+     */
+    @Param({"10000"})
+    int users;
+
+    /**
+     * Number of messages in each user's mailbox
+     */
+    @Param({"10"})
+    int backlog;
+
+    /**
+     * Number of threads the users log in from
+     */
+    @Param({"64"})
+    int threads;
+
+    /**
+     * Time each client takes to receive a batch, in microseconds
+     */
+    @Param({"100"})
+    int deliveryMicros;
+
+    private Server server;
+    private String[] names;
+    private final LongAdder received = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        server = new Server();
+        names = Fixtures.users(server, "user", users);
+    }
+
+    /**
+     * Logs all users out and fills their mailboxes.
+     */
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (String name : names) {
+            server.logout(name);
+            for (int i = 0; i < backlog; i++)
+                server.sendMessage(name, "backlog");
+        }
+        received.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.getMetrics().values.forEach((name, value) -> {
+            if (name.startsWith("logins.") || name.startsWith("replay."))
+                System.out.println(name + " " + value);
+        });
+    }
+
+    @Benchmark
+    @Fork(1)
+    public long unbounded() throws InterruptedException {
+        return storm();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchatserver.replay.maxConcurrent=64",
+        "-Dchatserver.replay.maxWaiting=1000", "-Dchatserver.replay.retryMillis=100"})
+    public long bounded() throws InterruptedException {
+        return storm();
+    }
+
+    /**
+     * Logs in all users from as many threads at once and waits until their
+     * clients have received all messages.
+     *
+     * @return number of messages received
+     */
+    private long storm() throws InterruptedException {
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            clients[t] = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int i = first; i < names.length; i += threads)
+                        login(names[i]);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            clients[t].start();
+        }
+        go.countDown();
+        for (Thread client : clients)
+            client.join();
+        long expected = (long)users * backlog;
+        long sum;
+        while ((sum = received.sum()) < expected)
+            Thread.sleep(1);
+        return sum;
+    }
+
+    /**
+     * Logs a user in, retrying as long as the server throttles it.
+     *
+     * @param	 name	 name of the user
+     * @throws InterruptedException if interrupted while waiting to retry
+     */
+    private void login(String name) throws InterruptedException {
+        DirectDuringBroadcastBenchmark.SharedCounterClient client =
+            new DirectDuringBroadcastBenchmark.SharedCounterClient(received, deliveryMicros * 1000L);
+        LoginResult result;
+        while ((result = server.loginOrCreate(name, client)).status == LoginResult.Status.THROTTLED)
+            Thread.sleep(result.retryAfterMillis);
+    }
+}
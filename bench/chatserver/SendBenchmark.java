@@ -0,0 +1,86 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             JMH samples https://github.com/openjdk/jmh/tree/master/jmh-samples
+ */
+package chatserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Server#sendMessage(String, String)} to a random user,
+ * either one with a logged in client, whose {@link Outbox} delivers the
+ * message, or one without, whose {@link Server.Mailbox} queues it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+    /**
+     * Number of user accounts, half of them logged in
+     */
+    @Param({"1000", "100000"})
+    int registrySize;
+
+    /**
+     * Number of characters per message
+     */
+    @Param({"16", "1024"})
+    int messageSize;
+
+    private Server server;
+    private String[] online, offline;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws RemoteException {
+        server = new Server();
+        online = Fixtures.users(server, "online", registrySize / 2);
+        offline = Fixtures.users(server, "offline", registrySize - registrySize / 2);
+        Fixtures.login(server, online);
+        message = Fixtures.message(messageSize);
+    }
+
+    /**
+     * Empties the mailboxes filled during the iteration, and logs in again
+     * any client whose Outbox overflowed into a mailbox.
+     */
+    @TearDown(Level.Iteration)
+    public void reset() throws RemoteException {
+        for (String name : offline) {
+            server.deleteAccount(name);
+            server.addAccount(name);
+        }
+        Fixtures.login(server, online);
+    }
+
+    @Benchmark
+    public void sendOnline() throws RemoteException {
+        server.sendMessage(online[ThreadLocalRandom.current().nextInt(online.length)], message);
+    }
+
+    @Benchmark
+    public void sendOffline() throws RemoteException {
+        server.sendMessage(offline[ThreadLocalRandom.current().nextInt(offline.length)], message);
+    }
+}
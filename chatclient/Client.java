@@ -6,13 +6,20 @@
 
 package chatclient;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import chatserver.ChatServer;
+import chatserver.DirectoryChanges;
+import chatserver.Frames;
+import chatserver.ListPage;
+import chatserver.LoginResult;
+import chatserver.SendResult;
 
 /**
  * A class to instantiate a client for the chat server. Any number of clients can exist simultanously. Its interactions
@@ -28,10 +35,37 @@ public class Client implements ClientCallback{
      * Chatserver object the client is connected to in order to make RMI calls
      */
     private ChatServer server;
+    /**
+     * Chatserver object listings are fetched from: a read replica of the server, see {@link #connectReplica}, or
+     * the server itself
+     */
+    private ChatServer directory;
+    /**
+     * Copy of the server's directory listings are answered from while it is up to date
+     */
+    private final DirectoryCache cache = new DirectoryCache();
+    /**
+     * Whether the server lets clients copy its directory; a cluster does not
+     */
+    private boolean cacheable = true;
     /**
      * Stub that can be exported to allow server to make RMI calls to client to pass messages back
      */
     private ClientCallback myStub;
+    /**
+     * Epoch and sequence number of the last message received, used to skip messages the server delivers again
+     */
+    private long epoch, lastSequence = -1;
+    /**
+     * Number of names to fetch per page when listing accounts or groups. Configurable through the
+     * chatclient.pageSize system property.
+     */
+    private static final int PAGE_SIZE = Integer.getInteger("chatclient.pageSize", 100);
+    /**
+     * Transport used to reach the server: "rmi" (the default) or "nio" for the framed TCP front end. Configurable
+     * through the chatclient.transport system property.
+     */
+    static final String TRANSPORT = System.getProperty("chatclient.transport", "rmi");
 
     /**
      * Checks if machine is windows or not
@@ -67,19 +101,32 @@ public class Client implements ClientCallback{
     }
 
     /**
-     * Logs accountName into server, creating account accountName if it does not already exist
+     * Logs accountName into server, creating account accountName if it does not already exist. If the server is
+     * part of a cluster, the client connects to the server the account lives on.
      * @param	 fromHost	 Hostname of registry host to connect to
      * @param	 accountName	 Name of account to login to
      */
     public void login(String fromHost, String accountName){
         try {
-            server = getServer(fromHost);
+            server = TRANSPORT.equals("nio") ? getNioServer(fromHost) : getServer(fromHost);
             if (server != null) {
-                if(!server.checkForAccount(accountName)){
-                    server.addAccount(accountName);
+                String home = server.locate(accountName);
+                if (home != null) {
+                    try {
+                        server = lookupServer(home);
+                    }
+                    catch (Exception e) {
+                        // Stay with the server we have, which forwards our calls
+                    }
+                }
+                LoginResult result = loginOrCreate(accountName);
+                if (!result.isLoggedIn()) {
+                    PrintlnError(result.toString());
+                    System.exit(0);
                 }
-                server.login(accountName, myStub);
                 name = accountName;
+                directory = connectReplica(server);
+                keepAlive();
             }
             else {
                 System.out.println("Server not found. Check your network connection and that you have specified the correct server ip address.");
@@ -92,6 +139,69 @@ public class Client implements ClientCallback{
         }
     }
 
+    /**
+     * Logs in, creating the account if needed. While the server throttles logins, waits as long as it asks
+     * and tries again.
+     * @param	 accountName	 name of account to login to
+     * @return the result of the last attempt
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    private LoginResult loginOrCreate(String accountName) throws RemoteException {
+        LoginResult result = server.loginOrCreate(accountName, myStub);
+        while (result.status == LoginResult.Status.THROTTLED) {
+            System.out.println(result);
+            try {
+                Thread.sleep(result.retryAfterMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+            result = server.loginOrCreate(accountName, myStub);
+        }
+        return result;
+    }
+
+    /**
+     * Starts a daemon thread that renews the session's lease after a third of its duration. If the server has
+     * ended the session meanwhile, e.g. because renewals did not get through, the thread logs in again, which
+     * also delivers the messages that arrived in between. If the server throttles the login, the thread tries
+     * again after the delay the server suggests.
+     */
+    private void keepAlive(){
+        Thread renewer = new Thread(() -> {
+            long lease = 0;
+            while (true) {
+                long retryAfter = 0;
+                try {
+                    lease = server.renewLease(name);
+                    if (lease == 0 && server.checkForAccount(name)) {
+                        LoginResult result = server.loginOrCreate(name, myStub);
+                        if (result.status == LoginResult.Status.THROTTLED) {
+                            // The server is catching up with other clients; come back when it says
+                            retryAfter = result.retryAfterMillis;
+                        }
+                        else {
+                            cache.invalidate();
+                            lease = server.renewLease(name);
+                        }
+                    }
+                }
+                catch (RemoteException e) {
+                    // Try again later; the server keeps the session until the lease runs out
+                }
+                try {
+                    Thread.sleep(retryAfter > 0 ? retryAfter : Math.max(1000, lease / 3));
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "chatclient-lease");
+        renewer.setDaemon(true);
+        renewer.start();
+    }
+
     /**
      * Logs account corresponding to Client object out of server
      */
@@ -165,19 +275,7 @@ public class Client implements ClientCallback{
      * @param	 query	 optional wildcard to return only a subset of accounts
      */
     public void listAccounts(String query) {
-        List<String> accounts;
-        try {
-            accounts = server.listAccounts(query);
-        } catch (RemoteException e) {
-            System.out.println("Failed to retrieve account list. Unable to communicate with server. Check your network connection and the server.");
-            return;
-        }
-        if (accounts.isEmpty()) {
-            PrintlnError("No accounts found.");
-        }
-        for (String account : accounts) {
-            PrintlnResponse(account);
-        }
+        _list(query, false);
     }
 
     /**
@@ -185,19 +283,80 @@ public class Client implements ClientCallback{
      * @param	 query	 optional wildcard to return only a subset of groups
      */
     public void listGroups(String query) {
-        List<String> accounts;
+        _list(query, true);
+    }
+
+    /**
+     * Lists accounts or groups from the copy of the directory, after bringing it up to date if it is not. If that
+     * fails, lists them page by page instead, printing each page as soon as it arrives.
+     * @param	 query	 optional wildcard to return only a subset of accounts or groups
+     * @param	 groups	 True to list groups, false to list user accounts
+     */
+    private void _list(String query, boolean groups) {
+        List<String> cached = null;
         try {
-            accounts = server.listGroups(query);
+            if (cacheable && cache.sync(server, name))
+                cached = cache.list(query, groups);
         } catch (RemoteException e) {
-            System.out.println("Failed to retrieve group list. Unable to communicate with server. Check your network connection and the server.");
+            if (e.getCause() instanceof Error)
+                cacheable = false;
+        } catch (Error e) {
+            PrintlnError(e.getMessage());
             return;
         }
-        if (accounts.isEmpty()) {
+        if (cached != null) {
+            for (String account : cached)
+                PrintlnResponse(account);
+            if (cached.isEmpty())
+                PrintlnError("No accounts found.");
+            return;
+        }
+        String cursor = null;
+        boolean found = false;
+        do {
+            ListPage page;
+            try {
+                page = _page(query, cursor, groups);
+            } catch (RemoteException e) {
+                if (e.getCause() instanceof Error)
+                    PrintlnError(e.getCause().getMessage());
+                else
+                    System.out.println("Failed to retrieve " + (groups ? "group" : "account") +
+                        " list. Unable to communicate with server. Check your network connection and the server.");
+                return;
+            }
+            for (String account : page.names) {
+                PrintlnResponse(account);
+                found = true;
+            }
+            cursor = page.cursor;
+        } while (cursor != null);
+        if (!found) {
             PrintlnError("No accounts found.");
         }
-        for (String account : accounts) {
-            PrintlnResponse(account);
+    }
+
+    /**
+     * Fetches one page of a listing from the replica, or from the server if the replica fails. A replica that
+     * cannot be reached is not asked again; one that is behind the server is asked again for the next page.
+     * @param	 query	 optional wildcard to return only a subset of accounts or groups
+     * @param	 cursor	 cursor returned with the previous page, or null to start at the beginning
+     * @param	 groups	 True to list groups, false to list user accounts
+     * @return the page
+     * @throws RemoteException on RMI failure, or if the server refused the listing
+     */
+    private ListPage _page(String query, String cursor, boolean groups) throws RemoteException {
+        if (directory != server) {
+            try {
+                return groups ? directory.listGroupsPage(query, cursor, PAGE_SIZE)
+                              : directory.listAccountsPage(query, cursor, PAGE_SIZE);
+            } catch (RemoteException e) {
+                if (!(e.getCause() instanceof Error))
+                    directory = server;
+            }
         }
+        return groups ? server.listGroupsPage(query, cursor, PAGE_SIZE)
+                      : server.listAccountsPage(query, cursor, PAGE_SIZE);
     }
 
     /**
@@ -207,18 +366,35 @@ public class Client implements ClientCallback{
      */
     public void sendMessage(String target, String message){
         try {
-            if(server.checkForAccount(target)) {
-                server.sendMessage(target, message);
-            }
-            else{
-                System.out.println("Cannot send message. No such recipient.");
-            }
+            SendResult result = server.send(name, target, message);
+            if (!result.isAccepted())
+                PrintlnError(result.toString());
+            else if (result.summary != null && !result.summary.isComplete())
+                PrintlnResponse(result.summary.toString());
         }
         catch (RemoteException e){
             System.out.println("Unable to communicate with server. Check your network connection and the server. Message not sent.");
         }
     }
 
+    /**
+     * Sends a message to all members of a group and reports how many of them it reached
+     * @param	 groupName	 name of the group to send the message to
+     * @param	 message	 message to send
+     */
+    public void broadcastMessage(String groupName, String message){
+        try {
+            PrintlnResponse(server.broadcastMessage(groupName, message).toString());
+        }
+        catch (RemoteException e){
+            if (e.getCause() instanceof Error) {
+                PrintlnError(e.getCause().getMessage());
+            } else {
+                System.out.println("Unable to communicate with server. Check your network connection and the server. Message not sent.");
+            }
+        }
+    }
+
     /**
      * Deletes an account
      * @param	 accountName	 name of account to delete
@@ -238,6 +414,18 @@ public class Client implements ClientCallback{
         }
     }
 
+    /**
+     * Prints a snapshot of the server's metrics
+     */
+    public void printMetrics(){
+        try {
+            PrintlnResponse(server.getMetrics().toString());
+        }
+        catch (RemoteException e){
+            System.out.println("Unable to communicate with server. Check your network connection and the server.");
+        }
+    }
+
     /**
      * Receives a message from the server and prints it to the console
      * This method is intended to be called over RMI by the chat server being used to send the message
@@ -248,6 +436,50 @@ public class Client implements ClientCallback{
         System.out.println(message);
     }
 
+    /**
+     * Receives a batch of messages from the server and prints them to the console
+     * This method is intended to be called over RMI by the chat server being used to send the messages
+     * @param	 messages	 messages to receive, in order
+     */
+    @Override
+    public void receiveMessages(List<String> messages){
+        for (String message : messages)
+            System.out.println(message);
+    }
+
+    /**
+     * Receives a batch of numbered messages from the server and prints those that have not been printed before
+     * This method is intended to be called over RMI by the chat server being used to send the messages
+     * @param	 epoch	 epoch the sequence numbers belong to
+     * @param	 firstSequence	 sequence number of the first message
+     * @param	 messages	 messages to receive, in order
+     * @return the sequence number of the last message received
+     */
+    @Override
+    public synchronized long receiveSequenced(long epoch, long firstSequence, List<String> messages){
+        if (epoch != this.epoch) {
+            this.epoch = epoch;
+            lastSequence = firstSequence - 1;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            if (firstSequence + i > lastSequence) {
+                System.out.println(messages.get(i));
+                lastSequence = firstSequence + i;
+            }
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Applies changes to the directory pushed by the server to the copy of it
+     * This method is intended to be called over RMI by the chat server the client is logged in to
+     * @param	 changes	 the changes, or null if the copy has to be synced again
+     */
+    @Override
+    public void directoryChanged(DirectoryChanges changes){
+        cache.pushed(changes);
+    }
+
     /**
      * Gets reference to server for RMI calls and exports client stub to use for callbacks
      * Postconditition: security manager initialized
@@ -256,19 +488,80 @@ public class Client implements ClientCallback{
      * @return Object from the chatserver interface that can be used to call methods from that interface using RMI
      */
     private ChatServer getServer(String fromHost){
+        try {
+            myStub = (ClientCallback) UnicastRemoteObject.exportObject(this, 0);
+            return lookupServer(fromHost);
+        }
+        catch (Exception e){
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the server in the RMI registry
+     * Postconditition: security manager initialized
+     * @param	 fromHost	 Hostname of registry host to connect to, optionally followed by ":port"
+     * @return Object from the chatserver interface that can be used to call methods from that interface using RMI
+     * @throws Exception if the registry or the server could not be reached
+     */
+    static ChatServer lookupServer(String fromHost) throws Exception {
         if (System.getSecurityManager() ==  null){
             System.setSecurityManager(new SecurityManager());
         }
+        int colon = fromHost.lastIndexOf(':');
+        Registry useRegistry = colon < 0 ? LocateRegistry.getRegistry(fromHost)
+            : LocateRegistry.getRegistry(fromHost.substring(0, colon), Integer.parseInt(fromHost.substring(colon + 1)));
+        return (ChatServer) useRegistry.lookup("ChatServer");
+    }
+
+    /**
+     * Connects to one of the read replicas of the server, given as comma-separated "host:port" addresses by the
+     * chatclient.replicas system property, picked at random to spread the load.
+     * @param	 server	 the server itself, used if there are no replicas or the one picked cannot be reached
+     * @return Object from the chatserver interface to send directory queries to
+     */
+    static ChatServer connectReplica(ChatServer server) {
+        String replicas = System.getProperty("chatclient.replicas", "");
+        if (replicas.isEmpty())
+            return server;
+        String[] hosts = replicas.split(",");
         try {
-            myStub = (ClientCallback) UnicastRemoteObject.exportObject(this, 0);
-            Registry useRegistry = LocateRegistry.getRegistry(fromHost);
-            return((ChatServer) useRegistry.lookup("ChatServer"));
+            return lookupServer(hosts[ThreadLocalRandom.current().nextInt(hosts.length)]);
         }
-        catch (Exception e){
+        catch (Exception e) {
+            return server;
+        }
+    }
+
+    /**
+     * Connects to the NIO front end of the server. Messages are pushed over
+     * the same connection, so the client is not exported over RMI.
+     * Postcondition: myStub refers to this client itself
+     * @param	 fromHost	 Hostname of the server
+     * @return Object from the chatserver interface that sends each call as a request frame
+     */
+    private ChatServer getNioServer(String fromHost){
+        try {
+            ChatServer nio = connectNio(fromHost);
+            myStub = this;
+            return nio;
+        }
+        catch (IOException e){
             return null;
         }
     }
 
+    /**
+     * Opens a connection to the NIO front end of the server, on the port given by the chatclient.nio.port system
+     * property
+     * @param	 fromHost	 Hostname of the server
+     * @return Object from the chatserver interface that sends each call as a request frame
+     * @throws IOException if the connection could not be established
+     */
+    static ChatServer connectNio(String fromHost) throws IOException {
+        return new NioChatServer(fromHost, Integer.getInteger("chatclient.nio.port", Frames.DEFAULT_PORT));
+    }
+
     /**
      * Core execution loop that takes commands from the user and executes the appropriate methods above
      * @param	 args	 Takes the server hostname as the first argument
@@ -318,12 +611,21 @@ public class Client implements ClientCallback{
             else if(command[0].equals("Send")){
                 a.sendMessage(command[1], command[2]);
             }
+            else if(command[0].equals("Broadcast")){
+                if (command.length != 3)
+                    PrintlnError("Syntax: Broadcast group message");
+                else
+                    a.broadcastMessage(command[1], command[2]);
+            }
             else if(command[0].equals("DeleteAccount")){
                 if (command.length != 2)
                     PrintlnError("Syntax: DeleteAccount name");
                 else
                     a.deleteAccount(command[1]);
             }
+            else if(command[0].equals("Metrics")){
+                a.printMetrics();
+            }
             else if(command[0].equals("Logout")){
                 a.logout();
                 System.exit(0);
@@ -5,8 +5,11 @@
  */
 package chatclient;
 
+import chatserver.DirectoryChanges;
+
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * This interface allows an implementing class to receive messages using RMI
@@ -20,4 +23,50 @@ public interface ClientCallback extends Remote{
      */
     void receiveMessage(String message) throws RemoteException;
 
+    /**
+     * Receives several messages from the server in a single call, in the given order.
+     *
+     * The server uses this to deliver a backlog of messages with one round-trip
+     * instead of one per message. Clients built before this method existed do
+     * not recognize it; the server detects this and falls back to
+     * {@link #receiveMessage(String)}.
+     * @param	 messages	 messages to receive
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    default void receiveMessages(List<String> messages) throws RemoteException {
+        for (String message : messages)
+            receiveMessage(message);
+    }
+
+    /**
+     * Receives several messages from the server, numbered with consecutive sequence numbers, and acknowledges them.
+     *
+     * Every account numbers the messages delivered to it, starting over with a fresh epoch whenever the account is
+     * created or the server restarts. A message may be delivered more than once, e.g. when the client reconnects
+     * before acknowledging it, but it keeps its sequence number; a client only has to skip messages whose sequence
+     * number it has already seen in the same epoch. The return value acknowledges all messages up to the given
+     * sequence number, so the server can stop keeping them for redelivery. Clients built before this method existed
+     * do not recognize it; the server falls back to {@link #receiveMessages(List)}.
+     * @param	 epoch	 epoch the sequence numbers belong to
+     * @param	 firstSequence	 sequence number of the first message
+     * @param	 messages	 messages to receive
+     * @return the highest sequence number up to which all messages have been received
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    default long receiveSequenced(long epoch, long firstSequence, List<String> messages) throws RemoteException {
+        receiveMessages(messages);
+        return firstSequence + messages.size() - 1;
+    }
+
+    /**
+     * Receives changes to the directory of accounts and groups, pushed by the server to a client that keeps a copy
+     * of it, see chatserver.ChatServer#syncDirectory. Each batch carries on from the previous one; a batch that
+     * does not, e.g. because an earlier one was lost, or null means the copy is no longer kept up to date and has
+     * to be synced again before it is used.
+     * @param	 changes	 the changes, or null
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    default void directoryChanged(DirectoryChanges changes) throws RemoteException {
+    }
+
 }
@@ -0,0 +1,109 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+
+package chatclient;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+import chatserver.ChatServer;
+import chatserver.Directory;
+import chatserver.DirectoryChanges;
+
+/**
+ * A client's copy of the server's directory of account and group names, so that listings need no round trip.
+ *
+ * The copy is filled by {@link ChatServer#syncDirectory(String, long, long)}, which answers with the changes since
+ * the copy's version, a snapshot, or nothing if the copy is up to date, and is then kept up to date by the changes
+ * the server pushes through {@link ClientCallback#directoryChanged(DirectoryChanges)}. A push that does not carry
+ * on from the copy's version, e.g. because one was lost, or the server telling the client to sync again, makes the
+ * copy stale; it is synced again before it is used next.
+ */
+class DirectoryCache {
+    private Directory directory = new Directory();
+
+    /**
+     * Version of the copy: source and position of the changes it has applied; 0 before the first sync
+     */
+    private long source, position;
+
+    /**
+     * Whether the copy is up to date as far as the client knows, i.e. may be listed from
+     */
+    private boolean live;
+
+    /**
+     * Number of pushes that could not be applied, used to detect those that arrive while a sync is under way
+     */
+    private long rejected;
+
+    /**
+     * Brings the copy up to date through the server, unless it is live.
+     * @param	 server	 server to sync with
+     * @param	 name	 name of the client's account, to subscribe it to pushes
+     * @return True if the copy is live
+     * @throws RemoteException on RMI failure, or if the server cannot be synced with
+     */
+    boolean sync(ChatServer server, String name) throws RemoteException {
+        long before;
+        long source, position;
+        synchronized (this) {
+            if (live)
+                return true;
+            before = rejected;
+            source = this.source;
+            position = this.position;
+        }
+        DirectoryChanges changes = server.syncDirectory(name, source, position);
+        synchronized (this) {
+            if (changes.snapshot) {
+                directory = new Directory();
+                directory.apply(changes);
+            }
+            else if (changes.follows(this.source, this.position)) {
+                directory.apply(changes);
+            }
+            else {
+                return false;
+            }
+            this.source = changes.source;
+            this.position = changes.position;
+            live = rejected == before;
+            return live;
+        }
+    }
+
+    /**
+     * Applies changes pushed by the server.
+     * @param	 changes	 the changes, or null if the copy has to be synced again
+     */
+    synchronized void pushed(DirectoryChanges changes) {
+        if (changes != null && live && changes.follows(source, position)) {
+            directory.apply(changes);
+            position = changes.position;
+        }
+        else {
+            live = false;
+            rejected++;
+        }
+    }
+
+    /**
+     * Marks the copy as stale, e.g. when the session it is subscribed with ended.
+     */
+    synchronized void invalidate() {
+        live = false;
+    }
+
+    /**
+     * @param	 query	 optional wildcard to return only a subset of accounts or groups
+     * @param	 groups	 True to list groups, false to list user accounts
+     * @return the names, sorted, or null if the copy is stale
+     */
+    synchronized List<String> list(String query, boolean groups) {
+        return live ? directory.list(query, groups) : null;
+    }
+}
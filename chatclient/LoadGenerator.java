@@ -0,0 +1,491 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+
+package chatclient;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import chatserver.ChatServer;
+import chatserver.DeliveryStatus;
+import chatserver.Histogram;
+import chatserver.LoginResult;
+import chatserver.MetricsSnapshot;
+import chatserver.SendResult;
+
+/**
+ * A headless load generator that simulates many users of a chat server at once, to test the capacity of a real
+ * deployment.
+ *
+ * The simulated users log in over the transport the {@link Client} is configured to use, and a number of worker
+ * threads then issue a mix of operations on their behalf, each on a random user: direct messages to another user,
+ * messages to a group, listings, and logging out and in again. Every message carries the time it was sent, so the
+ * receiving user can measure the latency from sending it to receiving it. After the run, the generator waits for
+ * the messages still on their way and reports, as "name value" lines like {@link MetricsSnapshot}:
+ * the configuration, the number of each operation with its errors, throttled calls and latency, the throughput,
+ * the delivery latency and the number of messages that did not arrive, followed by the server's own metrics. Runs of different
+ * versions can thus be compared line by line. Users skip messages delivered again with the same sequence number,
+ * but a message that was requeued with a new one while its user logged out counts twice, so slightly more messages
+ * may be received than expected.
+ *
+ * The generator is configured through system properties:
+ * <ul>
+ *   <li>chatclient.load.users: number of simulated users (1000)</li>
+ *   <li>chatclient.load.groupSize: number of users per group (10); each user is in one group</li>
+ *   <li>chatclient.load.threads: number of worker threads issuing operations (32)</li>
+ *   <li>chatclient.load.rate: total operations per second, or 0 to issue them as fast as possible (0)</li>
+ *   <li>chatclient.load.seconds: duration of the run (30)</li>
+ *   <li>chatclient.load.drainSeconds: how long to wait for outstanding messages after the run (10)</li>
+ *   <li>chatclient.load.mix: relative weights of the operations (send=70,group=10,list=10,churn=10)</li>
+ *   <li>chatclient.load.messageSize: number of characters per message (64)</li>
+ *   <li>chatclient.load.prefix: prefix of the names of the users and groups ("load")</li>
+ *   <li>chatclient.load.output: file to write the results to, instead of standard output</li>
+ * </ul>
+ * Listings go to the read replicas given by chatclient.replicas, as for the {@link Client}, spread evenly over
+ * the users; to the server if none are given.
+ */
+public class LoadGenerator {
+
+    /**
+     * Operations the workers issue
+     */
+    enum Operation {
+        /**
+         * Send a message to another user
+         */
+        SEND("send"),
+        /**
+         * Send a message to the group of the user
+         */
+        GROUP("group"),
+        /**
+         * List a page of the users
+         */
+        LIST("list"),
+        /**
+         * Log out and in again
+         */
+        CHURN("churn");
+
+        /**
+         * Name of the operation, in the mix and the results
+         */
+        final String label;
+
+        /**
+         * Latencies of the calls, in nanoseconds
+         */
+        final Histogram latency = new Histogram();
+
+        /**
+         * Number of calls that failed
+         */
+        final LongAdder errors = new LongAdder();
+
+        /**
+         * Number of sends and logins the server throttled, which are not errors
+         */
+        final LongAdder throttled = new LongAdder();
+
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final int USERS = Integer.getInteger("chatclient.load.users", 1000);
+    private static final int GROUP_SIZE = Integer.getInteger("chatclient.load.groupSize", 10);
+    private static final int THREADS = Integer.getInteger("chatclient.load.threads", 32);
+    private static final int RATE = Integer.getInteger("chatclient.load.rate", 0);
+    private static final int SECONDS = Integer.getInteger("chatclient.load.seconds", 30);
+    private static final int DRAIN_SECONDS = Integer.getInteger("chatclient.load.drainSeconds", 10);
+    private static final String MIX = System.getProperty("chatclient.load.mix", "send=70,group=10,list=10,churn=10");
+    private static final int MESSAGE_SIZE = Integer.getInteger("chatclient.load.messageSize", 64);
+    private static final String PREFIX = System.getProperty("chatclient.load.prefix", "load");
+    private static final String OUTPUT = System.getProperty("chatclient.load.output");
+
+    /**
+     * A simulated user. It receives messages like {@link Client}, skipping those delivered again, and records
+     * how long each took to arrive.
+     */
+    private class User implements ClientCallback {
+        /**
+         * name of the user
+         */
+        final String name;
+        /**
+         * name of the group the user is in
+         */
+        final String group;
+        /**
+         * Chatserver object the user is connected to
+         */
+        ChatServer server;
+        /**
+         * Chatserver object the user fetches listings from, the server or a read replica
+         */
+        ChatServer directory;
+        /**
+         * Stub the server calls back to deliver messages
+         */
+        ClientCallback stub;
+        /**
+         * Epoch and sequence number of the last message received
+         */
+        private long epoch, lastSequence = -1;
+
+        User(String name, String group) {
+            this.name = name;
+            this.group = group;
+        }
+
+        @Override
+        public void receiveMessage(String message) {
+            received(message);
+        }
+
+        @Override
+        public void receiveMessages(List<String> messages) {
+            for (String message : messages)
+                received(message);
+        }
+
+        @Override
+        public synchronized long receiveSequenced(long epoch, long firstSequence, List<String> messages) {
+            if (epoch != this.epoch) {
+                this.epoch = epoch;
+                lastSequence = firstSequence - 1;
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                if (firstSequence + i > lastSequence) {
+                    received(messages.get(i));
+                    lastSequence = firstSequence + i;
+                }
+            }
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Chatserver object shared by the users over RMI
+     */
+    private final ChatServer rmiServer;
+    /**
+     * Read replicas of the server, looked up once
+     */
+    private final ChatServer[] replicas;
+    private final String host;
+    private final User[] users;
+    private final Operation[] mix;
+    private final String padding;
+
+    /**
+     * Latencies from sending messages to receiving them, in nanoseconds
+     */
+    private final Histogram delivery = new Histogram();
+    /**
+     * Number of deliveries expected from the messages sent, and received so far
+     */
+    private final LongAdder expected = new LongAdder(), received = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a generator for the configured number of users; see {@link #setUp()}
+     * @param	 host	 Hostname of the server
+     * @throws Exception if the server or a replica could not be reached over RMI
+     */
+    LoadGenerator(String host) throws Exception {
+        this.host = host;
+        rmiServer = Client.TRANSPORT.equals("nio") ? null : Client.lookupServer(host);
+        String[] replicaHosts = System.getProperty("chatclient.replicas", "").split(",");
+        replicas = new ChatServer[replicaHosts[0].isEmpty() ? 0 : replicaHosts.length];
+        for (int i = 0; i < replicas.length; i++)
+            replicas[i] = Client.lookupServer(replicaHosts[i]);
+        users = new User[USERS];
+        for (int i = 0; i < USERS; i++)
+            users[i] = new User(PREFIX + i, PREFIX + "group" + i / GROUP_SIZE);
+        mix = parseMix(MIX);
+        char[] text = new char[MESSAGE_SIZE];
+        Arrays.fill(text, 'x');
+        padding = new String(text);
+    }
+
+    /**
+     * @param	 mix	 weights of the operations, e.g. "send=70,list=30"
+     * @return 100 operations in proportion to their weights, to pick from at random
+     */
+    private static Operation[] parseMix(String mix) {
+        Map<Operation, Integer> weights = new TreeMap<Operation, Integer>();
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] weight = entry.trim().split("=");
+            Operation operation = null;
+            for (Operation candidate : Operation.values())
+                if (candidate.label.equals(weight[0]))
+                    operation = candidate;
+            if (operation == null || weight.length != 2)
+                throw new IllegalArgumentException("Not an operation with a weight: " + entry);
+            weights.put(operation, Integer.parseInt(weight[1]));
+            total += Integer.parseInt(weight[1]);
+        }
+        if (total <= 0)
+            throw new IllegalArgumentException("No operations in the mix: " + mix);
+        List<Operation> table = new ArrayList<Operation>();
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet())
+            for (int i = 0; i < Math.round(100.0 * weight.getValue() / total); i++)
+                table.add(weight.getKey());
+        return table.toArray(new Operation[0]);
+    }
+
+    /**
+     * Logs in all users, creating them if needed, and puts them into their groups
+     * @throws Exception if a user could not be logged in
+     */
+    void setUp() throws Exception {
+        for (int i = 0; i < users.length; i++) {
+            User user = users[i];
+            if (rmiServer != null) {
+                user.server = rmiServer;
+                user.stub = (ClientCallback) UnicastRemoteObject.exportObject(user, 0);
+            }
+            else {
+                user.server = Client.connectNio(host);
+                user.stub = user;
+            }
+            LoginResult result = login(user, null);
+            if (!result.isLoggedIn())
+                throw new IllegalStateException(user.name + ": " + result);
+            if (!user.server.checkForAccount(user.group))
+                user.server.addGroup(user.group);
+            user.server.addGroupMember(user.group, user.name);
+            user.directory = replicas.length == 0 ? user.server : replicas[i % replicas.length];
+        }
+    }
+
+    /**
+     * Records the delivery of a message
+     * @param	 message	 the message, starting with the time it was sent
+     */
+    private void received(String message) {
+        int end = message.indexOf(' ');
+        try {
+            delivery.record(System.nanoTime() - Long.parseLong(end < 0 ? message : message.substring(0, end)));
+            received.increment();
+        }
+        catch (NumberFormatException e) {
+            // Not sent by the generator
+        }
+    }
+
+    /**
+     * Issues operations until the run is over, pacing them to the configured rate. Called by each worker thread.
+     */
+    private void work() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = RATE > 0 ? 1_000_000_000L * THREADS / RATE : 0;
+        long next = System.nanoTime();
+        while (running) {
+            if (interval > 0) {
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            Operation operation = mix[random.nextInt(mix.length)];
+            User user = users[random.nextInt(users.length)];
+            long start = System.nanoTime();
+            try {
+                issue(operation, user, random);
+            }
+            catch (RemoteException | RuntimeException e) {
+                operation.errors.increment();
+            }
+            finally {
+                operation.latency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Logs a user in, creating it if needed. While the server throttles logins, waits as long as it asks and
+     * tries again.
+     * @param	 user	 the user
+     * @param	 throttled	 counter of throttled attempts, or null
+     * @return the result of the last attempt
+     * @throws RemoteException on RMI failure
+     */
+    private static LoginResult login(User user, LongAdder throttled) throws RemoteException {
+        while (true) {
+            LoginResult result = user.server.loginOrCreate(user.name, user.stub);
+            if (result.status != LoginResult.Status.THROTTLED)
+                return result;
+            if (throttled != null)
+                throttled.increment();
+            try {
+                Thread.sleep(result.retryAfterMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Issues an operation
+     * @param	 operation	 the operation
+     * @param	 user	 user to issue it as
+     * @param	 random	 source of the other users involved
+     * @throws RemoteException on RMI failure, or if the server refused the operation
+     */
+    private void issue(Operation operation, User user, ThreadLocalRandom random) throws RemoteException {
+        switch (operation) {
+            case SEND: {
+                String target = users[random.nextInt(users.length)].name;
+                SendResult result = user.server.send(user.name, target, System.nanoTime() + " " + padding);
+                if (result.status == DeliveryStatus.THROTTLED) {
+                    operation.throttled.increment();
+                    break;
+                }
+                if (!result.isAccepted())
+                    throw new IllegalStateException(result.toString());
+                expected.increment();
+                break;
+            }
+            case GROUP: {
+                SendResult result = user.server.send(user.name, user.group, System.nanoTime() + " " + padding);
+                if (result.status == DeliveryStatus.THROTTLED) {
+                    operation.throttled.increment();
+                    break;
+                }
+                if (!result.isAccepted())
+                    throw new IllegalStateException(result.toString());
+                expected.add(result.summary.members);
+                break;
+            }
+            case LIST:
+                user.directory.listAccountsPage(PREFIX + random.nextInt(10) + ".*", null, 100);
+                break;
+            case CHURN: {
+                user.server.logout(user.name);
+                LoginResult result = login(user, operation.throttled);
+                if (!result.isLoggedIn())
+                    throw new IllegalStateException(result.toString());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs the configured load, waits for outstanding messages and collects the results
+     * @return the results, by name
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    SortedMap<String, Long> run() throws InterruptedException {
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            workers[i] = new Thread(this::work, "chatclient-load-" + i);
+            workers[i].start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(SECONDS * 1000L);
+        running = false;
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - start;
+        long deadline = System.nanoTime() + DRAIN_SECONDS * 1_000_000_000L;
+        while (received.sum() < expected.sum() && System.nanoTime() < deadline)
+            Thread.sleep(100);
+
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        values.put("config.users", (long)USERS);
+        values.put("config.groupSize", (long)GROUP_SIZE);
+        values.put("config.threads", (long)THREADS);
+        values.put("config.rate", (long)RATE);
+        values.put("config.seconds", (long)SECONDS);
+        values.put("config.messageSize", (long)MESSAGE_SIZE);
+        values.put("config.replicas", (long)replicas.length);
+        long operations = 0, errors = 0;
+        for (Operation operation : Operation.values()) {
+            operation.latency.addTo(values, "ops." + operation.label, "Micros", 1000);
+            values.put("ops." + operation.label + ".errors", operation.errors.sum());
+            values.put("ops." + operation.label + ".throttled", operation.throttled.sum());
+            operations += values.get("ops." + operation.label + ".count");
+            errors += operation.errors.sum();
+        }
+        values.put("ops.total.count", operations);
+        values.put("ops.total.errors", errors);
+        values.put("ops.total.errorsPerMillion", operations == 0 ? 0 : errors * 1_000_000 / operations);
+        values.put("throughput.opsPerSecond", operations * 1_000_000_000L / elapsed);
+        values.put("throughput.deliveriesPerSecond", received.sum() * 1_000_000_000L / elapsed);
+        delivery.addTo(values, "delivery.latency", "Micros", 1000);
+        values.put("delivery.expected", expected.sum());
+        values.put("delivery.received", received.sum());
+        values.put("delivery.missing", Math.max(0, expected.sum() - received.sum()));
+        return values;
+    }
+
+    /**
+     * Logs out all users
+     */
+    void tearDown() {
+        for (User user : users) {
+            try {
+                user.server.logout(user.name);
+                if (rmiServer != null)
+                    UnicastRemoteObject.unexportObject(user, true);
+            }
+            catch (RemoteException e) {
+                // The server ends the session by itself when it cannot reach the user
+            }
+        }
+    }
+
+    /**
+     * Runs the load generator against a server and prints or writes the results
+     * @param	 args	 Takes the server hostname as the first argument, localhost by default
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(args.length > 0 ? args[0] : "localhost");
+        generator.setUp();
+        SortedMap<String, Long> values = generator.run();
+        try {
+            for (Map.Entry<String, Long> value : generator.users[0].server.getMetrics().values.entrySet())
+                values.put("server." + value.getKey(), value.getValue());
+        }
+        catch (RemoteException e) {
+            System.err.println("Could not get the server's metrics: " + e);
+        }
+        generator.tearDown();
+        String results = new MetricsSnapshot(System.currentTimeMillis(), values).toString();
+        if (OUTPUT == null) {
+            System.out.print(results);
+        }
+        else {
+            try (Writer out = new FileWriter(OUTPUT)) {
+                out.write(results);
+            }
+        }
+        System.exit(0);
+    }
+}
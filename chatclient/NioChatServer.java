@@ -0,0 +1,329 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+
+package chatclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chatserver.ChatServer;
+import chatserver.DeliveryStatus;
+import chatserver.DirectoryChanges;
+import chatserver.FanoutSummary;
+import chatserver.Frames;
+import chatserver.ListPage;
+import chatserver.LoginResult;
+import chatserver.MetricsSnapshot;
+import chatserver.SendResult;
+
+/**
+ * A ChatServer reached over the framed TCP transport of chatserver.NioServer
+ * instead of RMI.
+ *
+ * Every call sends one request frame and waits for the matching response.
+ * Messages pushed by the server arrive over the same connection and are
+ * handed to the ClientCallback given at login, on the connection's reader
+ * thread, which acknowledges each numbered batch once the callback has
+ * returned. Failures are reported as RemoteExceptions, and errors raised by the
+ * server as a ServerError wrapping an Error with the server's message, just
+ * as with RMI, so callers can treat both transports alike.
+ */
+public class NioChatServer implements ChatServer {
+    private final SocketChannel channel;
+
+    /**
+     * Responses not received yet, by request id
+     */
+    private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    /**
+     * The client messages are delivered to, once logged in
+     */
+    private volatile ClientCallback callback;
+
+    /**
+     * The numbered batch being received: its epoch, first sequence number,
+     * size, and the messages received so far, or null between batches. Only
+     * accessed by the reader thread.
+     */
+    private long sequenceEpoch, firstSequence;
+    private int expected;
+    private List<String> sequenced;
+
+    /**
+     * Set once the connection is closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * Connects to a server and starts the connection's reader thread.
+     * @param	 host	 hostname of the server
+     * @param	 port	 port of the server's NIO front end
+     * @throws IOException if the connection could not be established
+     */
+    public NioChatServer(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        Thread reader = new Thread(this::read, "chatclient-nio-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads frames until the connection is closed. Called by the reader thread.
+     */
+    private void read() {
+        ByteBuffer in = ByteBuffer.allocate(16 << 10);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                int length;
+                while ((length = Frames.frameLength(in)) >= 0) {
+                    ByteBuffer frame = in.slice(in.position(), length);
+                    in.position(in.position() + length);
+                    dispatch(frame);
+                }
+                if (in.remaining() >= 4 && in.getInt(in.position()) + 4 > in.capacity())
+                    in = ByteBuffer.allocate(in.getInt(in.position()) + 4).put(in);
+                else
+                    in.compact();
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Fall through and fail the outstanding requests
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+        for (CompletableFuture<ByteBuffer> response : pending.values())
+            response.completeExceptionally(new IOException("Connection closed"));
+    }
+
+    private void dispatch(ByteBuffer frame) throws IOException {
+        frame.position(4);
+        byte op = frame.get();
+        int id = frame.getInt();
+        if (op == Frames.SEQUENCE) {
+            sequenceEpoch = frame.getLong();
+            firstSequence = frame.getLong();
+            expected = frame.getInt();
+            sequenced = new ArrayList<String>(expected);
+            return;
+        }
+        if (op == Frames.DELIVER) {
+            String message = Frames.getString(frame);
+            ClientCallback client = callback;
+            if (sequenced == null) {
+                if (client != null)
+                    client.receiveMessage(message);
+                return;
+            }
+            sequenced.add(message);
+            if (sequenced.size() < expected)
+                return;
+            List<String> batch = sequenced;
+            sequenced = null;
+            if (client != null)
+                write(Frames.ack(sequenceEpoch, client.receiveSequenced(sequenceEpoch, firstSequence, batch)));
+            return;
+        }
+        if (op == Frames.DIRECTORY) {
+            ClientCallback client = callback;
+            if (client != null)
+                client.directoryChanged(Frames.getChanges(frame));
+            return;
+        }
+        // The frame is handed to another thread, so it must not share the read buffer
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining() + 1);
+        copy.put(op).put(frame).flip();
+        CompletableFuture<ByteBuffer> response = pending.remove(id);
+        if (response != null)
+            response.complete(copy);
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     * @param	 request	 the request, not finished yet
+     * @return the payload of the response
+     * @throws RemoteException if the connection failed or the server reported an error
+     */
+    private ByteBuffer call(Frames.Encoder request) throws RemoteException {
+        int id = request.getId();
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+        pending.put(id, response);
+        if (closed)
+            response.completeExceptionally(new IOException("Connection closed"));
+        try {
+            write(request.finish());
+        } catch (IOException e) {
+            pending.remove(id);
+            throw new RemoteException("Unable to send request", e);
+        }
+        ByteBuffer result;
+        try {
+            result = response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            throw new RemoteException("Connection to server lost", e.getCause());
+        }
+        if (result.get() == Frames.ERROR) {
+            String message = Frames.getString(result);
+            throw new ServerError(message, new Error(message));
+        }
+        return result;
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        synchronized (channel) {
+            while (frame.hasRemaining())
+                channel.write(frame);
+        }
+    }
+
+    private Frames.Encoder request(byte op) {
+        return new Frames.Encoder(op, nextId.getAndIncrement());
+    }
+
+    @Override
+    public Boolean checkForAccount(String accountName) throws RemoteException {
+        return Frames.getBoolean(call(request(Frames.CHECK_FOR_ACCOUNT).putString(accountName)));
+    }
+
+    /**
+     * Logs in. Messages are delivered to the given client directly, on the
+     * connection's reader thread; it does not have to be exported over RMI.
+     */
+    @Override
+    public void login(String id, ClientCallback client) throws RemoteException {
+        callback = client;
+        call(request(Frames.LOGIN).putString(id));
+    }
+
+    /**
+     * Logs in, creating the account if necessary. Messages are delivered to
+     * the given client directly, as with {@link #login(String, ClientCallback)}.
+     */
+    @Override
+    public LoginResult loginOrCreate(String id, ClientCallback client) throws RemoteException {
+        callback = client;
+        ByteBuffer result = call(request(Frames.LOGIN_OR_CREATE).putString(id));
+        LoginResult.Status status = LoginResult.Status.values()[result.get()];
+        return new LoginResult(status, result.getLong());
+    }
+
+    @Override
+    public void logout(String id) throws RemoteException {
+        call(request(Frames.LOGOUT).putString(id));
+    }
+
+    @Override
+    public long renewLease(String id) throws RemoteException {
+        return call(request(Frames.RENEW_LEASE).putString(id)).getLong();
+    }
+
+    @Override
+    public String locate(String accountName) throws RemoteException {
+        return Frames.getString(call(request(Frames.LOCATE).putString(accountName)));
+    }
+
+    @Override
+    public DirectoryChanges syncDirectory(String id, long source, long position) throws RemoteException {
+        return Frames.getChanges(call(request(Frames.SYNC_DIRECTORY).putString(id).putLong(source).putLong(position)));
+    }
+
+    @Override
+    public void addAccount(String accountName) throws RemoteException {
+        call(request(Frames.ADD_ACCOUNT).putString(accountName));
+    }
+
+    @Override
+    public List<String> listAccounts(String query) throws RemoteException {
+        return Frames.getStrings(call(request(Frames.LIST).putString(query).putBoolean(false)));
+    }
+
+    @Override
+    public void addGroup(String groupName) throws RemoteException {
+        call(request(Frames.ADD_GROUP).putString(groupName));
+    }
+
+    @Override
+    public void addGroupMember(String groupName, String accountName) throws RemoteException {
+        call(request(Frames.ADD_GROUP_MEMBER).putString(groupName).putString(accountName));
+    }
+
+    @Override
+    public List<String> listGroups(String query) throws RemoteException {
+        return Frames.getStrings(call(request(Frames.LIST).putString(query).putBoolean(true)));
+    }
+
+    @Override
+    public ListPage listAccountsPage(String query, String cursor, int pageSize) throws RemoteException {
+        return listPage(query, false, cursor, pageSize);
+    }
+
+    @Override
+    public ListPage listGroupsPage(String query, String cursor, int pageSize) throws RemoteException {
+        return listPage(query, true, cursor, pageSize);
+    }
+
+    private ListPage listPage(String query, boolean groups, String cursor, int pageSize) throws RemoteException {
+        ByteBuffer result = call(request(Frames.LIST_PAGE).putString(query).putBoolean(groups)
+            .putString(cursor).putInt(pageSize));
+        return new ListPage(Frames.getStrings(result), Frames.getString(result));
+    }
+
+    @Override
+    public void sendMessage(String accountName, String message) throws RemoteException {
+        call(request(Frames.SEND_MESSAGE).putString(accountName).putString(message));
+    }
+
+    @Override
+    public SendResult send(String sender, String accountName, String message) throws RemoteException {
+        ByteBuffer result = call(request(Frames.SEND).putString(sender).putString(accountName)
+            .putString(message));
+        DeliveryStatus status = DeliveryStatus.values()[result.get()];
+        FanoutSummary summary = Frames.getBoolean(result) ? Frames.getSummary(result) : null;
+        return new SendResult(status, summary, result.getLong());
+    }
+
+    @Override
+    public FanoutSummary broadcastMessage(String groupName, String message) throws RemoteException {
+        return Frames.getSummary(call(request(Frames.BROADCAST).putString(groupName).putString(message)));
+    }
+
+    @Override
+    public int deleteAccount(String accountName) throws RemoteException {
+        return call(request(Frames.DELETE_ACCOUNT).putString(accountName)).getInt();
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() throws RemoteException {
+        ByteBuffer result = call(request(Frames.GET_METRICS));
+        long timestamp = result.getLong();
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (int count = result.getInt(); count > 0; count--)
+            values.put(Frames.getString(result), result.getLong());
+        return new MetricsSnapshot(timestamp, values);
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Admission control for sends, so that no single sender or group can take
+ * the server's delivery capacity away from everyone else.
+ *
+ * Every send costs one token per delivery it causes: 1 for a user, the
+ * number of members for a group. It is charged to a token bucket of the
+ * sender and, for a group, to one of the group. A bucket refills at a fixed
+ * rate up to its burst size, and admits a send while it holds any tokens at
+ * all; the send may take it below zero, so that a broadcast to a group
+ * larger than the burst is admitted, and the sender then waits for as long
+ * as the group's size takes to refill. A send that is not admitted is
+ * throttled, with the time after which the bucket admits again.
+ *
+ * Independently of the buckets, sends are shed, i.e. throttled for
+ * SHED_RETRY_MILLIS give or take a random half, while more than
+ * SHED_BACKLOG deliveries wait for a delivery worker.
+ *
+ * All limits are off (0) by default.
+ */
+class Admission {
+    /**
+     * Deliveries each sender may cause per second, or 0 for no limit.
+     * Configurable through the chatserver.rate.senderPerSecond system property.
+     */
+    static final int SENDER_PER_SECOND = Integer.getInteger("chatserver.rate.senderPerSecond", 0);
+
+    /**
+     * Deliveries a sender may cause at once after being idle. Configurable
+     * through the chatserver.rate.senderBurst system property; by default a
+     * second's worth.
+     */
+    static final int SENDER_BURST = Integer.getInteger("chatserver.rate.senderBurst", SENDER_PER_SECOND);
+
+    /**
+     * Deliveries to the members of each group per second, from all senders
+     * together, or 0 for no limit. Configurable through the
+     * chatserver.rate.groupPerSecond system property.
+     */
+    static final int GROUP_PER_SECOND = Integer.getInteger("chatserver.rate.groupPerSecond", 0);
+
+    /**
+     * Deliveries to the members of a group at once after it was idle.
+     * Configurable through the chatserver.rate.groupBurst system property;
+     * by default a second's worth.
+     */
+    static final int GROUP_BURST = Integer.getInteger("chatserver.rate.groupBurst", GROUP_PER_SECOND);
+
+    /**
+     * Number of deliveries waiting for a delivery worker above which sends
+     * are shed, or 0 to never shed. Configurable through the
+     * chatserver.shed.backlog system property.
+     */
+    static final int SHED_BACKLOG = Integer.getInteger("chatserver.shed.backlog", 0);
+
+    /**
+     * Time, in milliseconds, after which a shed send may be retried, on
+     * average. Configurable through the chatserver.shed.retryMillis system
+     * property.
+     */
+    static final int SHED_RETRY_MILLIS = Math.max(1, Integer.getInteger("chatserver.shed.retryMillis", 1000));
+
+    /**
+     * A token bucket. The tokens may go below zero, see above.
+     */
+    static final class Bucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long refilledAt;
+        /**
+         * Set once the bucket was dropped by {@link Admission#sweep()}, after
+         * which it may not be charged any more
+         */
+        private boolean retired;
+
+        Bucket(int perSecond, int burst, long now) {
+            this.perNano = perSecond / 1e9;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.refilledAt = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * perNano);
+            refilledAt = now;
+        }
+
+        /**
+         * @param	 now	 value of System.nanoTime()
+         * @return 0 if the bucket admits a send, or the time until it does, in nanoseconds
+         */
+        synchronized long waitNanos(long now) {
+            refill(now);
+            return tokens > 0 ? 0 : (long)Math.ceil((1e-6 - tokens) / perNano);
+        }
+
+        /**
+         * @param	 cost	 number of tokens to take
+         * @param	 now	 value of System.nanoTime()
+         * @return False if the bucket was retired and has not been charged
+         */
+        synchronized boolean charge(int cost, long now) {
+            if (retired)
+                return false;
+            refill(now);
+            tokens -= cost;
+            return true;
+        }
+
+        /**
+         * Retires the bucket if it is full, i.e. as good as a new one.
+         * @param	 now	 value of System.nanoTime()
+         * @return True if the bucket was retired
+         */
+        synchronized boolean retireIfFull(long now) {
+            refill(now);
+            if (tokens >= burst)
+                retired = true;
+            return retired;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Bucket> senders = new ConcurrentHashMap<String, Bucket>();
+    private final ConcurrentHashMap<String, Bucket> groups = new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Number of deliveries waiting for a delivery worker
+     */
+    private final IntSupplier backlog;
+
+    private final Metrics metrics;
+
+    /**
+     * @param	 backlog	 number of deliveries waiting for a delivery worker
+     * @param	 metrics	 metrics to count throttled and shed sends in
+     */
+    Admission(IntSupplier backlog, Metrics metrics) {
+        this.backlog = backlog;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return True if any limit is configured
+     */
+    static boolean enabled() {
+        return SENDER_PER_SECOND > 0 || GROUP_PER_SECOND > 0 || SHED_BACKLOG > 0;
+    }
+
+    /**
+     * Decides whether to admit a send, and charges it if so.
+     *
+     * @param	 sender	 name of the sender's session, or null if the sender is unknown
+     * @param	 group	 name of the group sent to, or null for a user
+     * @param	 cost	 number of deliveries the send causes
+     * @return 0 if the send is admitted, or the time after which to retry it, in milliseconds
+     */
+    long admit(String sender, String group, int cost) {
+        if (SHED_BACKLOG > 0 && backlog.getAsInt() > SHED_BACKLOG) {
+            metrics.shed.increment();
+            return SHED_RETRY_MILLIS / 2 + ThreadLocalRandom.current().nextInt(SHED_RETRY_MILLIS);
+        }
+        long now = System.nanoTime();
+        Bucket fromSender = sender == null || SENDER_PER_SECOND <= 0 ? null :
+            senders.computeIfAbsent(sender, k -> new Bucket(SENDER_PER_SECOND, SENDER_BURST, now));
+        Bucket toGroup = group == null || GROUP_PER_SECOND <= 0 ? null :
+            groups.computeIfAbsent(group, k -> new Bucket(GROUP_PER_SECOND, GROUP_BURST, now));
+        long wait = Math.max(fromSender == null ? 0 : fromSender.waitNanos(now), toGroup == null ? 0 : toGroup.waitNanos(now));
+        if (wait > 0) {
+            metrics.throttled.increment();
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+        if (fromSender != null)
+            charge(senders, sender, fromSender, SENDER_PER_SECOND, SENDER_BURST, cost, now);
+        if (toGroup != null)
+            charge(groups, group, toGroup, GROUP_PER_SECOND, GROUP_BURST, cost, now);
+        return 0;
+    }
+
+    /**
+     * Charges a bucket, or the one that replaced it if {@link #sweep()}
+     * dropped it meanwhile. The bucket was full when it was dropped, so the
+     * decision to admit the send holds for its replacement as well.
+     */
+    private static void charge(ConcurrentHashMap<String, Bucket> buckets, String key, Bucket bucket,
+                               int perSecond, int burst, int cost, long now) {
+        while (!bucket.charge(cost, now))
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(perSecond, burst, now));
+    }
+
+    /**
+     * Drops the buckets that are full, so that the buckets of senders and
+     * groups that stopped sending do not add up. A bucket is retired before
+     * it is dropped, so that a send that looked it up just before is charged
+     * to its replacement instead of being lost with it.
+     */
+    void sweep() {
+        long now = System.nanoTime();
+        senders.forEach((key, bucket) -> {
+            if (bucket.retireIfFull(now))
+                senders.remove(key, bucket);
+        });
+        groups.forEach((key, bucket) -> {
+            if (bucket.retireIfFull(now))
+                groups.remove(key, bucket);
+        });
+    }
+
+    /**
+     * @return number of buckets in use
+     */
+    int buckets() {
+        return senders.size() + groups.size();
+    }
+}
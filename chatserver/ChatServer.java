@@ -33,6 +33,15 @@ public interface ChatServer extends Remote {
      */
     void login(String id, ClientCallback client) throws RemoteException;
 
+    /**
+     * Logs an account with the given name into the server, creating it if it does not exist yet
+     * @param	 id	 name of account to log in
+     * @param	 client	 reference to object with ClientCallback interface
+     * @return whether the account was created, logged in, or why not
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    LoginResult loginOrCreate(String id, ClientCallback client) throws RemoteException;
+
     /**
      * Logs out an account with the given name
      * @param	 id	 name of account to log out
@@ -40,6 +49,16 @@ public interface ChatServer extends Remote {
      */
     void logout(String id) throws RemoteException;
 
+    /**
+     * Renews the lease of the session logged in under the given name. Once a client has renewed its lease, the
+     * server ends its session (keeping its messages in a mailbox) if the lease is not renewed again before it
+     * runs out, so clients should renew well before then, e.g. after a third of the lease.
+     * @param	 id	 name of the account the client is logged in as
+     * @return duration of the lease in milliseconds, or 0 if no client is logged in under that name any more
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    long renewLease(String id) throws RemoteException;
+
     /**
      * Adds an account to the server
      * @param	 accountName	 name of account to add
@@ -78,6 +97,28 @@ public interface ChatServer extends Remote {
      */
     List<String> listGroups(String query) throws RemoteException;
 
+    /**
+     * Lists one page of the accounts on the server, in sorted order. Start with a null cursor and pass in the
+     * cursor of each page to get the next one, until a page comes back without a cursor.
+     * @param	 query	 query with wildcard to return a subset of all accounts
+     * @param	 cursor	 cursor returned with the previous page, or null to start at the beginning
+     * @param	 pageSize	 maximum number of names on the page
+     * @return the page
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    ListPage listAccountsPage(String query, String cursor, int pageSize) throws RemoteException;
+
+    /**
+     * Lists one page of the groups on the server, in sorted order. Works like
+     * {@link #listAccountsPage(String, String, int)}.
+     * @param	 query	 query with wildcard to return a subset of all groups
+     * @param	 cursor	 cursor returned with the previous page, or null to start at the beginning
+     * @param	 pageSize	 maximum number of names on the page
+     * @return the page
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    ListPage listGroupsPage(String query, String cursor, int pageSize) throws RemoteException;
+
     /**
      * Sends a message to a given client or group of clients
      * @param	 accountName	 name of account or group to send the message to
@@ -86,6 +127,25 @@ public interface ChatServer extends Remote {
      */
     void sendMessage(String accountName, String message) throws RemoteException;
 
+    /**
+     * Sends a message to a given client or group of clients and reports how it was handled
+     * @param	 sender	 name of the account sending the message
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @return how the message was handled
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    SendResult send(String sender, String accountName, String message) throws RemoteException;
+
+    /**
+     * Sends a message to all members of a group and reports how many members it reached
+     * @param	 groupName	 name of group to send the message to
+     * @param	 message	 message to send
+     * @return summary of the broadcast
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    FanoutSummary broadcastMessage(String groupName, String message) throws RemoteException;
+
     /**
      * Deletes an account from the server
      * @param	 accountName	 name of account to delete
@@ -94,4 +154,36 @@ public interface ChatServer extends Remote {
      */
     int deleteAccount(String accountName) throws RemoteException;
 
+    /**
+     * Finds the server an account lives on, when accounts are spread over a cluster of servers. Clients should
+     * connect to that server, which saves forwarding each of their calls to it.
+     * @param	 accountName	 name of the account
+     * @return address ("host:port") of the RMI registry of the server the account lives on, or null if the server
+     *         is not part of a cluster
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    String locate(String accountName) throws RemoteException;
+
+    /**
+     * Brings a client's cached copy of the directory of accounts and groups up to date. The client passes in the
+     * version it has; if nothing has changed since, the result holds no changes ("not modified"). Otherwise it holds
+     * the changes since that version, or, if the server does not have them any more, a snapshot of the whole
+     * directory. If the client is logged in under the given name, the server also pushes later changes to it
+     * through {@link ClientCallback#directoryChanged(DirectoryChanges)} until the session ends.
+     * @param	 id	 name of the account the client is logged in as, or null to only fetch the changes
+     * @param	 source	 {@link DirectoryChanges#source} of the cached copy, or 0 if there is none
+     * @param	 position	 {@link DirectoryChanges#position} of the cached copy
+     * @return the changes to apply to the copy
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    DirectoryChanges syncDirectory(String id, long source, long position) throws RemoteException;
+
+    /**
+     * Takes a snapshot of the server's metrics: call counts and latencies, fan-out sizes and durations, callback
+     * failures, mailbox depths and ages, and the numbers of online and offline accounts
+     * @return the snapshot
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    MetricsSnapshot getMetrics() throws RemoteException;
+
 }
@@ -0,0 +1,249 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A node's view of the cluster of servers it belongs to.
+ *
+ * The accounts are partitioned over the nodes by consistent hashing of their
+ * names, see {@link HashRing}. Every node holds the accounts it owns, users
+ * and groups alike, and a client may call any node: its {@link ClusterServer}
+ * forwards each call to the {@link ClusterNode} that owns the account, which
+ * handles it as a single server would. The members of a group may live on
+ * any node; a broadcast reaches them with one call per node.
+ *
+ * Nodes are addressed by their RMI registry, as "host:port". Each node runs
+ * its own registry, so several nodes can run on one host on different ports.
+ * When nodes are added, every node is told the new set of nodes, and hands
+ * the accounts it no longer owns over to their new owners.
+ */
+class Cluster {
+    /**
+     * Number of points per node on the hash ring. Configurable through the
+     * chatserver.cluster.virtualNodes system property; it must be the same on
+     * all nodes.
+     */
+    static final int VIRTUAL_NODES = Integer.getInteger("chatserver.cluster.virtualNodes", 128);
+
+    /**
+     * A call to a node
+     */
+    interface NodeCall<T> {
+        T apply(ClusterNode node) throws RemoteException;
+    }
+
+    /**
+     * Address of this node
+     */
+    final String self;
+
+    /**
+     * This node, called directly rather than over RMI
+     */
+    private final ClusterNode local;
+
+    private volatile HashRing ring;
+
+    /**
+     * Stubs of the other nodes, looked up when first needed
+     */
+    private final ConcurrentHashMap<String, ClusterNode> nodes = new ConcurrentHashMap<String, ClusterNode>();
+
+    /**
+     * @param	 self	 address of this node
+     * @param	 nodes	 addresses of all nodes, including this one
+     * @param	 local	 this node
+     */
+    Cluster(String self, List<String> nodes, ClusterNode local) {
+        this.self = self;
+        this.local = local;
+        setNodes(nodes);
+    }
+
+    /**
+     * @param	 nodes	 addresses of all nodes from now on
+     */
+    void setNodes(List<String> nodes) {
+        if (!nodes.contains(self))
+            throw new Error("The nodes do not include this node, " + self);
+        ring = new HashRing(nodes, VIRTUAL_NODES);
+    }
+
+    /**
+     * @return addresses of all nodes
+     */
+    List<String> nodes() {
+        return ring.nodes();
+    }
+
+    /**
+     * @param	 account	 name of an account
+     * @return address of the node that owns the account
+     */
+    String owner(String account) {
+        return ring.owner(account);
+    }
+
+    /**
+     * @param	 account	 name of an account
+     * @return True if this node owns the account
+     */
+    boolean owns(String account) {
+        return owner(account).equals(self);
+    }
+
+    /**
+     * @param	 address	 address of a node, "host:port", or just "host" for the default registry port
+     * @return the registry of the node
+     * @throws RemoteException if the address is malformed
+     */
+    static Registry registry(String address) throws RemoteException {
+        int colon = address.lastIndexOf(':');
+        try {
+            if (colon < 0)
+                return LocateRegistry.getRegistry(address);
+            return LocateRegistry.getRegistry(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new RemoteException("Not a node address: " + address);
+        }
+    }
+
+    /**
+     * @param	 address	 address of a node, "host:port"
+     * @return port of the node's registry
+     */
+    static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    private ClusterNode node(String address) throws RemoteException {
+        if (address.equals(self))
+            return local;
+        ClusterNode node = nodes.get(address);
+        if (node == null) {
+            try {
+                node = (ClusterNode)registry(address).lookup("ChatNode");
+            } catch (NotBoundException e) {
+                throw new RemoteException("No chat node registered at " + address, e);
+            }
+            nodes.put(address, node);
+        }
+        return node;
+    }
+
+    /**
+     * Calls a node. If the node was restarted since it was last called, it is
+     * looked up again; the call cannot have reached it in that case, so it is
+     * safe to retry. Errors the node threw are rethrown as such, so they reach
+     * the client as if the call had not been forwarded.
+     *
+     * @param	 address	 address of the node
+     * @param	 call	 the call
+     * @return the result of the call
+     * @throws RemoteException if the node could not be reached
+     */
+    <T> T call(String address, NodeCall<T> call) throws RemoteException {
+        try {
+            try {
+                return call.apply(node(address));
+            } catch (NoSuchObjectException | ConnectException e) {
+                if (nodes.remove(address) == null)
+                    throw e;
+                return call.apply(node(address));
+            }
+        } catch (ServerError e) {
+            throw (Error)e.getCause();
+        }
+    }
+
+    /**
+     * Sets a member of a group aside for {@link #deliverRemote} if it lives
+     * on another node.
+     *
+     * @param	 account	 name of the member
+     * @param	 elsewhere	 names of the members set aside so far, by the address of their node
+     * @return True if the member lives on another node
+     */
+    boolean route(String account, Map<String, List<String>> elsewhere) {
+        String owner = owner(account);
+        if (owner.equals(self))
+            return false;
+        elsewhere.computeIfAbsent(owner, k -> new ArrayList<String>()).add(account);
+        return true;
+    }
+
+    /**
+     * Delivers a message to the members of a group that live on other nodes,
+     * with one call per node. Members on a node that cannot be reached are
+     * counted as rejected.
+     *
+     * @param	 elsewhere	 names of the members, by the address of their node, see {@link #route}
+     * @param	 message	 message to deliver
+     * @param	 counts	 per status counts to add to, indexed by DeliveryStatus ordinal
+     */
+    void deliverRemote(Map<String, List<String>> elsewhere, String message, AtomicIntegerArray counts) {
+        for (Map.Entry<String, List<String>> node : elsewhere.entrySet()) {
+            try {
+                int[] delivered = call(node.getKey(), n -> n.deliverAll(node.getValue(), message));
+                for (int i = 0; i < delivered.length && i < counts.length(); i++)
+                    counts.addAndGet(i, delivered[i]);
+            } catch (RemoteException | RuntimeException e) {
+                counts.addAndGet(DeliveryStatus.REJECTED.ordinal(), node.getValue().size());
+            }
+        }
+    }
+
+    /**
+     * Delivers a message to an account on another node.
+     *
+     * @param	 account	 name of the account
+     * @param	 message	 message to deliver
+     * @return how the message was handled; REJECTED if the node could not be reached
+     */
+    DeliveryStatus deliver(String account, String message) {
+        int[] delivered = new int[0];
+        try {
+            delivered = call(owner(account), n -> n.deliverAll(List.of(account), message));
+        } catch (RemoteException | RuntimeException e) {
+            // Reported as rejected below
+        }
+        for (int i = 0; i < delivered.length; i++)
+            if (delivered[i] > 0)
+                return DeliveryStatus.values()[i];
+        return DeliveryStatus.REJECTED;
+    }
+
+    /**
+     * Checks that an account on another node may become a member of a group
+     *
+     * @param	 account	 name of the account
+     * @throws Error if there is no such account, it is a group, or its node could not be reached
+     */
+    void checkMember(String account) {
+        String owner = owner(account);
+        try {
+            if (!call(owner, n -> n.checkForAccount(account)))
+                throw new Error("No such account");
+            if (!call(owner, n -> n.isUserAccount(account)))
+                throw new Error("Cannot add one group to another");
+        } catch (RemoteException e) {
+            throw new Error("The server of account " + account + " is not reachable");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line tool to change the nodes of a cluster, see {@link Cluster}.
+ *
+ * To add a node, start it with the new list of nodes in
+ * chatserver.cluster.nodes, then run this tool with the same list. It tells
+ * every node about the new list, and each node hands the accounts that now
+ * belong to the new node over to it. Running it again with the same list is
+ * harmless, and retries accounts that could not be handed over before.
+ */
+public class ClusterAdmin {
+    /**
+     * @param	 args	 Takes the comma-separated addresses ("host:port") of all nodes as the first argument
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Syntax: ClusterAdmin host:port,host:port,...");
+            System.exit(1);
+        }
+        List<String> nodes = Arrays.asList(args[0].split(","));
+        int status = 0;
+        for (String node : nodes) {
+            try {
+                ClusterNode server = (ClusterNode)Cluster.registry(node).lookup("ChatNode");
+                System.out.println(node + ": handed over " + server.setNodes(nodes) + " accounts");
+            }
+            catch (Exception e) {
+                Throwable cause = e.getCause() instanceof Error ? e.getCause() : e;
+                System.out.println(node + ": " + cause.getMessage());
+                status = 1;
+            }
+        }
+        System.exit(status);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * The interface the nodes of a cluster call on each other, see {@link Cluster}.
+ *
+ * Each node registers a {@link NodeServer} as "ChatNode" in its own
+ * registry, which hands every call to the node's {@link Server}. Its
+ * {@link ChatServer} methods act on the accounts the node holds,
+ * without routing, so a call forwarded to the node that owns an account is
+ * never forwarded again. The methods added here are only used between nodes.
+ */
+public interface ClusterNode extends ChatServer {
+
+    /**
+     * Delivers a message to several user accounts held by this node, e.g. the
+     * members of a group on another node that live on this one.
+     * @param	 accountNames	 names of the accounts
+     * @param	 message	 message to deliver
+     * @return number of accounts the message was delivered with each status, indexed by {@link DeliveryStatus} ordinal
+     * @throws RemoteException on RMI failure
+     */
+    int[] deliverAll(List<String> accountNames, String message) throws RemoteException;
+
+    /**
+     * Checks if an account held by this node is a user account, i.e. not a group
+     * @param	 accountName	 account to check for
+     * @return True if account exists and is not a group, false otherwise
+     * @throws RemoteException on RMI failure
+     */
+    boolean isUserAccount(String accountName) throws RemoteException;
+
+    /**
+     * Removes an account deleted on another node from the groups held by this node.
+     * @param	 accountName	 name of the deleted account
+     * @throws RemoteException on RMI failure
+     */
+    void forgetMember(String accountName) throws RemoteException;
+
+    /**
+     * Takes over an account from another node, or adds to one taken over
+     * before: for a group, its members, for a user, the messages queued for it.
+     * @param	 accountName	 name of the account
+     * @param	 group	 whether the account is a group
+     * @param	 contents	 names of the members, or messages in the order they were sent
+     * @throws RemoteException on RMI failure
+     */
+    void adopt(String accountName, boolean group, List<String> contents) throws RemoteException;
+
+    /**
+     * Sends a message like {@link ChatServer#sendMessage(String, String)},
+     * for a client whose call another node took.
+     * @param	 session	 name the sender is rate limited by, as named by the node the client called
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @throws RemoteException on RMI failure
+     */
+    void sendMessageAs(String session, String accountName, String message) throws RemoteException;
+
+    /**
+     * Sends a message like {@link ChatServer#send(String, String, String)},
+     * for a client whose call another node took.
+     * @param	 session	 name the sender is rate limited by, as named by the node the client called
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @return how the message was handled, with a summary of the broadcast if the recipient is a group
+     * @throws RemoteException on RMI failure
+     */
+    SendResult sendAs(String session, String accountName, String message) throws RemoteException;
+
+    /**
+     * Broadcasts a message like {@link ChatServer#broadcastMessage(String, String)},
+     * for a client whose call another node took.
+     * @param	 session	 name the sender is rate limited by, as named by the node the client called
+     * @param	 groupName	 name of the group to send the message to
+     * @param	 message	 message to send
+     * @return summary of the broadcast
+     * @throws RemoteException on RMI failure
+     */
+    FanoutSummary broadcastMessageAs(String session, String groupName, String message) throws RemoteException;
+
+    /**
+     * Changes the nodes of the cluster, and hands the accounts that now
+     * belong to other nodes over to them.
+     * @param	 nodes	 addresses of all nodes of the cluster
+     * @return number of accounts handed over
+     * @throws RemoteException on RMI failure
+     */
+    int setNodes(List<String> nodes) throws RemoteException;
+}
@@ -0,0 +1,231 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The entry point of a cluster node for clients, registered as "ChatServer"
+ * in the node's registry.
+ *
+ * Every call concerning an account is forwarded to the node that owns the
+ * account, see {@link Cluster}, or handled by the local {@link Server} if
+ * that is this node. Listings are gathered from all nodes, and deleting an
+ * account removes it from the groups on all nodes. Clients may call
+ * {@link #locate(String)} to find the node of their account and call that
+ * node instead, which saves forwarding most of their calls.
+ */
+class ClusterServer implements ChatServer {
+    private final Server server;
+    private final Cluster cluster;
+
+    /**
+     * @param	 server	 the server of this node
+     * @param	 cluster	 the cluster the node belongs to
+     */
+    ClusterServer(Server server, Cluster cluster) {
+        this.server = server;
+        this.cluster = cluster;
+    }
+
+    private <T> T route(String account, Cluster.NodeCall<T> call) throws RemoteException {
+        return cluster.call(cluster.owner(account), call);
+    }
+
+    @Override
+    public Boolean checkForAccount(String accountName) throws RemoteException {
+        return route(accountName, node -> node.checkForAccount(accountName));
+    }
+
+    @Override
+    public void login(String id, ClientCallback client) throws RemoteException {
+        route(id, node -> {
+            node.login(id, client);
+            return null;
+        });
+    }
+
+    @Override
+    public LoginResult loginOrCreate(String id, ClientCallback client) throws RemoteException {
+        return route(id, node -> node.loginOrCreate(id, client));
+    }
+
+    @Override
+    public void logout(String id) throws RemoteException {
+        route(id, node -> {
+            node.logout(id);
+            return null;
+        });
+    }
+
+    @Override
+    public long renewLease(String id) throws RemoteException {
+        return route(id, node -> node.renewLease(id));
+    }
+
+    @Override
+    public void addAccount(String accountName) throws RemoteException {
+        route(accountName, node -> {
+            node.addAccount(accountName);
+            return null;
+        });
+    }
+
+    @Override
+    public void addGroup(String groupName) throws RemoteException {
+        route(groupName, node -> {
+            node.addGroup(groupName);
+            return null;
+        });
+    }
+
+    @Override
+    public void addGroupMember(String groupName, String accountName) throws RemoteException {
+        route(groupName, node -> {
+            node.addGroupMember(groupName, accountName);
+            return null;
+        });
+    }
+
+    /**
+     * Gathers a listing from all nodes
+     * @param	 list	 the listing of one node
+     * @return the names listed by all nodes, sorted
+     * @throws RemoteException if a node could not be reached
+     */
+    private List<String> listAll(Cluster.NodeCall<List<String>> list) throws RemoteException {
+        List<String> names = new ArrayList<String>();
+        for (String node : cluster.nodes())
+            names.addAll(cluster.call(node, list));
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public List<String> listAccounts(String query) throws RemoteException {
+        return listAll(node -> node.listAccounts(query));
+    }
+
+    @Override
+    public List<String> listGroups(String query) throws RemoteException {
+        return listAll(node -> node.listGroups(query));
+    }
+
+    /**
+     * Gathers a page of a listing from all nodes. Each node lists the names
+     * after the cursor on its own; the page consists of the first of all
+     * those names.
+     * @param	 pageSize	 maximum number of names on the page
+     * @param	 page	 the page of one node
+     * @return the page
+     * @throws RemoteException if a node could not be reached
+     */
+    private ListPage pageAll(int pageSize, Cluster.NodeCall<ListPage> page) throws RemoteException {
+        List<String> names = new ArrayList<String>();
+        boolean more = false;
+        for (String node : cluster.nodes()) {
+            ListPage part = cluster.call(node, page);
+            names.addAll(part.names);
+            more |= part.cursor != null;
+        }
+        Collections.sort(names);
+        int size = Math.max(1, Math.min(pageSize, Server.MAX_PAGE_SIZE));
+        if (names.size() > size) {
+            names = new ArrayList<String>(names.subList(0, size));
+            more = true;
+        }
+        return new ListPage(names, more && !names.isEmpty() ? Server.cursorAfter(names.get(names.size() - 1)) : null);
+    }
+
+    @Override
+    public ListPage listAccountsPage(String query, String cursor, int pageSize) throws RemoteException {
+        return pageAll(pageSize, node -> node.listAccountsPage(query, cursor, pageSize));
+    }
+
+    @Override
+    public ListPage listGroupsPage(String query, String cursor, int pageSize) throws RemoteException {
+        return pageAll(pageSize, node -> node.listGroupsPage(query, cursor, pageSize));
+    }
+
+    /**
+     * Sends are rate limited by the session they come from, which only this
+     * node can tell, see {@link Server#session(String)}, so it is named here
+     * and passed on with the call.
+     */
+    @Override
+    public void sendMessage(String accountName, String message) throws RemoteException {
+        String session = server.session(null);
+        route(accountName, node -> {
+            node.sendMessageAs(session, accountName, message);
+            return null;
+        });
+    }
+
+    @Override
+    public SendResult send(String sender, String accountName, String message) throws RemoteException {
+        String session = server.session(sender);
+        return route(accountName, node -> node.sendAs(session, accountName, message));
+    }
+
+    @Override
+    public FanoutSummary broadcastMessage(String groupName, String message) throws RemoteException {
+        String session = server.session(null);
+        return route(groupName, node -> node.broadcastMessageAs(session, groupName, message));
+    }
+
+    /**
+     * Deletes an account on its node, and removes it from the groups on all
+     * other nodes. Nodes that cannot be reached keep it in their groups, where
+     * it is skipped by broadcasts.
+     */
+    @Override
+    public int deleteAccount(String accountName) throws RemoteException {
+        int result = route(accountName, node -> node.deleteAccount(accountName));
+        if (result == 0) {
+            for (String other : cluster.nodes()) {
+                if (other.equals(cluster.owner(accountName)))
+                    continue;
+                try {
+                    cluster.call(other, node -> {
+                        node.forgetMember(accountName);
+                        return null;
+                    });
+                } catch (RemoteException e) {
+                    // See above
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String locate(String accountName) {
+        return cluster.owner(accountName);
+    }
+
+    /**
+     * The directory of a cluster is spread over its nodes, so clients cannot
+     * keep a copy of it; they list page by page instead.
+     * @throws Error always
+     */
+    @Override
+    public DirectoryChanges syncDirectory(String id, long source, long position) {
+        throw new Error("The directory of a cluster cannot be cached. List it page by page instead.");
+    }
+
+    /**
+     * @return the metrics of this node
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return server.getMetrics();
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's pool of delivery workers, which drain the {@link Outbox}es of
+ * logged in clients, with priorities.
+ *
+ * Every drain is queued in one of the classes of {@link Priority}, by the
+ * most urgent message its Outbox holds, so that a direct message does not
+ * wait behind the thousands of drains a broadcast to a large group queues.
+ * The workers pick among the classes by weighted fair queueing: each class
+ * gets a share of the drains proportional to its weight while it has any
+ * queued, in the manner of stride scheduling. A class that was idle joins
+ * at the current virtual time rather than with the credit it saved up, so
+ * it cannot crowd out the others when it becomes busy.
+ *
+ * Within a class, each drain belongs to the sender whose message queued it,
+ * and the senders with drains queued take turns, each starting its drains
+ * in the order they were queued. So a sender that queues a drain for each
+ * of thousands of recipients, e.g. by sending each of them a direct
+ * message, delays another sender's message by one drain, not thousands.
+ * Drains queued for no sender in particular, e.g. to replay a mailbox, are
+ * each a sender of their own.
+ *
+ * Since every class with drains queued gets its share, none starves.
+ * Beyond that, a drain that has waited for more than MAX_WAIT_MILLIS is
+ * started next, whatever its class, which bounds the wait of the lowest
+ * classes when the higher ones keep all workers busy.
+ */
+final class DeliveryScheduler {
+    /**
+     * The classes of deliveries, most urgent first.
+     */
+    enum Priority {
+        /**
+         * A message to a single user
+         */
+        DIRECT("direct", 8),
+        /**
+         * A message broadcast to a group of fewer than LARGE_GROUP members
+         */
+        SMALL_GROUP("smallGroup", 4),
+        /**
+         * A message broadcast to a larger group, or other bulk work
+         */
+        LARGE_BROADCAST("largeBroadcast", 2),
+        /**
+         * Messages delivered again after the client logged in anew
+         */
+        MAILBOX_REPLAY("mailboxReplay", 1);
+
+        /**
+         * Name of the class in metrics
+         */
+        final String label;
+
+        /**
+         * Share of the drains the class gets
+         */
+        final int weight;
+
+        Priority(String label, int weight) {
+            this.label = label;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Smallest group whose broadcasts are LARGE_BROADCAST. Configurable
+     * through the chatserver.delivery.largeGroup system property.
+     */
+    static final int LARGE_GROUP = Integer.getInteger("chatserver.delivery.largeGroup", 100);
+
+    /**
+     * Longest time, in milliseconds, a drain waits before it is started
+     * regardless of its class. Configurable through the
+     * chatserver.delivery.maxWaitMillis system property.
+     */
+    static final long MAX_WAIT_MILLIS = Long.getLong("chatserver.delivery.maxWaitMillis", 1000);
+
+    /**
+     * Virtual time a class with weight 1 advances by per drain
+     */
+    private static final long STRIDE = 1 << 20;
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * The queued drains of each class, with the value of System.nanoTime()
+     * when they were queued, in that order
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LinkedHashMap<Runnable, Long>[] queues = new LinkedHashMap[PRIORITIES.length];
+
+    /**
+     * The queued drains of each class by sender, in the order the senders
+     * take turns, each sender's in the order they were queued
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LinkedHashMap<Object, ArrayDeque<Runnable>>[] senders = new LinkedHashMap[PRIORITIES.length];
+
+    /**
+     * The sender each queued drain belongs to
+     */
+    private final HashMap<Runnable, Object> senderOf = new HashMap<Runnable, Object>();
+
+    /**
+     * Virtual time at which each class is due next
+     */
+    private final long[] pass = new long[PRIORITIES.length];
+
+    /**
+     * Virtual time of the class picked last
+     */
+    private long virtualTime;
+
+    /**
+     * Number of drains queued in all classes
+     */
+    private int size;
+
+    private final Metrics metrics;
+
+    /**
+     * @param	 threads	 number of workers
+     * @param	 metrics	 metrics to record the time drains wait in
+     */
+    DeliveryScheduler(int threads, Metrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new LinkedHashMap<Runnable, Long>();
+            senders[i] = new LinkedHashMap<Object, ArrayDeque<Runnable>>();
+        }
+        for (int i = 0; i < threads; i++) {
+            // Daemons, so that they never keep the server alive by themselves
+            Thread t = new Thread(this::work, "chatserver-delivery");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * @param	 members	 number of members of a group
+     * @return the class of a broadcast to the group
+     */
+    static Priority forGroup(int members) {
+        return members < LARGE_GROUP ? Priority.SMALL_GROUP : Priority.LARGE_BROADCAST;
+    }
+
+    /**
+     * Queues a task for a worker, for no sender in particular.
+     *
+     * @param	 task	 the task
+     * @param	 priority	 class of the task
+     */
+    void execute(Runnable task, Priority priority) {
+        execute(task, priority, null);
+    }
+
+    /**
+     * Queues a task for a worker. A task that is queued already stays in
+     * the class it is queued in, and with its sender.
+     *
+     * @param	 task	 the task
+     * @param	 priority	 class of the task
+     * @param	 sender	 the sender the task belongs to, or null for none in particular
+     */
+    synchronized void execute(Runnable task, Priority priority, Object sender) {
+        if (senderOf.containsKey(task))
+            return;
+        add(task, priority, sender == null ? task : sender, System.nanoTime());
+        notify();
+    }
+
+    /**
+     * Moves a task that is still queued to a more urgent class, keeping the
+     * time it has waited, as a task of the sender that made it more urgent.
+     * Does nothing if it is not queued, e.g. because a worker has started it.
+     *
+     * @param	 task	 the task
+     * @param	 priority	 the more urgent class
+     * @param	 sender	 the sender the task now belongs to, or null for none in particular
+     */
+    synchronized void promote(Runnable task, Priority priority, Object sender) {
+        for (int i = priority.ordinal() + 1; i < queues.length; i++) {
+            Long queuedAt = queues[i].get(task);
+            if (queuedAt != null) {
+                remove(task, i);
+                add(task, priority, sender == null ? task : sender, queuedAt);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for a worker
+     */
+    synchronized int queued() {
+        return size;
+    }
+
+    /**
+     * @param	 priority	 a class
+     * @return number of tasks of the class waiting for a worker
+     */
+    synchronized int queued(Priority priority) {
+        return queues[priority.ordinal()].size();
+    }
+
+    private void add(Runnable task, Priority priority, Object sender, long queuedAt) {
+        int i = priority.ordinal();
+        if (queues[i].isEmpty())
+            pass[i] = Math.max(pass[i], virtualTime);
+        queues[i].put(task, queuedAt);
+        senders[i].computeIfAbsent(sender, s -> new ArrayDeque<Runnable>()).add(task);
+        senderOf.put(task, sender);
+        size++;
+    }
+
+    /**
+     * Removes a queued task from its class.
+     *
+     * @return value of System.nanoTime() when the task was queued
+     */
+    private long remove(Runnable task, int i) {
+        Object sender = senderOf.remove(task);
+        ArrayDeque<Runnable> queued = senders[i].get(sender);
+        queued.remove(task);
+        if (queued.isEmpty())
+            senders[i].remove(sender);
+        size--;
+        return queues[i].remove(task);
+    }
+
+    /**
+     * Waits for a task and takes the one to start next.
+     *
+     * @return the task
+     * @throws InterruptedException if the worker was interrupted while waiting
+     */
+    private synchronized Runnable take() throws InterruptedException {
+        while (size == 0)
+            wait();
+        long now = System.nanoTime();
+        // A drain that waited too long goes first, the oldest of them if several did
+        long oldest = now - TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+        int next = -1;
+        Runnable task = null;
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].isEmpty())
+                continue;
+            Map.Entry<Runnable, Long> head = queues[i].entrySet().iterator().next();
+            if (head.getValue() - oldest < 0) {
+                oldest = head.getValue();
+                next = i;
+                task = head.getKey();
+            }
+        }
+        if (next < 0) {
+            for (int i = 0; i < queues.length; i++)
+                if (!queues[i].isEmpty() && (next < 0 || pass[i] < pass[next]))
+                    next = i;
+            // The next sender's turn, who goes to the back of the line
+            Iterator<Map.Entry<Object, ArrayDeque<Runnable>>> turn = senders[next].entrySet().iterator();
+            Map.Entry<Object, ArrayDeque<Runnable>> sender = turn.next();
+            task = sender.getValue().peek();
+            if (sender.getValue().size() > 1) {
+                turn.remove();
+                senders[next].put(sender.getKey(), sender.getValue());
+            }
+        }
+        long queuedAt = remove(task, next);
+        virtualTime = Math.max(virtualTime, pass[next]);
+        pass[next] += STRIDE / PRIORITIES[next].weight;
+        metrics.deliveryWait[next].record(now - queuedAt);
+        return task;
+    }
+
+    /**
+     * Worker loop. Tasks handle their own failures, e.g. an Outbox counts
+     * them as failed deliveries; an exception that escapes a task anyway is
+     * logged and counted, and the worker goes on with the next task.
+     */
+    private void work() {
+        while (true) {
+            Runnable task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                e.printStackTrace(System.out);
+                metrics.taskFailures.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+/**
+ * The outcome of handing a message to a single account.
+ */
+public enum DeliveryStatus {
+    /**
+     * The recipient is logged in and the message was queued for delivery to its client.
+     */
+    ONLINE,
+    /**
+     * The recipient is offline and the message was stored in its mailbox.
+     */
+    STORED,
+    /**
+     * The recipient is offline and its mailbox is full, so the message was not stored.
+     */
+    REJECTED,
+    /**
+     * The recipient is a group and the message was broadcast to its members.
+     */
+    BROADCAST,
+    /**
+     * There is no account with the given name.
+     */
+    NO_SUCH_ACCOUNT,
+    /**
+     * The server did not admit the message, because the sender or the group sent too many, or the server is
+     * overloaded. It may be sent again after {@link SendResult#retryAfterMillis}.
+     */
+    THROTTLED
+}
@@ -0,0 +1,391 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+/**
+ * A sorted index of account names, used to answer listAccounts and listGroups.
+ *
+ * User accounts and groups are kept in separate sorted sets, so a listing
+ * never has to look at accounts of the other kind. A query is a regular
+ * expression that has to match the whole name. Before any regular
+ * expression is evaluated, the literal prefix of the query (e.g. "abc" for
+ * "abc.*" or "abc[0-9]+") is used to narrow the listing down to the range of
+ * names starting with that prefix. Queries that are just a literal name, or a
+ * literal prefix followed by ".*", are answered from the index alone.
+ *
+ * Compiled patterns are cached. Queries without a literal prefix have to
+ * look at every name, and are matched in parallel once the directory is
+ * large enough to make that worthwhile.
+ *
+ * The latest changes to the index are kept in a ring, from which read
+ * replicas follow it, see {@link #changesSince(long, long, long)}.
+ */
+public class Directory {
+    /**
+     * Maximum number of compiled patterns kept in the cache.
+     */
+    private static final int PATTERN_CACHE_SIZE = 1024;
+
+    /**
+     * Number of names from which on a query without a literal prefix is
+     * matched in parallel. Configurable through the chatserver.directory.parallelThreshold
+     * system property.
+     */
+    static final int PARALLEL_THRESHOLD = Integer.getInteger("chatserver.directory.parallelThreshold", 65536);
+
+    /**
+     * Maximum number of names looked at for one page of a listing.
+     * Configurable through the chatserver.directory.pageScan system property.
+     */
+    static final int PAGE_SCAN = Math.max(1, Integer.getInteger("chatserver.directory.pageScan", 65536));
+
+    /**
+     * Characters that have a special meaning in a regular expression
+     */
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    /**
+     * Names of all user accounts, sorted
+     */
+    private final ConcurrentSkipListSet<String> users = new ConcurrentSkipListSet<String>();
+
+    /**
+     * Names of all groups, sorted
+     */
+    private final ConcurrentSkipListSet<String> groups = new ConcurrentSkipListSet<String>();
+
+    /**
+     * Number of user accounts and groups, since the size of a
+     * ConcurrentSkipListSet takes linear time to compute
+     */
+    private final AtomicInteger userCount = new AtomicInteger(), groupCount = new AtomicInteger();
+
+    /**
+     * Compiled patterns by query
+     */
+    private final ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+
+    /**
+     * Number of the latest changes kept for replicas. A replica that falls
+     * further behind starts over from a snapshot. Configurable through the
+     * chatserver.replica.changeLogSize system property.
+     */
+    static final int CHANGE_LOG_SIZE = Math.max(1, Integer.getInteger("chatserver.replica.changeLogSize", 65536));
+
+    /**
+     * Maximum number of changes handed to a replica at once
+     */
+    private static final int CHANGE_BATCH = 8192;
+
+    /**
+     * Identifies this index to replicas, see {@link DirectoryChanges#source}
+     */
+    private final long source = ThreadLocalRandom.current().nextLong() | 1;
+
+    /**
+     * Names and kinds of the latest changes, at their position modulo
+     * CHANGE_LOG_SIZE. Guarded by the Directory's monitor.
+     */
+    private final String[] changedNames = new String[CHANGE_LOG_SIZE];
+    private final byte[] changeKinds = new byte[CHANGE_LOG_SIZE];
+
+    /**
+     * Number of changes made so far. Guarded by the Directory's monitor.
+     */
+    private long changes;
+
+    /**
+     * Adds an account name to the index
+     * @param	 name	 name of the account
+     * @param	 group	 whether the account is a group
+     */
+    public void add(String name, boolean group) {
+        synchronized (this) {
+            if ((group ? groups : users).add(name)) {
+                (group ? groupCount : userCount).incrementAndGet();
+                logChange(name, group ? DirectoryChanges.ADDED_GROUP : DirectoryChanges.ADDED_USER);
+            }
+        }
+    }
+
+    /**
+     * Removes an account name from the index
+     * @param	 name	 name of the account
+     * @param	 group	 whether the account is a group
+     */
+    public void remove(String name, boolean group) {
+        synchronized (this) {
+            if ((group ? groups : users).remove(name)) {
+                (group ? groupCount : userCount).decrementAndGet();
+                logChange(name, group ? DirectoryChanges.REMOVED_GROUP : DirectoryChanges.REMOVED_USER);
+            }
+        }
+    }
+
+    /**
+     * Records a change in the ring and wakes up replicas waiting for one.
+     * Called while holding the Directory's monitor, together with the change
+     * itself, so that every change before a position is in the sets.
+     */
+    private void logChange(String name, byte kind) {
+        int slot = (int)(changes % CHANGE_LOG_SIZE);
+        changedNames[slot] = name;
+        changeKinds[slot] = kind;
+        changes++;
+        notifyAll();
+    }
+
+    /**
+     * @param	 name	 name of an account
+     * @return True if the index holds a user account or group of that name
+     */
+    public boolean contains(String name) {
+        return users.contains(name) || groups.contains(name);
+    }
+
+    /**
+     * @param	 group	 True to count groups, false to count user accounts
+     * @return the number of names of that kind
+     */
+    public int size(boolean group) {
+        return (group ? groupCount : userCount).get();
+    }
+
+    /**
+     * @return number of changes made to the index so far
+     */
+    public synchronized long changeCount() {
+        return changes;
+    }
+
+    /**
+     * @return the source of the directory's changes, see {@link DirectoryChanges#source}
+     */
+    public long source() {
+        return source;
+    }
+
+    /**
+     * Hands the changes after a position to a replica, see
+     * {@link ReplicationSource#directoryChanges(long, long, long)}.
+     *
+     * A snapshot is taken without holding the monitor. It holds every change
+     * before the position it is returned with, and possibly some after it;
+     * the replica applies those again, in order, with the next batch.
+     *
+     * @param	 source	 source of the changes the replica has
+     * @param	 position	 position after the last change the replica has
+     * @param	 waitMillis	 maximum time to wait for a change
+     * @return the changes
+     */
+    public DirectoryChanges changesSince(long source, long position, long waitMillis) {
+        long snapshotAt;
+        synchronized (this) {
+            if (source == this.source && position == changes && waitMillis > 0) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                long remaining;
+                while (position == changes && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            if (source == this.source && position >= 0 && position <= changes && changes - position <= CHANGE_LOG_SIZE) {
+                int count = (int)Math.min(changes - position, CHANGE_BATCH);
+                String[] names = new String[count];
+                byte[] kinds = new byte[count];
+                for (int i = 0; i < count; i++) {
+                    int slot = (int)((position + i) % CHANGE_LOG_SIZE);
+                    names[i] = changedNames[slot];
+                    kinds[i] = changeKinds[slot];
+                }
+                return new DirectoryChanges(this.source, position + count, false, names, kinds);
+            }
+            snapshotAt = changes;
+        }
+        List<String> names = new ArrayList<String>(userCount.get() + groupCount.get());
+        names.addAll(users);
+        int groupsFrom = names.size();
+        names.addAll(groups);
+        byte[] kinds = new byte[names.size()];
+        for (int i = groupsFrom; i < kinds.length; i++)
+            kinds[i] = DirectoryChanges.ADDED_GROUP;
+        return new DirectoryChanges(this.source, snapshotAt, true, names.toArray(new String[0]), kinds);
+    }
+
+    /**
+     * Hands a client everything it needs to catch up with the directory, see
+     * {@link ChatServer#syncDirectory(String, long, long)}: the changes after
+     * a position if they fit in one batch, and a snapshot otherwise.
+     *
+     * @param	 source	 source of the changes the client has, or 0 if it has none
+     * @param	 position	 position after the last change the client has
+     * @return the changes
+     */
+    public DirectoryChanges catchUp(long source, long position) {
+        DirectoryChanges changes = changesSince(source, position, 0);
+        if (!changes.snapshot && changes.names.length == CHANGE_BATCH)
+            return changesSince(0, 0, 0);
+        return changes;
+    }
+
+    /**
+     * Applies a batch of changes from another server's directory, as a
+     * replica of it. A snapshot has to be applied to a new, empty Directory.
+     *
+     * @param	 batch	 the changes
+     */
+    public void apply(DirectoryChanges batch) {
+        for (int i = 0; i < batch.names.length; i++) {
+            byte kind = batch.kinds[i];
+            boolean group = (kind & DirectoryChanges.ADDED_GROUP) != 0;
+            if ((kind & DirectoryChanges.REMOVED_USER) != 0)
+                remove(batch.names[i], group);
+            else
+                add(batch.names[i], group);
+        }
+    }
+
+    /**
+     * Lists the names of all user accounts or groups matching a query
+     * @param	 query	 regular expression the whole name has to match, or the empty string to match all names
+     * @param	 group	 True to list groups, false to list user accounts
+     * @return the matching names, sorted
+     * @throws Error if the query is not a valid regular expression
+     */
+    public List<String> list(String query, boolean group) {
+        NavigableSet<String> names = group ? groups : users;
+        if (query.isEmpty() || query.equals(".*"))
+            return new ArrayList<String>(names);
+        String prefix = literalPrefix(query);
+        if (prefix.length() == query.length())
+            return names.contains(query) ? List.of(query) : List.of();
+        NavigableSet<String> candidates = prefix.isEmpty() ? names : names.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+        if (query.length() == prefix.length() + 2 && query.endsWith(".*"))
+            return new ArrayList<String>(candidates);
+        Pattern pattern = compile(query);
+        if (prefix.isEmpty() && (group ? groupCount : userCount).get() >= PARALLEL_THRESHOLD)
+            return candidates.parallelStream()
+                .filter(name -> pattern.matcher(name).matches())
+                .collect(Collectors.toList());
+        List<String> matches = new ArrayList<String>();
+        for (String name : candidates)
+            if (pattern.matcher(name).matches())
+                matches.add(name);
+        return matches;
+    }
+
+    /**
+     * Lists one page of the names of all user accounts or groups matching a query.
+     *
+     * At most {@link #PAGE_SCAN} names are looked at per page, so a page
+     * for a query that matches few names may come back short, or even
+     * empty, before the listing is complete.
+     *
+     * @param	 query	 regular expression the whole name has to match, or the empty string to match all names
+     * @param	 group	 True to list groups, false to list user accounts
+     * @param	 after	 the last name of the previous page, or null to start at the beginning
+     * @param	 limit	 maximum number of names on the page, at least 1
+     * @param	 cursor	 receives the name to continue after, or null if the listing is complete
+     * @return the matching names, sorted
+     * @throws Error if the query is not a valid regular expression
+     */
+    public List<String> page(String query, boolean group, String after, int limit, String[] cursor) {
+        NavigableSet<String> names = group ? groups : users;
+        String prefix = literalPrefix(query);
+        if (prefix.length() == query.length() && !query.isEmpty()) {
+            cursor[0] = null;
+            return (after == null || after.compareTo(query) < 0) && names.contains(query) ? List.of(query) : List.of();
+        }
+        Predicate<String> matches;
+        if (query.isEmpty() || query.equals(".*"))
+            matches = name -> true;
+        else if (query.length() == prefix.length() + 2 && query.endsWith(".*"))
+            matches = name -> true;
+        else
+            matches = compile(query).asMatchPredicate();
+        NavigableSet<String> candidates;
+        boolean fromPrefix = after == null || after.compareTo(prefix) < 0;
+        if (prefix.isEmpty())
+            candidates = fromPrefix ? names : names.tailSet(after, false);
+        else if (fromPrefix || after.compareTo(prefix + Character.MAX_VALUE) < 0)
+            candidates = names.subSet(fromPrefix ? prefix : after, fromPrefix, prefix + Character.MAX_VALUE, false);
+        else
+            candidates = Collections.emptyNavigableSet();
+        List<String> page = new ArrayList<String>();
+        int scanned = 0;
+        String last = null;
+        cursor[0] = null;
+        for (String name : candidates) {
+            if (page.size() == limit || scanned == PAGE_SCAN) {
+                // Every name up to the last one looked at has been dealt with
+                cursor[0] = last;
+                break;
+            }
+            scanned++;
+            last = name;
+            if (matches.test(name))
+                page.add(name);
+        }
+        return page;
+    }
+
+    /**
+     * Looks up a compiled pattern in the cache, compiling it if necessary.
+     * The cache is simply emptied when it becomes full.
+     */
+    private Pattern compile(String query) {
+        Pattern pattern = patterns.get(query);
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(query);
+            } catch (PatternSyntaxException e) {
+                throw new Error("Invalid query: " + e.getDescription());
+            }
+            if (patterns.size() >= PATTERN_CACHE_SIZE)
+                patterns.clear();
+            patterns.put(query, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * Determines a string every name matching the query has to start with.
+     *
+     * @param	 query	 a regular expression
+     * @return the literal characters at the start of the query, not counting a
+     *         character that is followed by a quantifier; the whole query if it
+     *         contains no special characters at all; or the empty string if the
+     *         query contains an alternation, which could match other prefixes
+     */
+    static String literalPrefix(String query) {
+        if (query.indexOf('|') >= 0)
+            return "";
+        int end = 0;
+        while (end < query.length() && META.indexOf(query.charAt(end)) < 0)
+            end++;
+        if (end < query.length() && end > 0 && "?*+{".indexOf(query.charAt(end)) >= 0)
+            end--;
+        return query.substring(0, end);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.Serializable;
+
+/**
+ * A batch of changes to a server's directory of accounts, returned by
+ * {@link ReplicationSource#directoryChanges(long, long, long)}.
+ *
+ * Changes are numbered by their position in the order the primary made
+ * them. A batch either continues where the replica left off, or is a
+ * snapshot listing every account as added, which replaces everything the
+ * replica had.
+ */
+public class DirectoryChanges implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Kinds of changes. The low bit is set for groups, the next for removals.
+     */
+    public static final byte ADDED_USER = 0, ADDED_GROUP = 1, REMOVED_USER = 2, REMOVED_GROUP = 3;
+
+    /**
+     * Identifies the directory the changes come from. It is different every
+     * time the primary starts, so positions from different runs are never mixed up.
+     */
+    public final long source;
+
+    /**
+     * Position after the last change in this batch, to ask for the next batch with
+     */
+    public final long position;
+
+    /**
+     * True if this batch lists every account as of {@link #position}
+     */
+    public final boolean snapshot;
+
+    /**
+     * Names of the accounts changed, in the order of the changes
+     */
+    public final String[] names;
+
+    /**
+     * Kinds of the changes, one of ADDED_USER, ADDED_GROUP, REMOVED_USER and REMOVED_GROUP
+     */
+    public final byte[] kinds;
+
+    public DirectoryChanges(long source, long position, boolean snapshot, String[] names, byte[] kinds) {
+        this.source = source;
+        this.position = position;
+        this.snapshot = snapshot;
+        this.names = names;
+        this.kinds = kinds;
+    }
+
+    /**
+     * @param	 source	 source of the changes a copy of the directory has
+     * @param	 position	 position after the last change the copy has
+     * @return True if this batch carries on from there, i.e. can be applied to the copy
+     */
+    public boolean follows(long source, long position) {
+        return !snapshot && this.source == source && this.position - names.length == position;
+    }
+}
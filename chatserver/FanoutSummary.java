@@ -0,0 +1,68 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.Serializable;
+
+/**
+ * Summary of a group broadcast, returned to the sender by
+ * {@link ChatServer#broadcastMessage(String, String)}.
+ *
+ * Every member of the group at the time of the broadcast is counted exactly
+ * once, in one of online, stored, failed or pending.
+ */
+public class FanoutSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of members the message was addressed to
+     */
+    public final int members;
+    /**
+     * Number of members the message was queued for immediately, because they are logged in
+     */
+    public final int online;
+    /**
+     * Number of members the message was stored in a mailbox for
+     */
+    public final int stored;
+    /**
+     * Number of members the message could not be delivered to, e.g. because they were deleted meanwhile
+     * or their mailbox is full
+     */
+    public final int failed;
+    /**
+     * Number of members the fan-out had not reached yet when the sender stopped waiting.
+     * The message will still be delivered to these.
+     */
+    public final int pending;
+    /**
+     * Time the sender spent on the fan-out, in milliseconds
+     */
+    public final long millis;
+
+    public FanoutSummary(int members, int online, int stored, int failed, int pending, long millis) {
+        this.members = members;
+        this.online = online;
+        this.stored = stored;
+        this.failed = failed;
+        this.pending = pending;
+        this.millis = millis;
+    }
+
+    /**
+     * @return True if the message reached (or will reach) every member
+     */
+    public boolean isComplete() {
+        return failed == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Sent to " + members + " members in " + millis + " ms: " + online + " online, " +
+            stored + " stored, " + failed + " failed, " + pending + " still in progress";
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary frame format spoken by {@link NioServer} and its client,
+ * chatclient.NioChatServer.
+ *
+ * Every frame starts with its length (an int, not counting the length
+ * itself), followed by an opcode byte and an int request id. A request
+ * carries one of the request opcodes and a fresh id; the server answers with
+ * a RESULT or ERROR frame carrying the same id. DELIVER frames push a message
+ * to the client and carry id 0. A SEQUENCE frame announces that the next
+ * DELIVER frames are numbered, see
+ * chatclient.ClientCallback#receiveSequenced, and the client acknowledges
+ * them with an ACK frame, which gets no response. DIRECTORY frames push
+ * changes to the directory, see chatclient.ClientCallback#directoryChanged,
+ * and also carry id 0.
+ *
+ * Payloads are sequences of bytes, ints, longs, strings (an int length
+ * followed by UTF-8, or length -1 for null) and lists of strings (an int
+ * count followed by the strings).
+ */
+public final class Frames {
+    /**
+     * Size of the header of a frame: length, opcode and request id.
+     */
+    public static final int HEADER_BYTES = 4 + 1 + 4;
+
+    /**
+     * Maximum length of a frame. Configurable through the
+     * chatserver.nio.maxFrameBytes system property.
+     */
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("chatserver.nio.maxFrameBytes", 4 << 20);
+
+    /**
+     * Maximum length of a message, in bytes of UTF-8, so that its DELIVER
+     * frame is no longer than MAX_FRAME_BYTES. The server rejects longer
+     * messages on every front end, see {@link #fits(String)}.
+     */
+    public static final int MAX_MESSAGE_BYTES = MAX_FRAME_BYTES - (HEADER_BYTES - 4) - 4;
+
+    /**
+     * Default port of the NIO front end.
+     */
+    public static final int DEFAULT_PORT = 4096;
+
+    // Requests, one per ChatServer operation
+    public static final byte CHECK_FOR_ACCOUNT = 1;
+    public static final byte LOGIN = 2;
+    public static final byte LOGIN_OR_CREATE = 3;
+    public static final byte LOGOUT = 4;
+    public static final byte ADD_ACCOUNT = 5;
+    public static final byte LIST = 6;
+    public static final byte ADD_GROUP = 7;
+    public static final byte ADD_GROUP_MEMBER = 8;
+    public static final byte LIST_PAGE = 9;
+    public static final byte SEND_MESSAGE = 10;
+    public static final byte SEND = 11;
+    public static final byte BROADCAST = 12;
+    public static final byte DELETE_ACCOUNT = 13;
+    public static final byte ACK = 14;
+    public static final byte RENEW_LEASE = 15;
+    public static final byte GET_METRICS = 16;
+    public static final byte LOCATE = 17;
+    public static final byte SYNC_DIRECTORY = 18;
+
+    // Responses and pushes
+    public static final byte RESULT = 64;
+    public static final byte ERROR = 65;
+    public static final byte DELIVER = 66;
+    public static final byte SEQUENCE = 67;
+    public static final byte DIRECTORY = 68;
+
+    private Frames() {
+    }
+
+    /**
+     * Builds a frame in a growable buffer.
+     */
+    public static class Encoder {
+        private final int id;
+        private ByteBuffer buffer;
+
+        /**
+         * Starts a frame.
+         * @param	 op	 opcode of the frame
+         * @param	 id	 request id of the frame
+         */
+        public Encoder(byte op, int id) {
+            this(op, id, 64);
+        }
+
+        /**
+         * Starts a frame.
+         * @param	 op	 opcode of the frame
+         * @param	 id	 request id of the frame
+         * @param	 sizeHint	 expected size of the payload in bytes
+         */
+        public Encoder(byte op, int id, int sizeHint) {
+            this.id = id;
+            buffer = ByteBuffer.allocate(HEADER_BYTES + sizeHint);
+            buffer.putInt(0).put(op).putInt(id);
+        }
+
+        /**
+         * @return the request id of the frame
+         */
+        public int getId() {
+            return id;
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                buffer = grown.put(buffer);
+            }
+        }
+
+        public Encoder putByte(int value) {
+            ensure(1);
+            buffer.put((byte)value);
+            return this;
+        }
+
+        public Encoder putBoolean(boolean value) {
+            return putByte(value ? 1 : 0);
+        }
+
+        public Encoder putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public Encoder putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public Encoder putString(String value) {
+            if (value == null)
+                return putInt(-1);
+            return putUtf8(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Puts a string that has already been encoded as UTF-8.
+         */
+        public Encoder putUtf8(byte[] utf8) {
+            ensure(4 + utf8.length);
+            buffer.putInt(utf8.length).put(utf8);
+            return this;
+        }
+
+        public Encoder putStrings(List<String> values) {
+            putInt(values.size());
+            for (String value : values)
+                putString(value);
+            return this;
+        }
+
+        /**
+         * Puts a batch of directory changes, or null.
+         */
+        public Encoder putChanges(DirectoryChanges changes) {
+            putBoolean(changes != null);
+            if (changes == null)
+                return this;
+            putLong(changes.source).putLong(changes.position).putBoolean(changes.snapshot).putInt(changes.names.length);
+            for (int i = 0; i < changes.names.length; i++)
+                putString(changes.names[i]).putByte(changes.kinds[i]);
+            return this;
+        }
+
+        public Encoder putSummary(FanoutSummary summary) {
+            return putInt(summary.members).putInt(summary.online).putInt(summary.stored)
+                .putInt(summary.failed).putInt(summary.pending).putLong(summary.millis);
+        }
+
+        /**
+         * Finishes the frame.
+         * @return the frame, ready to be written
+         * @throws IllegalStateException if the frame is longer than MAX_FRAME_BYTES
+         */
+        public ByteBuffer finish() {
+            if (buffer.position() - 4 > MAX_FRAME_BYTES)
+                throw new IllegalStateException("Frame too large");
+            buffer.putInt(0, buffer.position() - 4);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Encodes a DELIVER frame.
+     * @param	 message	 the message to deliver
+     * @return the frame
+     */
+    public static ByteBuffer deliver(String message) {
+        byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+        return new Encoder(DELIVER, 0, 4 + utf8.length).putUtf8(utf8).finish();
+    }
+
+    /**
+     * Checks if a message fits in a DELIVER frame, only encoding it if it
+     * could be too long.
+     * @param	 message	 the message
+     * @return True if the message is at most MAX_MESSAGE_BYTES long
+     */
+    public static boolean fits(String message) {
+        return message.length() <= MAX_MESSAGE_BYTES / 3
+            || message.getBytes(StandardCharsets.UTF_8).length <= MAX_MESSAGE_BYTES;
+    }
+
+    /**
+     * Encodes a SEQUENCE frame.
+     * @param	 epoch	 epoch of the sequence numbers
+     * @param	 firstSequence	 sequence number of the first of the following DELIVER frames
+     * @param	 count	 number of DELIVER frames that are numbered
+     * @return the frame
+     */
+    public static ByteBuffer sequence(long epoch, long firstSequence, int count) {
+        return new Encoder(SEQUENCE, 0, 8 + 8 + 4).putLong(epoch).putLong(firstSequence).putInt(count).finish();
+    }
+
+    /**
+     * Encodes an ACK frame.
+     * @param	 epoch	 epoch of the sequence numbers
+     * @param	 sequence	 sequence number up to which all messages have been received
+     * @return the frame
+     */
+    public static ByteBuffer ack(long epoch, long sequence) {
+        return new Encoder(ACK, 0, 8 + 8).putLong(epoch).putLong(sequence).finish();
+    }
+
+    /**
+     * Determines whether a buffer starts with a complete frame.
+     * @param	 buffer	 buffer in read mode
+     * @return the length of the frame including its length field, or -1 if the frame is incomplete
+     * @throws IllegalStateException if the frame is longer than MAX_FRAME_BYTES
+     */
+    public static int frameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 4)
+            return -1;
+        int length = buffer.getInt(buffer.position());
+        if (length < HEADER_BYTES - 4 || length > MAX_FRAME_BYTES)
+            throw new IllegalStateException("Invalid frame length " + length);
+        return buffer.remaining() < 4 + length ? -1 : 4 + length;
+    }
+
+    public static boolean getBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] utf8 = new byte[length];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    public static List<String> getStrings(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        List<String> values = new ArrayList<String>(Math.min(count, buffer.remaining() / 4));
+        for (int i = 0; i < count; i++)
+            values.add(getString(buffer));
+        return values;
+    }
+
+    /**
+     * Encodes a DIRECTORY frame.
+     * @param	 changes	 the changes to push, or null
+     * @return the frame
+     */
+    public static ByteBuffer directory(DirectoryChanges changes) {
+        return new Encoder(DIRECTORY, 0).putChanges(changes).finish();
+    }
+
+    public static DirectoryChanges getChanges(ByteBuffer buffer) {
+        if (!getBoolean(buffer))
+            return null;
+        long source = buffer.getLong();
+        long position = buffer.getLong();
+        boolean snapshot = getBoolean(buffer);
+        int count = buffer.getInt();
+        String[] names = new String[count];
+        byte[] kinds = new byte[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = getString(buffer);
+            kinds[i] = buffer.get();
+        }
+        return new DirectoryChanges(source, position, snapshot, names, kinds);
+    }
+
+    public static FanoutSummary getSummary(ByteBuffer buffer) {
+        return new FanoutSummary(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+            buffer.getInt(), buffer.getLong());
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             Karger et al., Consistent Hashing and Random Trees, STOC 1997
+ */
+package chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns account names to the nodes of a cluster by consistent hashing.
+ *
+ * Every node is placed on a ring of 64-bit hashes at a number of points (its
+ * virtual nodes), and an account belongs to the node at the first point at or
+ * after the hash of its name. Adding a node therefore only moves the accounts
+ * that now fall before one of its points, about 1/n of them, all to the new
+ * node; the virtual nodes spread both the accounts and those moved evenly.
+ *
+ * A ring is immutable; a cluster whose nodes change switches to a new ring.
+ */
+class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+
+    private final List<String> nodes;
+
+    /**
+     * @param	 nodes	 addresses of the nodes, in any order
+     * @param	 virtualNodes	 number of points per node
+     */
+    HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty())
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+        for (String node : nodes)
+            for (int i = 0; i < virtualNodes; i++)
+                points.put(hash(node + "#" + i), node);
+    }
+
+    /**
+     * @return 64 bits of the MD5 digest of the given string, which are
+     *         spread evenly however similar the strings are
+     */
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = hash << 8 | (digest[i] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("Every Java platform supports MD5", e);
+        }
+    }
+
+    /**
+     * @param	 account	 name of an account
+     * @return address of the node the account belongs to
+     */
+    String owner(String account) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(account));
+        return (point == null ? points.firstEntry() : point).getValue();
+    }
+
+    /**
+     * @return addresses of the nodes
+     */
+    List<String> nodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds, with
+ * a fixed set of buckets.
+ *
+ * Every power of two is split into four buckets, so a percentile read from
+ * the histogram is at most a quarter above the actual value, whatever the
+ * range of the values. The buckets are allocated up front and recording a
+ * value only increments counters, so it never allocates and threads
+ * recording concurrently rarely contend.
+ *
+ * Besides the server's {@link Metrics}, the load generator in the client uses
+ * histograms to report latencies the same way.
+ */
+public class Histogram {
+    /**
+     * Number of bits, below the highest one, that select the bucket within a
+     * power of two.
+     */
+    private static final int SUB_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final LongAdder[] buckets = new LongAdder[(64 - SUB_BITS) << SUB_BITS];
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * @return index of the bucket counting the given value
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int)Math.max(0, value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) | (int)((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the smallest value counted by the given bucket
+     */
+    private static long lowest(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+        return (long)(SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param	 value	 the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        buckets[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Add the number of recorded values, and their mean, median, 99th
+     * percentile and maximum, to a snapshot of metrics. Values recorded
+     * meanwhile may or may not be included.
+     *
+     * @param	 values	 the snapshot to add to
+     * @param	 name	 prefix of the names the values are added under
+     * @param	 unit	 unit of the values to add, appended to their names
+     * @param	 divisor	 ratio between the recorded values and the unit
+     */
+    public void addTo(Map<String, Long> values, String name, String unit, long divisor) {
+        long[] counts = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++)
+            count += counts[i] = buckets[i].sum();
+        long largest = max.get();
+        values.put(name + ".count", count);
+        values.put(name + ".mean" + unit, count == 0 ? 0 : sum.sum() / count / divisor);
+        values.put(name + ".p50" + unit, percentile(counts, count, 0.5, largest) / divisor);
+        values.put(name + ".p99" + unit, percentile(counts, count, 0.99, largest) / divisor);
+        values.put(name + ".max" + unit, largest / divisor);
+    }
+
+    /**
+     * @return an upper bound of the given percentile
+     */
+    private static long percentile(long[] counts, long count, double percentile, long largest) {
+        long rank = (long)Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0)
+                return Math.min(largest, i + 1 < counts.length ? lowest(i + 1) - 1 : Long.MAX_VALUE);
+        }
+        return 0;
+    }
+}
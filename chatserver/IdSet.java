@@ -0,0 +1,381 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ *             Roaring bitmaps https://roaringbitmap.org/about/
+ */
+package chatserver;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of account IDs, see {@link Names}, used for the members
+ * of a group.
+ *
+ * A set of up to SMALL_MAX IDs keeps them in a sorted array. A larger one
+ * splits them by their upper 16 bits into chunks, as in a roaring bitmap. A
+ * chunk holding few IDs keeps their lower 16 bits in a sorted array, two
+ * bytes per ID; one holding more than ARRAY_MAX keeps a bitmap of all 65536,
+ * at a fixed 8 KB. Either way, a member costs a small fraction of an entry
+ * in a hash set of names.
+ *
+ * All methods are synchronized. A broadcast reads the IDs a batch at a
+ * time with {@link #next(int, int, int[])}, so members may be added or
+ * removed while it runs, without copying the whole set.
+ */
+final class IdSet {
+    /**
+     * Most IDs the set holds in a plain array, before it splits them into chunks
+     */
+    private static final int SMALL_MAX = 64;
+
+    /**
+     * Most IDs a chunk holds as an array. Beyond that, the bitmap is smaller.
+     */
+    private static final int ARRAY_MAX = 4096;
+
+    /**
+     * Number of longs in the bitmap of a chunk
+     */
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Object[] NO_CHUNKS = new Object[0];
+    private static final int[] NO_INTS = new int[0];
+
+    /**
+     * The IDs, sorted, while there are at most SMALL_MAX of them; null once
+     * they are kept in chunks
+     */
+    private int[] small = NO_INTS;
+
+    /**
+     * Upper 16 bits of the IDs in each chunk, sorted
+     */
+    private char[] keys = NO_KEYS;
+
+    /**
+     * The chunks, in the order of their keys: each either a char[] of the
+     * lower 16 bits of its IDs, sorted, or a long[] bitmap of them
+     */
+    private Object[] chunks = NO_CHUNKS;
+
+    /**
+     * Number of IDs in each chunk
+     */
+    private int[] counts = NO_INTS;
+
+    /**
+     * Number of chunks in use
+     */
+    private int used;
+
+    /**
+     * Number of IDs in the set
+     */
+    private int size;
+
+    /**
+     * @param	 id	 an ID
+     * @return True if the ID was added, false if it was in the set already
+     */
+    synchronized boolean add(int id) {
+        if (small != null) {
+            int at = Arrays.binarySearch(small, 0, size, id);
+            if (at >= 0)
+                return false;
+            if (size < SMALL_MAX) {
+                at = -at - 1;
+                if (size == small.length)
+                    small = Arrays.copyOf(small, Math.min(SMALL_MAX, Math.max(2, size * 2)));
+                System.arraycopy(small, at, small, at + 1, size - at);
+                small[at] = id;
+                size++;
+                return true;
+            }
+            int[] ids = small;
+            small = null;
+            size = 0;
+            for (int i = 0; i < ids.length; i++)
+                add(ids[i]);
+        }
+        char key = (char)(id >>> 16);
+        char low = (char)id;
+        int chunk = Arrays.binarySearch(keys, 0, used, key);
+        if (chunk < 0) {
+            chunk = -chunk - 1;
+            insertChunk(chunk, key);
+        }
+        Object ids = chunks[chunk];
+        int count = counts[chunk];
+        if (ids instanceof long[]) {
+            long[] bitmap = (long[])ids;
+            long bit = 1L << low;
+            if ((bitmap[low >>> 6] & bit) != 0)
+                return false;
+            bitmap[low >>> 6] |= bit;
+        }
+        else {
+            char[] lows = (char[])ids;
+            int at = Arrays.binarySearch(lows, 0, count, low);
+            if (at >= 0)
+                return false;
+            at = -at - 1;
+            if (count == ARRAY_MAX) {
+                long[] bitmap = toBitmap(lows, count);
+                bitmap[low >>> 6] |= 1L << low;
+                chunks[chunk] = bitmap;
+            }
+            else {
+                if (count == lows.length)
+                    chunks[chunk] = lows = Arrays.copyOf(lows, Math.min(ARRAY_MAX, count * 2));
+                System.arraycopy(lows, at, lows, at + 1, count - at);
+                lows[at] = low;
+            }
+        }
+        counts[chunk]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param	 id	 an ID
+     * @return True if the ID was removed, false if it was not in the set
+     */
+    synchronized boolean remove(int id) {
+        if (small != null) {
+            int at = Arrays.binarySearch(small, 0, size, id);
+            if (at < 0)
+                return false;
+            System.arraycopy(small, at + 1, small, at, size - at - 1);
+            size--;
+            return true;
+        }
+        int chunk = Arrays.binarySearch(keys, 0, used, (char)(id >>> 16));
+        if (chunk < 0)
+            return false;
+        char low = (char)id;
+        Object ids = chunks[chunk];
+        int count = counts[chunk];
+        if (ids instanceof long[]) {
+            long[] bitmap = (long[])ids;
+            long bit = 1L << low;
+            if ((bitmap[low >>> 6] & bit) == 0)
+                return false;
+            bitmap[low >>> 6] &= ~bit;
+            // Go back to an array well below ARRAY_MAX, so that a chunk
+            // around the limit does not convert back and forth
+            if (count - 1 == ARRAY_MAX / 2)
+                chunks[chunk] = toArray(bitmap, count - 1);
+        }
+        else {
+            char[] lows = (char[])ids;
+            int at = Arrays.binarySearch(lows, 0, count, low);
+            if (at < 0)
+                return false;
+            System.arraycopy(lows, at + 1, lows, at, count - at - 1);
+        }
+        size--;
+        if (--counts[chunk] == 0)
+            removeChunk(chunk);
+        return true;
+    }
+
+    /**
+     * @param	 id	 an ID
+     * @return True if the ID is in the set
+     */
+    synchronized boolean contains(int id) {
+        if (small != null)
+            return Arrays.binarySearch(small, 0, size, id) >= 0;
+        int chunk = Arrays.binarySearch(keys, 0, used, (char)(id >>> 16));
+        if (chunk < 0)
+            return false;
+        char low = (char)id;
+        Object ids = chunks[chunk];
+        if (ids instanceof long[])
+            return (((long[])ids)[low >>> 6] & (1L << low)) != 0;
+        return Arrays.binarySearch((char[])ids, 0, counts[chunk], low) >= 0;
+    }
+
+    /**
+     * @return number of IDs in the set
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return True if the set is empty
+     */
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a copy of the IDs in the set, in ascending order
+     */
+    synchronized int[] toArray() {
+        if (small != null)
+            return Arrays.copyOf(small, size);
+        int[] result = new int[size];
+        int next = 0;
+        for (int chunk = 0; chunk < used; chunk++) {
+            int high = keys[chunk] << 16;
+            Object ids = chunks[chunk];
+            if (ids instanceof long[]) {
+                long[] bitmap = (long[])ids;
+                for (int word = 0; word < BITMAP_WORDS; word++) {
+                    for (long bits = bitmap[word]; bits != 0; bits &= bits - 1)
+                        result[next++] = high | word << 6 | Long.numberOfTrailingZeros(bits);
+                }
+            }
+            else {
+                char[] lows = (char[])ids;
+                for (int i = 0; i < counts[chunk]; i++)
+                    result[next++] = high | lows[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the next IDs in ascending order into a buffer.
+     *
+     * @param	 after	 the IDs copied are greater than this, e.g. the last ID of the previous batch
+     * @param	 last	 the IDs copied are at most this
+     * @param	 buffer	 buffer to copy them to
+     * @return number of IDs copied, less than the length of the buffer only if there are no more
+     */
+    synchronized int next(int after, int last, int[] buffer) {
+        int copied = 0;
+        if (small != null) {
+            int at = Arrays.binarySearch(small, 0, size, after);
+            for (at = at < 0 ? -at - 1 : at + 1; at < size && copied < buffer.length && small[at] <= last; at++)
+                buffer[copied++] = small[at];
+            return copied;
+        }
+        if (after == Integer.MAX_VALUE)
+            return 0;
+        int from = after + 1;
+        int chunk = Arrays.binarySearch(keys, 0, used, (char)(from >>> 16));
+        if (chunk < 0) {
+            chunk = -chunk - 1;
+            from = 0;
+        }
+        else {
+            from &= 0xFFFF;
+        }
+        for (; chunk < used && copied < buffer.length; chunk++, from = 0) {
+            int high = keys[chunk] << 16;
+            if (high > last)
+                break;
+            Object ids = chunks[chunk];
+            if (ids instanceof long[]) {
+                long[] bitmap = (long[])ids;
+                for (int word = from >>> 6; word < BITMAP_WORDS && copied < buffer.length; word++) {
+                    long bits = bitmap[word];
+                    if (word == from >>> 6)
+                        bits &= -1L << from;
+                    for (; bits != 0 && copied < buffer.length; bits &= bits - 1) {
+                        int id = high | word << 6 | Long.numberOfTrailingZeros(bits);
+                        if (id > last)
+                            return copied;
+                        buffer[copied++] = id;
+                    }
+                }
+            }
+            else {
+                char[] lows = (char[])ids;
+                int at = Arrays.binarySearch(lows, 0, counts[chunk], (char)from);
+                for (at = at < 0 ? -at - 1 : at; at < counts[chunk] && copied < buffer.length; at++) {
+                    int id = high | lows[at];
+                    if (id > last)
+                        return copied;
+                    buffer[copied++] = id;
+                }
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Splits the set into parts of about the same number of IDs.
+     *
+     * @param	 parts	 number of parts
+     * @return the least ID of each part but the first, in ascending order
+     */
+    synchronized int[] split(int parts) {
+        int[] bounds = new int[parts - 1];
+        for (int i = 1; i < parts; i++)
+            bounds[i - 1] = idAt((int)((long)size * i / parts));
+        return bounds;
+    }
+
+    /**
+     * @param	 rank	 number of IDs in the set less than the one to find
+     * @return the ID, or Integer.MAX_VALUE if the set does not have that many
+     */
+    private int idAt(int rank) {
+        if (rank >= size)
+            return Integer.MAX_VALUE;
+        if (small != null)
+            return small[rank];
+        int chunk = 0;
+        while (rank >= counts[chunk])
+            rank -= counts[chunk++];
+        int high = keys[chunk] << 16;
+        Object ids = chunks[chunk];
+        if (!(ids instanceof long[]))
+            return high | ((char[])ids)[rank];
+        long[] bitmap = (long[])ids;
+        int word = 0;
+        while (rank >= Long.bitCount(bitmap[word]))
+            rank -= Long.bitCount(bitmap[word++]);
+        long bits = bitmap[word];
+        for (; rank > 0; rank--)
+            bits &= bits - 1;
+        return high | word << 6 | Long.numberOfTrailingZeros(bits);
+    }
+
+    private void insertChunk(int chunk, char key) {
+        if (used == keys.length) {
+            int capacity = Math.max(4, used * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            chunks = Arrays.copyOf(chunks, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        System.arraycopy(keys, chunk, keys, chunk + 1, used - chunk);
+        System.arraycopy(chunks, chunk, chunks, chunk + 1, used - chunk);
+        System.arraycopy(counts, chunk, counts, chunk + 1, used - chunk);
+        keys[chunk] = key;
+        chunks[chunk] = new char[4];
+        counts[chunk] = 0;
+        used++;
+    }
+
+    private void removeChunk(int chunk) {
+        System.arraycopy(keys, chunk + 1, keys, chunk, used - chunk - 1);
+        System.arraycopy(chunks, chunk + 1, chunks, chunk, used - chunk - 1);
+        System.arraycopy(counts, chunk + 1, counts, chunk, used - chunk - 1);
+        used--;
+        chunks[used] = null;
+    }
+
+    private static long[] toBitmap(char[] lows, int count) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int i = 0; i < count; i++)
+            bitmap[lows[i] >>> 6] |= 1L << lows[i];
+        return bitmap;
+    }
+
+    private static char[] toArray(long[] bitmap, int count) {
+        char[] lows = new char[count];
+        int next = 0;
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+            for (long bits = bitmap[word]; bits != 0; bits &= bits - 1)
+                lows[next++] = (char)(word << 6 | Long.numberOfTrailingZeros(bits));
+        }
+        return lows;
+    }
+}
@@ -0,0 +1,774 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log of all changes to the server's persistent
+ * state: accounts, groups, group members and the contents of mailboxes.
+ *
+ * The log is a sequence of segment files, journal-N.log, each of which is a
+ * sequence of records framed as [length][crc32][payload]. Appending a record
+ * only encodes it and hands it to a writer thread; the writer thread writes
+ * all records that have accumulated since its last write in one go and then
+ * forces them to disk once (group commit). An RPC that needs its changes to
+ * be durable calls {@link #sync()} before returning, which waits for the
+ * writer to catch up.
+ *
+ * Every SNAPSHOT_RECORDS records, the writer starts a new segment
+ * and a background thread compacts the previous snapshot and the completed
+ * segments into a new snapshot, snapshot-N.dat, holding the state as of the
+ * beginning of segment N. Compaction works purely from the files, so it
+ * never has to stop the server. On startup, the latest snapshot is loaded and
+ * the segments following it are replayed.
+ *
+ * Both replay the messages queued in mailboxes into a {@link MailStore},
+ * without decoding them, rather than onto the heap: on startup into the
+ * store the server then keeps its mailboxes in, during compaction into one
+ * of memory-mapped files in the journal's directory, which is discarded
+ * once the snapshot is written. Deleting an account while replaying looks
+ * up the groups it is a member of in a reverse index instead of searching
+ * all groups.
+ *
+ * Records are applied in log order. The server appends a record while
+ * holding whatever lock orders the corresponding change in memory, e.g. the
+ * account map's bin lock for account creation and deletion or a Mailbox's
+ * monitor for queuing a message, so that replaying the log reproduces the
+ * same state.
+ */
+public class Journal {
+    static final byte ADD_ACCOUNT = 1;
+    static final byte ADD_GROUP = 2;
+    static final byte ADD_MEMBER = 3;
+    static final byte DELETE = 4;
+    static final byte ENQUEUE = 5;
+    static final byte PREPEND = 6;
+    static final byte DRAIN = 7;
+    static final byte ADD_REMOTE_MEMBER = 8;
+    static final byte HAND_OFF = 9;
+
+    /**
+     * Number of records after which a new segment is started and a snapshot
+     * is taken. Configurable through the chatserver.journal.snapshotRecords
+     * system property.
+     */
+    static final long SNAPSHOT_RECORDS = Long.getLong("chatserver.journal.snapshotRecords", 1000000);
+
+    /**
+     * Magic number at the start of every snapshot file.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x43533236;
+
+    /**
+     * The persistent state of one account, as reconstructed from snapshot and log.
+     */
+    static class Entry {
+        private static final long[] NO_MESSAGES = new long[0];
+
+        /**
+         * Whether this account is a group
+         */
+        final boolean group;
+        /**
+         * The members of the group. Only used for groups.
+         */
+        final Set<String> members = new LinkedHashSet<String>();
+        /**
+         * Handles of the messages queued in the account's mailbox, in the
+         * {@link State}'s MailStore. This is a ring buffer holding count
+         * handles starting at index head. Only used for user accounts.
+         */
+        private long[] messages = NO_MESSAGES;
+        private int head;
+        private int count;
+
+        Entry(boolean group) {
+            this.group = group;
+        }
+
+        /**
+         * @return number of messages queued in the mailbox
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * @param	 i	 position of a queued message, 0 for the oldest
+         * @return handle of the message
+         */
+        long message(int i) {
+            return messages[(head + i) % messages.length];
+        }
+
+        private void grow() {
+            if (count < messages.length)
+                return;
+            long[] grown = new long[Math.max(4, messages.length * 2)];
+            for (int i = 0; i < count; i++)
+                grown[i] = message(i);
+            messages = grown;
+            head = 0;
+        }
+
+        void addLast(long handle) {
+            grow();
+            messages[(head + count++) % messages.length] = handle;
+        }
+
+        void addFirst(long handle) {
+            grow();
+            head = (head + messages.length - 1) % messages.length;
+            messages[head] = handle;
+            count++;
+        }
+
+        /**
+         * @return handle of the oldest queued message, which is removed
+         */
+        long removeFirst() {
+            long handle = messages[head];
+            head = (head + 1) % messages.length;
+            count--;
+            return handle;
+        }
+    }
+
+    /**
+     * The persistent state of all accounts, as reconstructed from snapshot and log.
+     */
+    static class State {
+        /**
+         * The accounts, by name, in log order
+         */
+        final Map<String, Entry> accounts = new LinkedHashMap<String, Entry>();
+
+        /**
+         * Names of the groups each account is a member of, by the account's
+         * name, so that deleting an account does not search every group. An
+         * account held by another node of a cluster has no entry in accounts
+         * but may be listed here.
+         */
+        private final Map<String, Set<String>> memberOf = new HashMap<String, Set<String>>();
+
+        /**
+         * Store the messages queued in mailboxes are kept in
+         */
+        final MailStore store;
+
+        State(MailStore store) {
+            this.store = store;
+        }
+
+        void put(String name, Entry entry) {
+            remove(name);
+            accounts.put(name, entry);
+        }
+
+        void addMember(String group, Entry entry, String member) {
+            if (entry.members.add(member))
+                memberOf.computeIfAbsent(member, k -> new HashSet<String>()).add(group);
+        }
+
+        /**
+         * Removes an account, but not from the groups it is a member of, and
+         * releases the messages queued in its mailbox.
+         */
+        void remove(String name) {
+            Entry entry = accounts.remove(name);
+            if (entry == null)
+                return;
+            if (entry.group) {
+                for (String member : entry.members) {
+                    Set<String> groups = memberOf.get(member);
+                    if (groups != null && groups.remove(name) && groups.isEmpty())
+                        memberOf.remove(member);
+                }
+            }
+            while (entry.size() > 0)
+                store.release(entry.removeFirst());
+        }
+
+        /**
+         * Removes an account from all groups it is a member of.
+         */
+        void forgetMember(String name) {
+            Set<String> groups = memberOf.remove(name);
+            if (groups != null)
+                for (String group : groups) {
+                    Entry entry = accounts.get(group);
+                    if (entry != null)
+                        entry.members.remove(name);
+                }
+        }
+    }
+
+    /**
+     * Directory holding the segments and snapshots, or null if the journal is disabled.
+     */
+    private final File dir;
+
+    /**
+     * The segment currently being written. Only accessed by the writer thread.
+     */
+    private FileChannel segment;
+
+    /**
+     * Number of the segment currently being written.
+     */
+    private long segmentNumber;
+
+    /**
+     * Number of records written to the current segment. Only accessed by the writer thread.
+     */
+    private long segmentRecords;
+
+    /**
+     * Records appended but not yet handed to the writer. Guarded by the Journal's monitor.
+     */
+    private List<byte[]> pending = new ArrayList<byte[]>();
+
+    /**
+     * Number of records appended so far. Guarded by the Journal's monitor.
+     */
+    private long appended;
+
+    /**
+     * Number of records known to be on disk. Guarded by the Journal's monitor.
+     */
+    private long durable;
+
+    /**
+     * Set if the writer failed, after which no further change can be made durable.
+     * Guarded by the Journal's monitor.
+     */
+    private IOException failure;
+
+    /**
+     * Whether a compaction is currently running. Guarded by the Journal's monitor.
+     */
+    private boolean compacting;
+
+    /**
+     * The state recovered on startup, until it is handed to the server.
+     */
+    private State recovered;
+
+    private Journal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return a Journal that discards all records
+     */
+    public static Journal disabled() {
+        Journal journal = new Journal(null);
+        journal.recovered = new State(MailStore.forMailboxes());
+        return journal;
+    }
+
+    /**
+     * Open the journal in the given directory, recovering the state it
+     * describes, and start appending to a fresh segment.
+     *
+     * @param	 dir	 directory holding the journal, created if necessary
+     * @return the opened Journal
+     * @throws IOException if the journal could not be read or created
+     */
+    public static Journal open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create journal directory " + dir);
+        Journal journal = new Journal(dir);
+        long snapshot = latest(dir, "snapshot-", ".dat");
+        journal.recovered = new State(MailStore.forMailboxes());
+        if (snapshot >= 0)
+            readSnapshot(journal.file("snapshot-", snapshot, ".dat"), journal.recovered);
+        long last = Math.max(snapshot, 0);
+        for (Map.Entry<Long, File> segment : segments(dir, Math.max(snapshot, 0)).entrySet()) {
+            replay(segment.getValue(), journal.recovered);
+            last = segment.getKey() + 1;
+        }
+        journal.segmentNumber = last;
+        journal.segment = FileChannel.open(journal.file("journal-", last, ".log").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Thread writer = new Thread(journal::write, "chatserver-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return journal;
+    }
+
+    /**
+     * Hand over the state recovered on startup. May only be called once.
+     *
+     * @return the accounts' persistent state, with the messages queued in
+     *         their mailboxes in the store the server is to keep them in
+     */
+    State takeRecovered() {
+        State state = recovered;
+        recovered = null;
+        return state;
+    }
+
+    void addAccount(String name) {
+        append(ADD_ACCOUNT, name, null);
+    }
+
+    void addGroup(String name) {
+        append(ADD_GROUP, name, null);
+    }
+
+    void addMember(String group, String member) {
+        append(ADD_MEMBER, group, out -> writeString(out, member));
+    }
+
+    void delete(String name) {
+        append(DELETE, name, null);
+    }
+
+    /**
+     * Records that a member held by another node of a cluster was added to a
+     * group. Unlike {@link #addMember(String, String)}, the member is not
+     * checked against the accounts in the journal when replaying it.
+     */
+    void addRemoteMember(String group, String member) {
+        append(ADD_REMOTE_MEMBER, group, out -> writeString(out, member));
+    }
+
+    /**
+     * Records that an account was handed over to another node of a cluster.
+     * Unlike {@link #delete(String)}, it stays a member of its groups.
+     */
+    void handOff(String name) {
+        append(HAND_OFF, name, null);
+    }
+
+    /**
+     * @param	 name	 account whose mailbox the message was queued in
+     * @param	 utf8	 the message, already encoded as UTF-8 by the mailbox
+     */
+    void enqueue(String name, byte[] utf8) {
+        append(ENQUEUE, name, out -> {
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        });
+    }
+
+    void prepend(String name, List<String> messages) {
+        append(PREPEND, name, out -> {
+            out.writeInt(messages.size());
+            for (String message : messages)
+                writeString(out, message);
+        });
+    }
+
+    void drain(String name, int count) {
+        append(DRAIN, name, out -> out.writeInt(count));
+    }
+
+    /**
+     * Wait until every record appended so far is on disk.
+     *
+     * @throws Error if the journal could not be written
+     */
+    void sync() {
+        if (dir == null)
+            return;
+        synchronized (this) {
+            long target = appended;
+            boolean interrupted = false;
+            while (durable < target && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (failure != null)
+                throw new Error("Unable to persist change: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Wait until the compaction running, if any, has finished, e.g. so that
+     * the journal's directory can be opened again.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void awaitCompaction() throws InterruptedException {
+        while (compacting)
+            wait();
+    }
+
+    /**
+     * Writes the type specific part of a record.
+     */
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Encode a record and queue it for the writer thread.
+     */
+    private void append(byte type, String name, Body body) {
+        if (dir == null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            writeString(out, name);
+            if (body != null)
+                body.write(out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        synchronized (this) {
+            pending.add(bytes.toByteArray());
+            appended++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writer thread: write and force batches of records until the server exits.
+     */
+    private void write() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        CRC32 crc = new CRC32();
+        while (true) {
+            List<byte[]> batch;
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<byte[]>();
+            }
+            try {
+                for (byte[] record : batch) {
+                    crc.reset();
+                    crc.update(record);
+                    header.clear();
+                    header.putInt(record.length).putInt((int)crc.getValue()).flip();
+                    ByteBuffer[] frame = { header, ByteBuffer.wrap(record) };
+                    while (frame[1].hasRemaining())
+                        segment.write(frame);
+                }
+                segment.force(false);
+                segmentRecords += batch.size();
+                if (segmentRecords >= SNAPSHOT_RECORDS)
+                    rotate();
+            } catch (IOException e) {
+                System.out.println("Unable to write journal.");
+                e.printStackTrace(System.out);
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                durable += batch.size();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Start a new segment and, unless one is already running, start a
+     * compaction of everything before it. Only called by the writer thread.
+     */
+    private void rotate() throws IOException {
+        segment.close();
+        segmentNumber++;
+        segmentRecords = 0;
+        segment = FileChannel.open(file("journal-", segmentNumber, ".log").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long upTo = segmentNumber;
+        synchronized (this) {
+            if (compacting)
+                return;
+            compacting = true;
+        }
+        Thread compactor = new Thread(() -> compact(upTo), "chatserver-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Write snapshot-upTo.dat from the latest snapshot and all segments before
+     * upTo, then delete the files it supersedes.
+     *
+     * @param	 upTo	 number of the first segment not included in the snapshot
+     */
+    private void compact(long upTo) {
+        MailStore store = new MailStore(new File(dir, "compaction"), false);
+        try {
+            long snapshot = latest(dir, "snapshot-", ".dat");
+            State state = new State(store);
+            if (snapshot >= 0)
+                readSnapshot(file("snapshot-", snapshot, ".dat"), state);
+            Map<Long, File> segments = segments(dir, Math.max(snapshot, 0));
+            for (Map.Entry<Long, File> segment : segments.entrySet())
+                if (segment.getKey() < upTo)
+                    replay(segment.getValue(), state);
+            writeSnapshot(state, file("snapshot-", upTo, ".dat"));
+            for (Map.Entry<Long, File> segment : segments.entrySet())
+                if (segment.getKey() < upTo)
+                    segment.getValue().delete();
+            if (snapshot >= 0)
+                file("snapshot-", snapshot, ".dat").delete();
+        } catch (IOException e) {
+            System.out.println("Unable to compact journal.");
+            e.printStackTrace(System.out);
+        } finally {
+            store.close();
+            synchronized (this) {
+                compacting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Apply one record to the state. Records that do not apply (e.g. a
+     * message for an account that was deleted meanwhile) are ignored, since
+     * the server may log them after the corresponding change took effect.
+     */
+    static void apply(DataInputStream in, State state) throws IOException {
+        byte type = in.readByte();
+        String name = readString(in);
+        Entry entry = state.accounts.get(name);
+        switch (type) {
+            case ADD_ACCOUNT:
+                state.put(name, new Entry(false));
+                break;
+            case ADD_GROUP:
+                state.put(name, new Entry(true));
+                break;
+            case ADD_MEMBER: {
+                String member = readString(in);
+                Entry account = state.accounts.get(member);
+                if (entry != null && entry.group && account != null && !account.group)
+                    state.addMember(name, entry, member);
+                break;
+            }
+            case ADD_REMOTE_MEMBER: {
+                String member = readString(in);
+                if (entry != null && entry.group)
+                    state.addMember(name, entry, member);
+                break;
+            }
+            case DELETE:
+                state.remove(name);
+                state.forgetMember(name);
+                break;
+            case HAND_OFF:
+                state.remove(name);
+                break;
+            case ENQUEUE: {
+                byte[] message = readBytes(in);
+                if (entry != null && !entry.group)
+                    entry.addLast(state.store.append(message, System.currentTimeMillis()));
+                break;
+            }
+            case PREPEND: {
+                int count = in.readInt();
+                List<byte[]> messages = new ArrayList<byte[]>(count);
+                for (int i = 0; i < count; i++)
+                    messages.add(readBytes(in));
+                if (entry != null && !entry.group) {
+                    long now = System.currentTimeMillis();
+                    for (int i = count - 1; i >= 0; i--)
+                        entry.addFirst(state.store.append(messages.get(i), now));
+                }
+                break;
+            }
+            case DRAIN: {
+                int count = in.readInt();
+                if (entry != null)
+                    for (int i = 0; i < count && entry.size() > 0; i++)
+                        state.store.release(entry.removeFirst());
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * Apply all intact records of a segment to a state map. A torn or
+     * corrupted record, as left behind by a crash, ends the segment.
+     */
+    private static void replay(File segment, State state) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0)
+                        return;
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    return;
+                }
+                crc.reset();
+                crc.update(record);
+                if ((int)crc.getValue() != checksum)
+                    return;
+                apply(new DataInputStream(new ByteArrayInputStream(record)), state);
+            }
+        }
+    }
+
+    /**
+     * Read a snapshot into an empty state.
+     */
+    private static void readSnapshot(File file, State state) throws IOException {
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a snapshot: " + file);
+            long accounts = in.readLong();
+            for (long i = 0; i < accounts; i++) {
+                String name = readString(in);
+                Entry entry = new Entry(in.readBoolean());
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    if (entry.group)
+                        state.addMember(name, entry, readString(in));
+                    else
+                        entry.addLast(state.store.append(readBytes(in), now));
+                }
+                state.accounts.put(name, entry);
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot to a temporary file, force it to disk and then move it
+     * into place, so that a crash never leaves behind a partial snapshot.
+     */
+    private static void writeSnapshot(State state, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(state.accounts.size());
+            for (Map.Entry<String, Entry> account : state.accounts.entrySet()) {
+                Entry entry = account.getValue();
+                writeString(out, account.getKey());
+                out.writeBoolean(entry.group);
+                out.writeInt(entry.group ? entry.members.size() : entry.size());
+                if (entry.group) {
+                    for (String member : entry.members)
+                        writeString(out, member);
+                }
+                else {
+                    for (int i = 0; i < entry.size(); i++) {
+                        byte[] message = state.store.bytes(entry.message(i));
+                        out.writeInt(message.length);
+                        out.write(message);
+                    }
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a string without decoding it.
+     * @return the string, encoded as UTF-8
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private File file(String prefix, long number, String suffix) {
+        return new File(dir, prefix + number + suffix);
+    }
+
+    /**
+     * @return the highest number of a file named prefix + number + suffix in dir, or -1
+     */
+    private static long latest(File dir, String prefix, String suffix) {
+        long latest = -1;
+        String[] names = dir.list();
+        if (names != null)
+            for (String name : names)
+                if (name.startsWith(prefix) && name.endsWith(suffix))
+                    latest = Math.max(latest, Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+        return latest;
+    }
+
+    /**
+     * @return the segments in dir numbered from or higher, in order
+     */
+    private static Map<Long, File> segments(File dir, long from) {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        String[] names = dir.list();
+        if (names != null)
+            for (String name : names)
+                if (name.startsWith("journal-") && name.endsWith(".log")) {
+                    long number = Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+                    if (number >= from)
+                        segments.put(number, new File(dir, name));
+                }
+        return segments;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a listing, returned by {@link ChatServer#listAccountsPage(String, String, int)}
+ * and {@link ChatServer#listGroupsPage(String, String, int)}.
+ *
+ * Names are listed in sorted order. The cursor records where the page ended,
+ * by name rather than by position, so continuing a listing neither repeats
+ * nor skips names because accounts were added or deleted in between. Names
+ * added behind the cursor meanwhile will show up on a later page.
+ */
+public class ListPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The names on this page, sorted. A page may hold fewer names than
+     * requested (even none at all) while there are still more to come.
+     */
+    public final List<String> names;
+
+    /**
+     * Opaque cursor to pass in to get the next page, or null if the listing is complete
+     */
+    public final String cursor;
+
+    public ListPage(List<String> names, String cursor) {
+        this.names = names;
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return True if there are more pages to fetch
+     */
+    public boolean hasMore() {
+        return cursor != null;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of {@link ChatServer#loginOrCreate(String, chatclient.ClientCallback)}.
+ */
+public class LoginResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Status {
+        /**
+         * The account did not exist; it was created and logged in.
+         */
+        CREATED,
+        /**
+         * The existing account was logged in.
+         */
+        LOGGED_IN,
+        /**
+         * The name belongs to a group, which cannot log in.
+         */
+        NOT_A_USER,
+        /**
+         * The messages queued for the account could not be delivered to the
+         * client, so it was not logged in. The messages stay queued. Only
+         * returned by servers that delivered queued messages during login.
+         */
+        DELIVERY_FAILED,
+        /**
+         * Too many clients are waiting for their queued messages, so the
+         * account was not logged in. Try again after retryAfterMillis.
+         */
+        THROTTLED
+    }
+
+    /**
+     * Whether and how the account was logged in
+     */
+    public final Status status;
+
+    /**
+     * Time after which the login may be retried if it was throttled, in milliseconds, or 0
+     */
+    public final long retryAfterMillis;
+
+    public LoginResult(Status status) {
+        this(status, 0);
+    }
+
+    public LoginResult(Status status, long retryAfterMillis) {
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return True if the account is now logged in
+     */
+    public boolean isLoggedIn() {
+        return status == Status.CREATED || status == Status.LOGGED_IN;
+    }
+
+    @Override
+    public String toString() {
+        switch (status) {
+            case CREATED:
+                return "Account created";
+            case LOGGED_IN:
+                return "Logged in";
+            case NOT_A_USER:
+                return "Cannot log in as a group";
+            case DELIVERY_FAILED:
+                return "Unable to deliver queued messages. You have not been logged in.";
+            case THROTTLED:
+                return "Server busy. You have not been logged in; try again in " + retryAfterMillis + " ms.";
+            default:
+                return status.toString();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage for the messages queued in mailboxes, kept outside the Java heap.
+ *
+ * Messages are encoded as UTF-8 once, when they are queued, and appended to
+ * the current segment, a large buffer that is either allocated off-heap or
+ * memory-mapped from a file in a directory of the store's own, which it
+ * creates in the directory given by the chatserver.mailstore.dir system
+ * property, so that the stores of several servers on one host never share
+ * a file. A stored message is identified
+ * by a long handle holding its segment number and offset, so that a
+ * {@link Server.Mailbox} only needs an array of handles on the heap. Each
+ * message is stored with the time it was stored at, from which its age and
+ * expiry are derived, see {@link Server#MAILBOX_TTL_MILLIS}.
+ *
+ * A server uses two stores: one for messages that fit in a mailbox's quota,
+ * and one for messages spilled to disk beyond the quota. The handles of the
+ * second store are tagged with the sign bit, so that a mailbox can tell them
+ * apart.
+ *
+ * Each segment counts the messages stored in it that have not been released
+ * yet, and their size. Once a segment is full and all of its messages have
+ * been released, it is dropped (and its file deleted). Mailboxes are not
+ * drained in the order they are filled, though: a single message left in an
+ * idle mailbox would keep its whole segment alive. So a full segment whose
+ * live messages take up less than COMPACT_PERCENT of it is marked for
+ * evacuation by {@link #evacuate()}, and the owners of its messages
+ * {@link #move} them to the current segment, which frees it. After every
+ * round of compaction, the store thus takes up at most 100 / COMPACT_PERCENT
+ * times the size of the messages it holds, plus one segment, see
+ * {@link Server#compactMailStores()}.
+ */
+public class MailStore {
+    /**
+     * Size of a segment in bytes. Configurable through the
+     * chatserver.mailstore.segmentBytes system property.
+     */
+    static final int SEGMENT_BYTES = Integer.getInteger("chatserver.mailstore.segmentBytes", 16 << 20);
+
+    /**
+     * Percentage of a full segment that its live messages must take up for
+     * it to be kept rather than evacuated, or 0 to never compact.
+     * Configurable through the chatserver.mailstore.compactPercent system
+     * property.
+     */
+    static final int COMPACT_PERCENT = Math.min(100, Integer.getInteger("chatserver.mailstore.compactPercent", 25));
+
+    /**
+     * Interval, in milliseconds, at which the server compacts its stores, see
+     * {@link Server#compactMailStores()}. Configurable through the
+     * chatserver.mailstore.compactMillis system property.
+     */
+    static final long COMPACT_MILLIS = Math.max(1, Long.getLong("chatserver.mailstore.compactMillis", 10000));
+
+    /**
+     * A buffer messages are appended to.
+     */
+    private static class Segment {
+        final int number;
+        final ByteBuffer buffer;
+        /**
+         * File backing the buffer, or null if the buffer is off-heap memory.
+         */
+        final File file;
+        /**
+         * Number of stored messages that have not been released.
+         */
+        final AtomicInteger live = new AtomicInteger();
+        /**
+         * Number of bytes taken up by the stored messages that have not been released.
+         */
+        final AtomicInteger liveBytes = new AtomicInteger();
+        /**
+         * Set once no more messages will be appended to this segment.
+         */
+        volatile boolean sealed;
+        /**
+         * Set once the segment's messages are to be moved elsewhere, see {@link MailStore#evacuate()}.
+         */
+        volatile boolean evacuating;
+        final AtomicBoolean freed = new AtomicBoolean();
+        /**
+         * Offset at which the next message is appended. Guarded by the MailStore's monitor.
+         */
+        int used;
+
+        Segment(int number, ByteBuffer buffer, File file) {
+            this.number = number;
+            this.buffer = buffer;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Size of the header stored in front of every message: its length and the time it was stored at.
+     */
+    private static final int HEADER_BYTES = 4 + 8;
+
+    /**
+     * Directory the store creates its own directory for segment files in,
+     * or null to use off-heap memory.
+     */
+    private final File dir;
+
+    /**
+     * The store's own directory of segment files, created in dir with the
+     * first segment. Guarded by the MailStore's monitor.
+     */
+    private File files;
+
+    /**
+     * Bits set in every handle of this store.
+     */
+    private final long tag;
+
+    /**
+     * All segments that still hold live messages, by number.
+     */
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+
+    /**
+     * The segment messages are currently appended to. Guarded by the MailStore's monitor.
+     */
+    private Segment current;
+
+    /**
+     * Number of the next segment. Guarded by the MailStore's monitor.
+     */
+    private int nextSegment;
+
+    /**
+     * Number of segments currently allocated.
+     */
+    private final AtomicInteger segmentCount = new AtomicInteger();
+
+    /**
+     * Creates a store keeping its segments in memory-mapped files in a new
+     * directory within the given one, or in off-heap memory if dir is null.
+     *
+     * @param	 dir	 directory to create the directory for segment files in, or null
+     * @param	 tagged	 whether this store's handles are tagged with the sign bit
+     */
+    public MailStore(File dir, boolean tagged) {
+        this.dir = dir;
+        this.tag = tagged ? Long.MIN_VALUE : 0;
+    }
+
+    /**
+     * Creates the store for the messages that fit in the mailboxes' quota:
+     * memory-mapped files in the directory given by the
+     * chatserver.mailstore.dir system property if it is set, off-heap memory
+     * otherwise.
+     *
+     * @return the store
+     */
+    static MailStore forMailboxes() {
+        String dir = System.getProperty("chatserver.mailstore.dir");
+        return new MailStore(dir == null ? null : new File(dir), false);
+    }
+
+    /**
+     * @param	 handle	 a handle of either of the server's stores
+     * @return True if the handle belongs to the tagged store
+     */
+    public static boolean isTagged(long handle) {
+        return handle < 0;
+    }
+
+    /**
+     * Store an encoded message.
+     *
+     * @param	 utf8	 the message, encoded as UTF-8
+     * @param	 timestamp	 time the message was stored at, in milliseconds since the epoch
+     * @return handle identifying the message
+     */
+    public long append(byte[] utf8, long timestamp) {
+        int size = HEADER_BYTES + utf8.length;
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (current == null || current.buffer.capacity() - current.used < size) {
+                if (current != null) {
+                    current.sealed = true;
+                    freeIfDead(current);
+                }
+                current = allocate(nextSegment++, Math.max(SEGMENT_BYTES, size));
+            }
+            segment = current;
+            offset = segment.used;
+            segment.used += size;
+            segment.live.incrementAndGet();
+            segment.liveBytes.addAndGet(size);
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(utf8.length).putLong(timestamp).put(utf8);
+        return tag | ((long)segment.number << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * @param	 handle	 handle of a stored message that has not been released
+     * @return the encoded length of the message in bytes
+     */
+    public int length(long handle) {
+        return segment(handle).buffer.getInt((int)handle);
+    }
+
+    /**
+     * @param	 handle	 handle of a stored message that has not been released
+     * @return the time the message was stored at, in milliseconds since the epoch
+     */
+    public long timestamp(long handle) {
+        return segment(handle).buffer.getLong((int)handle + 4);
+    }
+
+    /**
+     * Decode a stored message.
+     *
+     * @param	 handle	 handle of a stored message that has not been released
+     * @return the message
+     */
+    public String read(long handle) {
+        return new String(bytes(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param	 handle	 handle of a stored message that has not been released
+     * @return the message, encoded as UTF-8
+     */
+    public byte[] bytes(long handle) {
+        ByteBuffer buffer = segment(handle).buffer.duplicate();
+        buffer.position((int)handle);
+        byte[] utf8 = new byte[buffer.getInt()];
+        buffer.getLong();
+        buffer.get(utf8);
+        return utf8;
+    }
+
+    /**
+     * Release a stored message. Its handle must not be used afterwards.
+     *
+     * @param	 handle	 handle of the message
+     */
+    public void release(long handle) {
+        Segment segment = segment(handle);
+        segment.liveBytes.addAndGet(-HEADER_BYTES - segment.buffer.getInt((int)handle));
+        segment.live.decrementAndGet();
+        freeIfDead(segment);
+    }
+
+    /**
+     * Marks the full segments whose live messages take up less than
+     * COMPACT_PERCENT of them for evacuation.
+     *
+     * @return number of segments marked for evacuation, including those marked earlier and not freed yet
+     */
+    public synchronized int evacuate() {
+        int evacuating = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.sealed && !segment.evacuating
+                    && segment.liveBytes.get() < (long)segment.buffer.capacity() * COMPACT_PERCENT / 100)
+                segment.evacuating = true;
+            if (segment.evacuating)
+                evacuating++;
+        }
+        return evacuating;
+    }
+
+    /**
+     * @param	 handle	 handle of a stored message that has not been released
+     * @return True if the message should be moved, see {@link #move(long)}
+     */
+    public boolean evacuating(long handle) {
+        return segment(handle).evacuating;
+    }
+
+    /**
+     * Stores a message again, with its original timestamp, and releases the
+     * old copy, so that the segment it was in can be freed. The caller must
+     * replace the handle it holds, and make sure no one else uses the old one.
+     *
+     * @param	 handle	 handle of a stored message that has not been released
+     * @return handle identifying the moved message
+     */
+    public long move(long handle) {
+        long moved = append(bytes(handle), timestamp(handle));
+        release(handle);
+        return moved;
+    }
+
+    /**
+     * @return number of segments currently allocated
+     */
+    public int segments() {
+        return segmentCount.get();
+    }
+
+    /**
+     * Drop all segments, whether their messages were released or not. The
+     * store must not be used afterwards.
+     */
+    public synchronized void close() {
+        if (current != null)
+            current.sealed = true;
+        current = null;
+        for (Segment segment : segments.values()) {
+            segment.live.set(0);
+            freeIfDead(segment);
+        }
+        if (files != null)
+            files.delete();
+    }
+
+    private Segment segment(long handle) {
+        return segments.get((int)((handle & Long.MAX_VALUE) >>> 32));
+    }
+
+    private void freeIfDead(Segment segment) {
+        if (segment.sealed && segment.live.get() == 0 && segment.freed.compareAndSet(false, true)) {
+            segments.remove(segment.number);
+            segmentCount.decrementAndGet();
+            // The memory itself is returned once the buffer is garbage collected
+            if (segment.file != null)
+                segment.file.delete();
+        }
+    }
+
+    private Segment allocate(int number, int size) {
+        Segment segment;
+        if (dir == null) {
+            segment = new Segment(number, ByteBuffer.allocateDirect(size), null);
+        }
+        else {
+            try {
+                if (files == null) {
+                    dir.mkdirs();
+                    files = Files.createTempDirectory(dir.toPath(), tag != 0 ? "spill-" : "mail-").toFile();
+                }
+                // A file that exists already belongs to someone else, and must not be truncated
+                File file = new File(files, "mail-" + number + ".seg");
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    segment = new Segment(number, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), file);
+                }
+            } catch (IOException e) {
+                throw new Error("Unable to allocate mailbox storage: " + e.getMessage());
+            }
+        }
+        segments.put(number, segment);
+        segmentCount.incrementAndGet();
+        return segment;
+    }
+}
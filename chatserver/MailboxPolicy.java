@@ -0,0 +1,25 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+/**
+ * What a {@link Server.Mailbox} does with a new message once it has reached
+ * its quota, see {@link Server#MAILBOX_MAX_MESSAGES} and {@link Server#MAILBOX_MAX_BYTES}.
+ */
+public enum MailboxPolicy {
+    /**
+     * Drop the oldest queued messages until the new message fits.
+     */
+    DROP_OLDEST,
+    /**
+     * Refuse the new message; the sender receives an error.
+     */
+    REJECT_NEW,
+    /**
+     * Accept the new message, but store it on disk instead of in memory.
+     */
+    SPILL
+}
@@ -0,0 +1,166 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms describing the work of a {@link Server}.
+ *
+ * Every {@link ChatServer} method records its latency and whether it failed,
+ * i.e. threw an Error back to the client. Recording only increments counters
+ * that exist from the start, so it never allocates, not even on the
+ * sendMessage path. The values are read, with whatever the server adds to
+ * them, by {@link Server#getMetrics()}.
+ */
+class Metrics {
+    /**
+     * The methods of {@link ChatServer}.
+     */
+    enum Call {
+        CHECK_FOR_ACCOUNT("checkForAccount"),
+        LOGIN("login"),
+        LOGIN_OR_CREATE("loginOrCreate"),
+        LOGOUT("logout"),
+        RENEW_LEASE("renewLease"),
+        ADD_ACCOUNT("addAccount"),
+        LIST_ACCOUNTS("listAccounts"),
+        ADD_GROUP("addGroup"),
+        ADD_GROUP_MEMBER("addGroupMember"),
+        LIST_GROUPS("listGroups"),
+        LIST_ACCOUNTS_PAGE("listAccountsPage"),
+        LIST_GROUPS_PAGE("listGroupsPage"),
+        SEND_MESSAGE("sendMessage"),
+        SEND("send"),
+        BROADCAST_MESSAGE("broadcastMessage"),
+        DELETE_ACCOUNT("deleteAccount"),
+        LOCATE("locate"),
+        SYNC_DIRECTORY("syncDirectory"),
+        GET_METRICS("getMetrics");
+
+        /**
+         * Name of the method
+         */
+        final String method;
+
+        Call(String method) {
+            this.method = method;
+        }
+    }
+
+    private final Histogram[] latencies = new Histogram[Call.values().length];
+
+    private final LongAdder[] failures = new LongAdder[Call.values().length];
+
+    /**
+     * Number of members of each group broadcast to.
+     */
+    final Histogram fanoutSize = new Histogram();
+
+    /**
+     * Time each group broadcast took the sender, in nanoseconds.
+     */
+    final Histogram fanoutTime = new Histogram();
+
+    /**
+     * Time each message delivered from a mailbox spent in the mailbox, in milliseconds.
+     */
+    final Histogram mailboxAge = new Histogram();
+
+    /**
+     * Time each Outbox drain waited for a delivery worker, in nanoseconds,
+     * indexed by {@link DeliveryScheduler.Priority} ordinal.
+     */
+    final Histogram[] deliveryWait = new Histogram[DeliveryScheduler.Priority.values().length];
+
+    /**
+     * Number of calls to clients that failed.
+     */
+    final LongAdder callbackFailures = new LongAdder();
+
+    /**
+     * Number of batches of directory changes pushed to clients.
+     */
+    final LongAdder directoryPushes = new LongAdder();
+
+    /**
+     * Number of sessions ended because the client's lease ran out.
+     */
+    final LongAdder expiredLeases = new LongAdder();
+
+    /**
+     * Number of sends throttled by a sender's or a group's rate limit.
+     */
+    final LongAdder throttled = new LongAdder();
+
+    /**
+     * Number of sends shed because of the backlog of deliveries.
+     */
+    final LongAdder shed = new LongAdder();
+
+    /**
+     * Number of logins throttled because too many mailboxes wait to be replayed.
+     */
+    final LongAdder loginsThrottled = new LongAdder();
+
+    /**
+     * Number of tasks of the delivery workers that failed with an exception they did not handle.
+     */
+    final LongAdder taskFailures = new LongAdder();
+
+    Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+            failures[i] = new LongAdder();
+        }
+        for (int i = 0; i < deliveryWait.length; i++)
+            deliveryWait[i] = new Histogram();
+    }
+
+    /**
+     * Record a call to a ChatServer method.
+     *
+     * @param	 call	 the method called
+     * @param	 startNanos	 value of System.nanoTime() when the call started
+     */
+    void record(Call call, long startNanos) {
+        latencies[call.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record that a call to a ChatServer method failed.
+     *
+     * @param	 call	 the method called
+     */
+    void failed(Call call) {
+        failures[call.ordinal()].increment();
+    }
+
+    /**
+     * Add the current values to a snapshot of metrics.
+     *
+     * @param	 values	 the snapshot to add to
+     */
+    void addTo(Map<String, Long> values) {
+        for (Call call : Call.values()) {
+            latencies[call.ordinal()].addTo(values, "call." + call.method, "Micros", 1000);
+            values.put("call." + call.method + ".failures", failures[call.ordinal()].sum());
+        }
+        fanoutSize.addTo(values, "fanout.members", "", 1);
+        fanoutTime.addTo(values, "fanout.time", "Micros", 1000);
+        mailboxAge.addTo(values, "mailbox.delivered.age", "Millis", 1);
+        for (DeliveryScheduler.Priority priority : DeliveryScheduler.Priority.values())
+            deliveryWait[priority.ordinal()].addTo(values, "delivery." + priority.label + ".wait", "Micros", 1000);
+        values.put("callback.failures", callbackFailures.sum());
+        values.put("lease.expired", expiredLeases.sum());
+        values.put("directory.pushes", directoryPushes.sum());
+        values.put("sends.throttled", throttled.sum());
+        values.put("sends.shed", shed.sum());
+        values.put("logins.throttled", loginsThrottled.sum());
+        values.put("delivery.taskFailures", taskFailures.sum());
+    }
+}
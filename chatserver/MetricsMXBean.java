@@ -0,0 +1,35 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.Map;
+
+/**
+ * Management interface the server's metrics are registered under, as
+ * chatserver:type=Metrics, so that JMX clients such as jconsole can read
+ * them.
+ */
+public interface MetricsMXBean {
+    /**
+     * @return the current metrics, see {@link MetricsSnapshot}
+     */
+    Map<String, Long> getValues();
+
+    /**
+     * @return number of user accounts with a logged in client
+     */
+    long getOnlineAccounts();
+
+    /**
+     * @return number of user accounts without a logged in client
+     */
+    long getOfflineAccounts();
+
+    /**
+     * @return number of messages queued in mailboxes
+     */
+    long getQueuedMessages();
+}
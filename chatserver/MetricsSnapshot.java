@@ -0,0 +1,56 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The metrics of a server at one point in time, returned by
+ * {@link ChatServer#getMetrics()}.
+ *
+ * Every value is a long, named by dot-separated words, e.g.
+ * "call.sendMessage.p99Micros" for the 99th percentile latency of
+ * sendMessage in microseconds. Histograms contribute a count, mean, p50,
+ * p99 and max each; percentiles are upper bounds at most a quarter above
+ * the actual value.
+ */
+public class MetricsSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Time the snapshot was taken, in milliseconds since the epoch
+     */
+    public final long timestamp;
+    /**
+     * The values, sorted by name
+     */
+    public final SortedMap<String, Long> values;
+
+    public MetricsSnapshot(long timestamp, SortedMap<String, Long> values) {
+        this.timestamp = timestamp;
+        this.values = Collections.unmodifiableSortedMap(values);
+    }
+
+    /**
+     * @param	 name	 name of a value
+     * @return the value, or 0 if the snapshot does not have it
+     */
+    public long get(String name) {
+        Long value = values.get(name);
+        return value == null ? 0 : value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> value : values.entrySet())
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        return text.toString();
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns the names of accounts to dense integer IDs, so that the server's
+ * groups can hold their members as {@link IdSet}s of IDs rather than as sets
+ * of names. Names are turned into IDs where calls come in, and back into
+ * names only where a member has to be found by name, e.g. because it lives
+ * on another node.
+ *
+ * For each ID, the Names also keep the IDs of the groups it is a member of:
+ * the reverse index of membership, so that deleting an account only has to
+ * visit the groups it is a member of.
+ *
+ * For each ID of a user account on this node, the Names also keep where
+ * messages to it currently go: its Mailbox, or the Outbox of its logged in
+ * client. The server sets it in the same step as it swaps the account in
+ * its map of accounts, so that a broadcast can deliver to the members of a
+ * group by their IDs without looking up their names or accounts.
+ *
+ * IDs are handed out from 0 up and never reused: the name of a deleted
+ * account keeps its ID, in case the account is created again. Looking up
+ * the name of an ID takes no lock. Looking up the ID of a name, which is
+ * only needed when members are added or removed, takes the Names' monitor,
+ * so that the IDs can be kept in a plain array rather than in a map of
+ * boxed Integers.
+ */
+final class Names {
+    /**
+     * log2 of the number of IDs per chunk of the table
+     */
+    private static final int CHUNK_BITS = 12;
+
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    /**
+     * The names, delivery targets and groups of CHUNK_MASK + 1 consecutive
+     * IDs. The groups are guarded by the chunk's monitor.
+     */
+    private static final class Chunk {
+        final String[] names = new String[1 << CHUNK_BITS];
+
+        /**
+         * Mailbox or Outbox of each ID, or null if it is not a user account on this node
+         */
+        final AtomicReferenceArray<ClientCallback> targets = new AtomicReferenceArray<ClientCallback>(1 << CHUNK_BITS);
+
+        /**
+         * IDs of the groups each ID is a member of, in ascending order, or
+         * null if none
+         */
+        final int[][] groups = new int[1 << CHUNK_BITS][];
+    }
+
+    /**
+     * Open addressing hash table of the IDs by their names: each slot holds
+     * an ID plus 1, or 0 if it is free. Kept at most half full. Guarded by
+     * the Names' monitor.
+     */
+    private int[] ids = new int[64];
+
+    /**
+     * The table of IDs, in chunks so that growing it does not copy them. A
+     * new table is only published after the name is stored.
+     */
+    private volatile Chunk[] chunks = new Chunk[16];
+
+    /**
+     * Next ID to hand out. Guarded by the Names' monitor.
+     */
+    private int next;
+
+    /**
+     * @param	 name	 name of an account
+     * @return the ID of the name, which is assigned if it has none yet
+     */
+    synchronized int intern(String name) {
+        int slot = slot(name);
+        if (ids[slot] != 0)
+            return ids[slot] - 1;
+        int assigned = next++;
+        Chunk[] table = chunks;
+        int chunk = assigned >>> CHUNK_BITS;
+        if (chunk == table.length)
+            table = Arrays.copyOf(table, table.length * 2);
+        if (table[chunk] == null)
+            table[chunk] = new Chunk();
+        table[chunk].names[assigned & CHUNK_MASK] = name;
+        chunks = table;
+        ids[slot] = assigned + 1;
+        if (next * 2 > ids.length)
+            rehash();
+        return assigned;
+    }
+
+    /**
+     * @param	 name	 name of an account
+     * @return the ID of the name, or -1 if it has none
+     */
+    synchronized int find(String name) {
+        return ids[slot(name)] - 1;
+    }
+
+    /**
+     * @param	 name	 a name
+     * @return the slot of the table holding the name's ID, or the free slot where it belongs
+     */
+    private int slot(String name) {
+        int mask = ids.length - 1;
+        for (int slot = spread(name.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            int entry = ids[slot];
+            if (entry == 0 || name(entry - 1).equals(name))
+                return slot;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Doubles the size of the table of IDs
+     */
+    private void rehash() {
+        int[] old = ids;
+        ids = new int[old.length * 2];
+        int mask = ids.length - 1;
+        for (int entry : old) {
+            if (entry == 0)
+                continue;
+            int slot = spread(name(entry - 1).hashCode()) & mask;
+            while (ids[slot] != 0)
+                slot = (slot + 1) & mask;
+            ids[slot] = entry;
+        }
+    }
+
+    /**
+     * @param	 id	 an ID handed out by {@link #intern(String)}
+     * @return the name with that ID
+     */
+    String name(int id) {
+        return chunks[id >>> CHUNK_BITS].names[id & CHUNK_MASK];
+    }
+
+    /**
+     * @param	 id	 an ID handed out by {@link #intern(String)}
+     * @return the Mailbox or Outbox messages to the account with that ID go
+     *         to, or null if it is not a user account on this node
+     */
+    ClientCallback target(int id) {
+        return chunks[id >>> CHUNK_BITS].targets.get(id & CHUNK_MASK);
+    }
+
+    /**
+     * Records where messages to an account go from now on. Called by the
+     * server while it holds the account's entry in its map of accounts.
+     * @param	 id	 ID of the account
+     * @param	 target	 the account's Mailbox or Outbox, or null if it is deleted or handed over
+     */
+    void setTarget(int id, ClientCallback target) {
+        chunks[id >>> CHUNK_BITS].targets.set(id & CHUNK_MASK, target);
+    }
+
+    /**
+     * @return number of names interned
+     */
+    synchronized int size() {
+        return next;
+    }
+
+    /**
+     * Records that an account is a member of a group
+     * @param	 member	 ID of the account
+     * @param	 group	 ID of the group
+     */
+    void joined(int member, int group) {
+        Chunk chunk = chunks[member >>> CHUNK_BITS];
+        synchronized (chunk) {
+            int[] groups = chunk.groups[member & CHUNK_MASK];
+            if (groups == null) {
+                chunk.groups[member & CHUNK_MASK] = new int[] { group };
+                return;
+            }
+            int at = Arrays.binarySearch(groups, group);
+            if (at >= 0)
+                return;
+            at = -at - 1;
+            int[] more = new int[groups.length + 1];
+            System.arraycopy(groups, 0, more, 0, at);
+            more[at] = group;
+            System.arraycopy(groups, at, more, at + 1, groups.length - at);
+            chunk.groups[member & CHUNK_MASK] = more;
+        }
+    }
+
+    /**
+     * Records that an account is no longer a member of a group
+     * @param	 member	 ID of the account
+     * @param	 group	 ID of the group
+     */
+    void left(int member, int group) {
+        Chunk chunk = chunks[member >>> CHUNK_BITS];
+        synchronized (chunk) {
+            int[] groups = chunk.groups[member & CHUNK_MASK];
+            int at = groups == null ? -1 : Arrays.binarySearch(groups, group);
+            if (at < 0)
+                return;
+            int[] fewer = null;
+            if (groups.length > 1) {
+                fewer = new int[groups.length - 1];
+                System.arraycopy(groups, 0, fewer, 0, at);
+                System.arraycopy(groups, at + 1, fewer, at, groups.length - at - 1);
+            }
+            chunk.groups[member & CHUNK_MASK] = fewer;
+        }
+    }
+
+    /**
+     * Forgets all groups an account is a member of
+     * @param	 member	 ID of the account
+     * @return IDs of the groups, or null if none
+     */
+    int[] leaveAll(int member) {
+        Chunk chunk = chunks[member >>> CHUNK_BITS];
+        synchronized (chunk) {
+            int[] groups = chunk.groups[member & CHUNK_MASK];
+            chunk.groups[member & CHUNK_MASK] = null;
+            return groups;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A second front end to a {@link Server}, speaking length-prefixed binary
+ * frames (see {@link Frames}) over plain TCP instead of RMI.
+ *
+ * A single selector thread accepts connections, reads requests and writes
+ * responses, so an idle connection costs no thread. Requests are executed on
+ * a pool of request workers, one at a time per connection, and call the same
+ * methods of the shared Server as the RMI front end does, so clients of both
+ * front ends see the same accounts and can message each other.
+ *
+ * Messages are pushed to a client as DELIVER frames over its own connection,
+ * rather than over a connection back to the client as with RMI callbacks: a
+ * logged in connection is registered with the Server as the client's
+ * {@link ClientCallback}, wrapped in an {@link Outbox} like any other
+ * client. A message is encoded into a frame once; every connection it is
+ * delivered to writes a duplicate of the same buffer, so a broadcast to a
+ * large group does not encode the message once per member.
+ *
+ * Messages are sent as numbered batches: a SEQUENCE frame followed by the
+ * DELIVER frames. Sending only queues the frames, so the Outbox goes on
+ * sending further batches, up to its window, while the client acknowledges
+ * earlier ones with ACK frames. Messages not acknowledged when the connection
+ * breaks go back to the account's mailbox.
+ */
+public class NioServer {
+    /**
+     * Maximum number of bytes queued for writing on a connection before
+     * deliveries to it fail, and its messages go to its mailbox instead.
+     * Configurable through the chatserver.nio.writeQueueBytes system property.
+     */
+    static final int WRITE_QUEUE_BYTES = Integer.getInteger("chatserver.nio.writeQueueBytes", 4 << 20);
+
+    /**
+     * Number of threads executing requests. Configurable through the
+     * chatserver.nio.requestThreads system property.
+     */
+    static final int REQUEST_THREADS = Integer.getInteger("chatserver.nio.requestThreads",
+        2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of buffers written by a single gathering write.
+     */
+    private static final int WRITE_BATCH = 64;
+
+    /**
+     * Number of recently encoded DELIVER frames kept for reuse.
+     */
+    private static final int FRAME_CACHE_SIZE = 256;
+
+    /**
+     * A message and its encoded DELIVER frame.
+     */
+    private static class EncodedMessage {
+        final String message;
+        final ByteBuffer frame;
+
+        EncodedMessage(String message, ByteBuffer frame) {
+            this.message = message;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Recently encoded DELIVER frames, by identity hash of their message.
+     * A broadcast hands the same String to every member's Outbox, so every
+     * member after the first finds the frame here. Entries are immutable and
+     * simply overwritten on collision.
+     */
+    private final EncodedMessage[] frameCache = new EncodedMessage[FRAME_CACHE_SIZE];
+
+    private final Server server;
+    private final Selector selector;
+    private final ServerSocketChannel acceptor;
+
+    /**
+     * Connections that have frames to write and have to be registered for
+     * OP_WRITE by the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Pool of workers executing requests. The threads are daemons so that
+     * they never keep the server alive by themselves.
+     */
+    private final ExecutorService requestWorkers = Executors.newFixedThreadPool(REQUEST_THREADS, r -> {
+        Thread t = new Thread(r, "chatserver-nio-request");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Opens the front end's listening socket.
+     *
+     * @param	 server	 the server to execute requests on
+     * @param	 port	 port to listen on, or 0 for any free port
+     * @throws IOException if the socket could not be opened
+     */
+    public NioServer(Server server, int port) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(port));
+        acceptor.configureBlocking(false);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return the port the front end listens on
+     */
+    public int getPort() {
+        return acceptor.socket().getLocalPort();
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "chatserver-nio-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace(System.out);
+                return;
+            }
+            Connection connection;
+            while ((connection = writable.poll()) != null) {
+                connection.writeScheduled.set(false);
+                connection.flush();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                connection = (Connection)key.attachment();
+                if (key.isReadable())
+                    connection.read();
+                if (key.isValid() && key.isWritable())
+                    connection.flush();
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = acceptor.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Looks up or encodes the DELIVER frame of a message.
+     *
+     * @param	 message	 the message
+     * @return a buffer of the frame, positioned at its start, that the caller may consume
+     */
+    private ByteBuffer frame(String message) {
+        int slot = System.identityHashCode(message) & (FRAME_CACHE_SIZE - 1);
+        EncodedMessage encoded = frameCache[slot];
+        if (encoded == null || encoded.message != message) {
+            encoded = new EncodedMessage(message, Frames.deliver(message));
+            frameCache[slot] = encoded;
+        }
+        return encoded.frame.duplicate();
+    }
+
+    /**
+     * A client connection. Registered with the server as the client's
+     * callback once the client has logged in.
+     */
+    private class Connection implements ClientCallback {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        /**
+         * Address of the client's host
+         */
+        private final String host;
+
+        /**
+         * Bytes read but not yet parsed into frames. Only accessed by the selector thread.
+         */
+        private ByteBuffer in = ByteBuffer.allocate(16 << 10);
+
+        /**
+         * Frames waiting to be written, and their total size.
+         */
+        private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+
+        /**
+         * Frames being written. Only accessed by the selector thread.
+         */
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+
+        /**
+         * Whether the connection is queued in {@link NioServer#writable}.
+         */
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+        /**
+         * Requests waiting to be executed, and whether a worker is executing them.
+         */
+        private final ConcurrentLinkedQueue<ByteBuffer> requests = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicBoolean executing = new AtomicBoolean();
+
+        /**
+         * Account the connection has logged in as, or null.
+         */
+        private volatile String account;
+
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            host = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        /**
+         * @return name the connection's sends are rate limited by, see
+         *         {@link Server#session(String)}: the account logged in on
+         *         it, or its host while there is none
+         */
+        private String session() {
+            String name = account;
+            return name != null ? name : "host:" + host;
+        }
+
+        @Override
+        public void receiveMessage(String message) throws RemoteException {
+            receiveMessages(List.of(message));
+        }
+
+        @Override
+        public void receiveMessages(List<String> messages) throws RemoteException {
+            queue(null, messages);
+        }
+
+        /**
+         * Queues a numbered batch of messages and returns without waiting for
+         * the acknowledgement, which arrives as an ACK frame.
+         *
+         * @return firstSequence - 1, i.e. no messages acknowledged yet
+         */
+        @Override
+        public long receiveSequenced(long epoch, long firstSequence, List<String> messages) throws RemoteException {
+            queue(Frames.sequence(epoch, firstSequence, messages.size()), messages);
+            return firstSequence - 1;
+        }
+
+        /**
+         * Queues a DIRECTORY frame with changes to the directory.
+         *
+         * @throws RemoteException if the connection is closed or too far behind, or the changes are too large for a frame
+         */
+        @Override
+        public void directoryChanged(DirectoryChanges changes) throws RemoteException {
+            ByteBuffer frame;
+            try {
+                frame = Frames.directory(changes);
+            } catch (IllegalStateException e) {
+                throw new RemoteException("Directory changes too large for a frame");
+            }
+            if (closed)
+                throw new RemoteException("Connection closed");
+            if (queuedBytes.get() + frame.remaining() > WRITE_QUEUE_BYTES)
+                throw new RemoteException("Client is not reading its messages");
+            send(frame);
+        }
+
+        /**
+         * Queues DELIVER frames for messages, all or none.
+         *
+         * @param	 header	 frame to queue ahead of the messages, or null
+         * @param	 messages	 the messages
+         * @throws RemoteException if the connection is closed or too far behind, or a message is too long for a frame
+         */
+        private void queue(ByteBuffer header, List<String> messages) throws RemoteException {
+            List<ByteBuffer> frames = new ArrayList<ByteBuffer>(messages.size() + 1);
+            long bytes = 0;
+            if (header != null) {
+                frames.add(header);
+                bytes += header.remaining();
+            }
+            for (String message : messages) {
+                ByteBuffer frame;
+                try {
+                    frame = frame(message);
+                } catch (IllegalStateException e) {
+                    throw new RemoteException("Message too long for a frame");
+                }
+                bytes += frame.remaining();
+                frames.add(frame);
+            }
+            if (closed)
+                throw new RemoteException("Connection closed");
+            if (queuedBytes.get() + bytes > WRITE_QUEUE_BYTES)
+                throw new RemoteException("Client is not reading its messages");
+            for (ByteBuffer frame : frames)
+                send(frame);
+        }
+
+        /**
+         * Queues a frame for writing.
+         */
+        private void send(ByteBuffer frame) {
+            queuedBytes.addAndGet(frame.remaining());
+            out.add(frame);
+            if (writeScheduled.compareAndSet(false, true)) {
+                writable.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Reads and dispatches as many complete frames as are available.
+         * Called by the selector thread.
+         */
+        void read() {
+            try {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+                in.flip();
+                int length;
+                while ((length = Frames.frameLength(in)) >= 0) {
+                    ByteBuffer frame = ByteBuffer.allocate(length);
+                    frame.put(frame.position(), in, in.position(), length);
+                    in.position(in.position() + length);
+                    requests.add(frame);
+                }
+                if (in.remaining() >= 4 && in.getInt(in.position()) + 4 > in.capacity()) {
+                    ByteBuffer grown = ByteBuffer.allocate(in.getInt(in.position()) + 4);
+                    in = grown.put(in);
+                }
+                else {
+                    in.compact();
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+                return;
+            }
+            if (!requests.isEmpty() && executing.compareAndSet(false, true))
+                requestWorkers.execute(this::execute);
+        }
+
+        /**
+         * Executes queued requests, one at a time. Called by a request worker.
+         */
+        private void execute() {
+            while (true) {
+                ByteBuffer request;
+                while ((request = requests.poll()) != null) {
+                    ByteBuffer response = handle(request);
+                    if (response != null)
+                        send(response);
+                }
+                executing.set(false);
+                if (requests.isEmpty() || !executing.compareAndSet(false, true))
+                    return;
+            }
+        }
+
+        /**
+         * Writes as many queued frames as the socket accepts. Called by the selector thread.
+         */
+        void flush() {
+            if (closed)
+                return;
+            try {
+                while (true) {
+                    ByteBuffer frame;
+                    while (writing.size() < WRITE_BATCH && (frame = out.poll()) != null)
+                        writing.add(frame);
+                    if (writing.isEmpty())
+                        break;
+                    long written = channel.write(writing.toArray(new ByteBuffer[0]));
+                    queuedBytes.addAndGet(-written);
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining())
+                        writing.poll();
+                    if (!writing.isEmpty())
+                        break;
+                }
+                key.interestOps(writing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection and logs its account out, unless it has
+         * logged in again elsewhere meanwhile.
+         */
+        private void close() {
+            if (closed)
+                return;
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+            requests.clear();
+            requestWorkers.execute(() -> {
+                String id = account;
+                if (id != null)
+                    server.disconnected(id, this);
+            });
+        }
+
+        /**
+         * Executes a request.
+         *
+         * @param	 request	 the request frame
+         * @return the response frame, or null if the request gets no response
+         */
+        private ByteBuffer handle(ByteBuffer request) {
+            request.position(4);
+            byte op = request.get();
+            int id = request.getInt();
+            Frames.Encoder result = new Frames.Encoder(Frames.RESULT, id);
+            try {
+                switch (op) {
+                    case Frames.CHECK_FOR_ACCOUNT:
+                        result.putBoolean(server.checkForAccount(Frames.getString(request)));
+                        break;
+                    case Frames.LOGIN: {
+                        String name = Frames.getString(request);
+                        server.login(name, this);
+                        account = name;
+                        break;
+                    }
+                    case Frames.LOGIN_OR_CREATE: {
+                        String name = Frames.getString(request);
+                        LoginResult login = server.loginOrCreate(name, this);
+                        if (login.isLoggedIn())
+                            account = name;
+                        result.putByte(login.status.ordinal()).putLong(login.retryAfterMillis);
+                        break;
+                    }
+                    case Frames.LOGOUT: {
+                        String name = Frames.getString(request);
+                        server.logout(name);
+                        if (name.equals(account))
+                            account = null;
+                        break;
+                    }
+                    case Frames.RENEW_LEASE:
+                        result.putLong(server.renewLease(Frames.getString(request)));
+                        break;
+                    case Frames.ADD_ACCOUNT:
+                        server.addAccount(Frames.getString(request));
+                        break;
+                    case Frames.LIST: {
+                        String query = Frames.getString(request);
+                        result.putStrings(Frames.getBoolean(request) ? server.listGroups(query) : server.listAccounts(query));
+                        break;
+                    }
+                    case Frames.ADD_GROUP:
+                        server.addGroup(Frames.getString(request));
+                        break;
+                    case Frames.ADD_GROUP_MEMBER:
+                        server.addGroupMember(Frames.getString(request), Frames.getString(request));
+                        break;
+                    case Frames.LIST_PAGE: {
+                        String query = Frames.getString(request);
+                        boolean groups = Frames.getBoolean(request);
+                        String cursor = Frames.getString(request);
+                        int pageSize = request.getInt();
+                        ListPage page = groups ? server.listGroupsPage(query, cursor, pageSize)
+                                               : server.listAccountsPage(query, cursor, pageSize);
+                        result.putStrings(page.names).putString(page.cursor);
+                        break;
+                    }
+                    case Frames.SEND_MESSAGE:
+                        server.sendMessageAs(session(), Frames.getString(request), Frames.getString(request));
+                        break;
+                    case Frames.SEND: {
+                        // The sender the client names is not trusted, its session is
+                        Frames.getString(request);
+                        SendResult sent = server.sendAs(session(), Frames.getString(request), Frames.getString(request));
+                        result.putByte(sent.status.ordinal()).putBoolean(sent.summary != null);
+                        if (sent.summary != null)
+                            result.putSummary(sent.summary);
+                        result.putLong(sent.retryAfterMillis);
+                        break;
+                    }
+                    case Frames.BROADCAST:
+                        result.putSummary(server.broadcastMessageAs(session(), Frames.getString(request),
+                            Frames.getString(request)));
+                        break;
+                    case Frames.DELETE_ACCOUNT:
+                        result.putInt(server.deleteAccount(Frames.getString(request)));
+                        break;
+                    case Frames.LOCATE:
+                        result.putString(server.locate(Frames.getString(request)));
+                        break;
+                    case Frames.SYNC_DIRECTORY:
+                        result.putChanges(server.syncDirectory(Frames.getString(request), request.getLong(),
+                            request.getLong()));
+                        break;
+                    case Frames.GET_METRICS: {
+                        MetricsSnapshot metrics = server.getMetrics();
+                        result.putLong(metrics.timestamp).putInt(metrics.values.size());
+                        for (Map.Entry<String, Long> value : metrics.values.entrySet())
+                            result.putString(value.getKey()).putLong(value.getValue());
+                        break;
+                    }
+                    case Frames.ACK: {
+                        String name = account;
+                        if (name != null)
+                            server.acknowledge(name, this, request.getLong(), request.getLong());
+                        return null;
+                    }
+                    default:
+                        return error(id, "Unknown request " + op);
+                }
+                return result.finish();
+            } catch (VirtualMachineError e) {
+                throw e;
+            } catch (Error e) {
+                return error(id, e.getMessage());
+            } catch (RemoteException | RuntimeException e) {
+                return error(id, "Request failed: " + e);
+            }
+        }
+
+        private ByteBuffer error(int id, String message) {
+            return new Frames.Encoder(Frames.ERROR, id).putString(message).finish();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * The entry point of a cluster node for the other nodes, registered as
+ * "ChatNode" in the node's registry by {@link Server#exportNode(String, List)}.
+ *
+ * Every call is handled by the local {@link Server}, without routing. The
+ * server itself only implements {@link ChatServer}, so the methods only
+ * nodes may call, which bypass e.g. admission control, are not reachable
+ * through the stub clients get as "ChatServer".
+ */
+class NodeServer implements ClusterNode {
+    private final Server server;
+
+    /**
+     * @param	 server	 the server of this node
+     */
+    NodeServer(Server server) {
+        this.server = server;
+    }
+
+    @Override
+    public Boolean checkForAccount(String accountName) {
+        return server.checkForAccount(accountName);
+    }
+
+    @Override
+    public void login(String id, ClientCallback client) {
+        server.login(id, client);
+    }
+
+    @Override
+    public LoginResult loginOrCreate(String id, ClientCallback client) {
+        return server.loginOrCreate(id, client);
+    }
+
+    @Override
+    public void logout(String id) {
+        server.logout(id);
+    }
+
+    @Override
+    public long renewLease(String id) {
+        return server.renewLease(id);
+    }
+
+    @Override
+    public void addAccount(String accountName) throws RemoteException {
+        server.addAccount(accountName);
+    }
+
+    @Override
+    public List<String> listAccounts(String query) throws RemoteException {
+        return server.listAccounts(query);
+    }
+
+    @Override
+    public void addGroup(String groupName) throws RemoteException {
+        server.addGroup(groupName);
+    }
+
+    @Override
+    public void addGroupMember(String groupName, String accountName) throws RemoteException {
+        server.addGroupMember(groupName, accountName);
+    }
+
+    @Override
+    public List<String> listGroups(String query) throws RemoteException {
+        return server.listGroups(query);
+    }
+
+    @Override
+    public ListPage listAccountsPage(String query, String cursor, int pageSize) throws RemoteException {
+        return server.listAccountsPage(query, cursor, pageSize);
+    }
+
+    @Override
+    public ListPage listGroupsPage(String query, String cursor, int pageSize) throws RemoteException {
+        return server.listGroupsPage(query, cursor, pageSize);
+    }
+
+    @Override
+    public void sendMessage(String accountName, String message) {
+        server.sendMessage(accountName, message);
+    }
+
+    @Override
+    public SendResult send(String sender, String accountName, String message) {
+        return server.send(sender, accountName, message);
+    }
+
+    @Override
+    public FanoutSummary broadcastMessage(String groupName, String message) {
+        return server.broadcastMessage(groupName, message);
+    }
+
+    @Override
+    public int deleteAccount(String accountName) {
+        return server.deleteAccount(accountName);
+    }
+
+    @Override
+    public String locate(String accountName) {
+        return server.locate(accountName);
+    }
+
+    @Override
+    public DirectoryChanges syncDirectory(String id, long source, long position) {
+        return server.syncDirectory(id, source, position);
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return server.getMetrics();
+    }
+
+    @Override
+    public void sendMessageAs(String session, String accountName, String message) {
+        server.sendMessageAs(session, accountName, message);
+    }
+
+    @Override
+    public SendResult sendAs(String session, String accountName, String message) {
+        return server.sendAs(session, accountName, message);
+    }
+
+    @Override
+    public FanoutSummary broadcastMessageAs(String session, String groupName, String message) {
+        return server.broadcastMessageAs(session, groupName, message);
+    }
+
+    @Override
+    public int[] deliverAll(List<String> accountNames, String message) {
+        return server.deliverAll(accountNames, message);
+    }
+
+    @Override
+    public boolean isUserAccount(String accountName) {
+        return server.isUserAccount(accountName);
+    }
+
+    @Override
+    public void forgetMember(String accountName) {
+        server.forgetMember(accountName);
+    }
+
+    @Override
+    public void adopt(String accountName, boolean group, List<String> contents) {
+        server.adopt(accountName, group, contents);
+    }
+
+    @Override
+    public int setNodes(List<String> nodes) {
+        return server.setNodes(nodes);
+    }
+}
@@ -0,0 +1,743 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import chatserver.DeliveryScheduler.Priority;
+
+/**
+ * A ClientCallback that stands in for a logged in client and delivers
+ * messages to it asynchronously.
+ *
+ * The server registers an Outbox under the account name of every logged in
+ * client. Its receiveMessage method merely appends the message to a bounded
+ * queue and returns, so a sender never waits for the recipient. A worker
+ * from the server's delivery pool then drains the queue, in order, by
+ * calling the actual client over RMI. At most one worker drains a given
+ * Outbox at any time, which preserves per-recipient ordering.
+ *
+ * Each message is queued with the {@link Priority} of its delivery, and the
+ * Outbox waits for a worker in the class of the most urgent message it
+ * holds, so that a direct message gets ahead of broadcasts to other clients.
+ * Its own messages are still delivered in the order they were queued.
+ *
+ * Messages that queue up while a delivery is in flight are coalesced into a
+ * single {@link ClientCallback#receiveMessages(List)} call, bounded by
+ * {@link Server#BATCH_MAX_MESSAGES} and {@link Server#BATCH_MAX_BYTES}. An idle
+ * Outbox may additionally wait {@link Server#BATCH_LINGER_MILLIS} for more
+ * messages before it starts delivering.
+ *
+ * Every message is numbered with the account's next sequence number when it
+ * is sent, see {@link ClientCallback#receiveSequenced}, and kept until the
+ * client acknowledges it. Up to {@link Server#DELIVERY_WINDOW} messages may
+ * be unacknowledged at any time, so a client that acknowledges separately
+ * from receiving (as over the NIO transport) has several batches in flight,
+ * while an RMI client acknowledges each batch as the call returns.
+ *
+ * If the client cannot be reached, the Outbox acts as a circuit breaker: it
+ * stops calling the client for {@link Server#BREAKER_OPEN_MILLIS}, queueing
+ * new messages meanwhile, and then sends the unacknowledged messages again.
+ * After {@link Server#BREAKER_FAILURES} consecutive failures, or if the queue
+ * overflows, the Outbox is closed and all of its unacknowledged and
+ * undelivered messages are spilled to a {@link Server.Mailbox}, just as if
+ * the client had logged out. They keep their sequence numbers, so the client
+ * can recognize the messages it has already received when they are
+ * redelivered.
+ *
+ * An Outbox created when the client logs in is handed the account's
+ * {@link Server.Mailbox}, if it has one, and streams the mailbox's messages
+ * before any it queues itself, as {@link Priority#MAILBOX_REPLAY}, in the
+ * same bounded batches. The messages stay in the mailbox until the client
+ * acknowledges them, which removes them from it and from the journal: the
+ * offset the stream resumes from is only ever committed by the client. If
+ * the Outbox is closed before the client has all of them, the mailbox takes
+ * its place again, holding the unacknowledged messages with their sequence
+ * numbers, followed by the messages the Outbox queued meanwhile.
+ */
+public class Outbox implements ClientCallback {
+    /**
+     * Maximum number of batches delivered by one worker run before the
+     * worker yields to other Outboxes.
+     */
+    private static final int DRAIN_QUANTUM = 16;
+
+    /**
+     * The server this Outbox spills its messages back to.
+     */
+    private final Server server;
+
+    /**
+     * The account name of the client.
+     */
+    private final String name;
+
+    /**
+     * The actual (remote) client messages are delivered to.
+     */
+    private final ClientCallback client;
+
+    /**
+     * Host the client logged in from over RMI, or null. A send over RMI only
+     * counts against the account's rate limit if it comes from this host,
+     * see {@link Server#session(String)}.
+     */
+    volatile String host;
+
+    /**
+     * The delivery pool workers are taken from.
+     */
+    private final DeliveryScheduler workers;
+
+    /**
+     * The task draining the Outbox, as queued in the delivery pool.
+     */
+    private final Runnable drainTask = this::drainOrFail;
+
+    /**
+     * Maximum number of queued messages.
+     */
+    private final int capacity;
+
+    /**
+     * The messages waiting for delivery. Guarded by the Outbox's monitor.
+     */
+    private ArrayDeque<String> queue = new ArrayDeque<String>();
+
+    /**
+     * Whether a worker has been scheduled to drain the queue. Guarded by the
+     * Outbox's monitor.
+     */
+    private boolean scheduled;
+
+    /**
+     * Class the drain is queued in, or null if it is not queued, e.g.
+     * because it is running. Guarded by the Outbox's monitor.
+     */
+    private Priority queuedAs;
+
+    /**
+     * Class the drain was last queued in, for when no queued message has a
+     * class, e.g. for resending. Guarded by the Outbox's monitor.
+     */
+    private Priority lastQueuedAs = Priority.DIRECT;
+
+    /**
+     * The sender of the message that last scheduled the drain or made it
+     * more urgent, which the drain is queued for, see
+     * {@link DeliveryScheduler}, or null if it is unknown. Guarded by the
+     * Outbox's monitor.
+     */
+    private String sender;
+
+    /**
+     * Sequence number the last message of each class queued will be sent
+     * with, indexed by {@link Priority} ordinal; the class has messages
+     * queued if it is not below nextSequence. Guarded by the Outbox's monitor.
+     */
+    private final long[] lastOfClass = new long[Priority.values().length];
+
+    /**
+     * Set once the undelivered messages have been handed back to the server.
+     * Guarded by the Outbox's monitor.
+     */
+    private boolean closed;
+
+    /**
+     * Calls the client, using the newest delivery method it supports.
+     * Only accessed by the worker draining the Outbox.
+     */
+    private final Delivery delivery;
+
+    /**
+     * Epoch of the account's sequence numbers.
+     */
+    private final long epoch;
+
+    /**
+     * Sequence number of the next message sent, or after the Outbox has
+     * been closed, the one following all messages it handed back. Guarded
+     * by the Outbox's monitor.
+     */
+    private long nextSequence;
+
+    /**
+     * Messages sent but not acknowledged, in order. The first of them has
+     * sequence number nextSequence - unacked.size(). Guarded by the Outbox's
+     * monitor.
+     */
+    private final ArrayDeque<String> unacked = new ArrayDeque<String>();
+
+    /**
+     * Number of messages {@link #close()} handed back. Guarded by the Outbox's monitor.
+     */
+    private int handedBack;
+
+    /**
+     * Number of consecutive failed deliveries. Guarded by the Outbox's monitor.
+     */
+    private int failures;
+
+    /**
+     * Number of unacknowledged messages, at the end of the unacked queue, to
+     * send again after a failed delivery before any new ones. Guarded by the
+     * Outbox's monitor.
+     */
+    private int resend;
+
+    /**
+     * Time the client's lease runs out, in milliseconds, or 0 if the client
+     * has never renewed it. Guarded by the Outbox's monitor.
+     */
+    private long leaseExpiry;
+
+    /**
+     * The mailbox the Outbox is streaming, or null once the client has
+     * acknowledged all of its messages (or if there was none). Guarded by
+     * the Outbox's monitor.
+     */
+    private Server.Mailbox backlog;
+
+    /**
+     * Sequence number following the mailbox's messages; the queue's messages
+     * are sent from here on.
+     */
+    private final long backlogEnd;
+
+    /**
+     * Whether the mailbox may be streamed, see {@link #replay()}. Until then,
+     * messages queued wait behind it. Guarded by the Outbox's monitor.
+     */
+    private boolean replayStarted;
+
+    /**
+     * Creates an Outbox continuing the numbering of an account's messages.
+     *
+     * @param	 server	 the server to spill messages back to
+     * @param	 name	 the account name of the client
+     * @param	 client	 the client to deliver to
+     * @param	 workers	 the pool draining the Outbox
+     * @param	 capacity	 maximum number of queued messages
+     * @param	 epoch	 epoch of the account's sequence numbers
+     * @param	 firstSequence	 sequence number of the first message sent
+     */
+    Outbox(Server server, String name, ClientCallback client, DeliveryScheduler workers, int capacity,
+           long epoch, long firstSequence) {
+        this.server = server;
+        this.name = name;
+        this.client = client;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.epoch = epoch;
+        this.nextSequence = firstSequence;
+        this.backlogEnd = firstSequence;
+        this.delivery = new Delivery(client);
+    }
+
+    /**
+     * Creates an Outbox streaming the messages of a mailbox before its own,
+     * see {@link #replay()}. The mailbox must be frozen.
+     *
+     * @param	 server	 the server to spill messages back to
+     * @param	 name	 the account name of the client
+     * @param	 client	 the client to deliver to
+     * @param	 workers	 the pool draining the Outbox
+     * @param	 capacity	 maximum number of queued messages
+     * @param	 epoch	 epoch of the account's sequence numbers
+     * @param	 backlog	 the account's mailbox
+     */
+    Outbox(Server server, String name, ClientCallback client, DeliveryScheduler workers, int capacity,
+           long epoch, Server.Mailbox backlog) {
+        this.server = server;
+        this.name = name;
+        this.client = client;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.epoch = epoch;
+        this.nextSequence = backlog.headSequence();
+        this.backlogEnd = backlog.nextSequence();
+        this.backlog = backlogEnd > nextSequence ? backlog : null;
+        this.lastOfClass[Priority.MAILBOX_REPLAY.ordinal()] = backlogEnd - 1;
+        this.delivery = new Delivery(client);
+    }
+
+    /**
+     * Starts streaming the mailbox, once the Outbox is registered for the
+     * account and the server's {@link ReplayPool} has a slot for it.
+     */
+    synchronized void replay()
+    {
+        replayStarted = true;
+        if (nextSequence < backlogEnd && !scheduled && !closed) {
+            scheduled = true;
+            submit();
+        }
+    }
+
+    /**
+     * Queue a direct message for delivery to the client and return immediately.
+     *
+     * @param	 message	 message to deliver
+     * @throws RemoteException if the Outbox is closed or has just overflowed.
+     *         In either case, the caller should look up the account again.
+     */
+    @Override
+    public void receiveMessage(String message) throws RemoteException
+    {
+        receiveMessage(message, Priority.DIRECT, null);
+    }
+
+    /**
+     * Queue a message for delivery to the client and return immediately.
+     *
+     * @param	 message	 message to deliver
+     * @param	 priority	 class of the delivery
+     * @param	 sender	 name of the sender's session, or null if it is unknown
+     * @throws RemoteException if the Outbox is closed or has just overflowed.
+     *         In either case, the caller should look up the account again.
+     */
+    void receiveMessage(String message, Priority priority, String sender) throws RemoteException
+    {
+        List<String> spilled;
+        synchronized (this) {
+            if (closed)
+                throw new RemoteException("Outbox is closed");
+            if (queue.size() < capacity) {
+                queue.add(message);
+                lastOfClass[priority.ordinal()] = queueStart() + queue.size() - 1;
+                if (!scheduled) {
+                    scheduled = true;
+                    this.sender = sender;
+                    if (Server.BATCH_LINGER_MILLIS > 0)
+                        server.lingerTimer.schedule(this::submit, Server.BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                    else
+                        submit();
+                }
+                else if (queuedAs != null && priority.compareTo(queuedAs) < 0) {
+                    this.sender = sender;
+                    workers.promote(drainTask, priority, sender);
+                    queuedAs = priority;
+                }
+                return;
+            }
+            spilled = close();
+        }
+        server.spill(name, this, spilled);
+        throw new RemoteException("Outbox overflowed");
+    }
+
+    /**
+     * Put messages back at the head of the queue, e.g. the undelivered
+     * messages of a previous session of the same account. They are
+     * delivered as {@link Priority#MAILBOX_REPLAY}.
+     *
+     * @param	 messages	 messages to requeue, in delivery order
+     * @return False if the Outbox was closed and the messages were not queued
+     */
+    synchronized boolean requeue(List<String> messages)
+    {
+        if (closed)
+            return false;
+        for (int i = messages.size() - 1; i >= 0; i--)
+            queue.addFirst(messages.get(i));
+        // The queued messages move back by as many
+        for (int i = 0; i < lastOfClass.length; i++)
+            if (lastOfClass[i] >= queueStart())
+                lastOfClass[i] += messages.size();
+        if (!messages.isEmpty()) {
+            int replay = Priority.MAILBOX_REPLAY.ordinal();
+            lastOfClass[replay] = Math.max(lastOfClass[replay], queueStart() + messages.size() - 1);
+        }
+        if (!queue.isEmpty() && !scheduled) {
+            scheduled = true;
+            submit();
+        }
+        return true;
+    }
+
+    /**
+     * Stop keeping messages the client has acknowledged, and resume sending
+     * if the window was full.
+     *
+     * @param	 epoch	 epoch the acknowledgement refers to
+     * @param	 sequence	 sequence number up to which all messages have been received
+     */
+    synchronized void acknowledge(long epoch, long sequence)
+    {
+        if (closed || epoch != this.epoch)
+            return;
+        failures = 0;
+        long first = nextSequence - unacked.size();
+        for (long s = first; s <= sequence && !unacked.isEmpty(); s++)
+            unacked.poll();
+        resend = Math.min(resend, unacked.size());
+        if (backlog != null && sequence >= first) {
+            backlog.commit(Math.min(sequence, backlogEnd - 1));
+            if (sequence >= backlogEnd - 1) {
+                backlog = null;
+                server.replays.finished(name, this);
+            }
+        }
+        if ((!queue.isEmpty() || nextSequence < backlogEnd) && !scheduled && unacked.size() < Server.DELIVERY_WINDOW) {
+            scheduled = true;
+            submit();
+        }
+    }
+
+    /**
+     * Queue the drain in the delivery pool, in the class of the most urgent
+     * message queued.
+     */
+    private synchronized void submit()
+    {
+        Priority priority = lastQueuedAs;
+        for (Priority p : Priority.values()) {
+            if (lastOfClass[p.ordinal()] >= nextSequence) {
+                priority = p;
+                break;
+            }
+        }
+        queuedAs = lastQueuedAs = priority;
+        workers.execute(drainTask, priority, sender);
+    }
+
+    /**
+     * Extend the client's lease.
+     *
+     * @param	 expiry	 time the lease runs out, in milliseconds
+     * @return True if this is the first renewal, i.e. the lease is not being checked yet
+     */
+    synchronized boolean renewLease(long expiry)
+    {
+        boolean first = leaseExpiry == 0;
+        leaseExpiry = expiry;
+        return first;
+    }
+
+    /**
+     * @return time the client's lease runs out, in milliseconds, or 0 if it was never renewed
+     */
+    synchronized long leaseExpiry()
+    {
+        return leaseExpiry;
+    }
+
+    /**
+     * @return epoch of the account's sequence numbers
+     */
+    long epoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * @return sequence number of the first message {@link #close()} handed back
+     */
+    synchronized long resumeSequence()
+    {
+        return nextSequence - handedBack;
+    }
+
+    /**
+     * @return sequence number following all messages sent or handed back;
+     *         the account's numbering continues from here
+     */
+    synchronized long nextSequence()
+    {
+        return nextSequence;
+    }
+
+    /**
+     * @return number of messages queued or not acknowledged yet, including
+     *         those of the mailbox not sent yet
+     */
+    synchronized int backlog()
+    {
+        return queue.size() + unacked.size() + (int)Math.max(0, backlogEnd - nextSequence);
+    }
+
+    /**
+     * @return the mailbox the Outbox is streaming, or null if the client has
+     *         acknowledged all of its messages
+     */
+    synchronized Server.Mailbox replaying()
+    {
+        return backlog;
+    }
+
+    /**
+     * @return sequence number of the first message queued, which follows the mailbox's messages
+     */
+    private long queueStart()
+    {
+        return Math.max(nextSequence, backlogEnd);
+    }
+
+    /**
+     * Pushes changes to the directory to the client right away, apart from
+     * the messages, which they do not have to be ordered with.
+     *
+     * @param	 changes	 the changes, or null
+     * @throws RemoteException if the client could not be reached
+     */
+    @Override
+    public void directoryChanged(DirectoryChanges changes) throws RemoteException
+    {
+        client.directoryChanged(changes);
+    }
+
+    /**
+     * @param	 client	 a client
+     * @return True if this Outbox delivers to the given client
+     */
+    boolean isFor(ClientCallback client)
+    {
+        return this.client == client;
+    }
+
+    /**
+     * Close the Outbox, returning all messages that have not been
+     * acknowledged, whether they have been sent or not. A worker that is
+     * currently delivering a batch stops after that batch.
+     *
+     * If the Outbox is still streaming a mailbox, the messages are appended
+     * to the mailbox instead, behind its unacknowledged messages, and none
+     * are returned.
+     *
+     * @return the unacknowledged messages, in delivery order, numbered from {@link #resumeSequence()}
+     */
+    synchronized List<String> close()
+    {
+        if (closed)
+            return new ArrayList<String>();
+        closed = true;
+        // Messages of the mailbox are still in it, whether sent or not
+        Iterator<String> sent = unacked.iterator();
+        for (long s = nextSequence - unacked.size(); s < backlogEnd && sent.hasNext(); s++)
+            sent.next();
+        List<String> undelivered = new ArrayList<String>();
+        sent.forEachRemaining(undelivered::add);
+        undelivered.addAll(queue);
+        nextSequence = queueStart() + queue.size();
+        if (backlog != null) {
+            backlog.append(undelivered);
+            undelivered.clear();
+        }
+        handedBack = undelivered.size();
+        resend = 0;
+        unacked.clear();
+        queue.clear();
+        return undelivered;
+    }
+
+    /**
+     * Runs {@link #drain()}, counting any exception it fails with, e.g. one
+     * thrown by the client or by reading the mailbox, as a failed delivery:
+     * the Outbox must not stay scheduled, or it would never drain again.
+     */
+    private void drainOrFail()
+    {
+        try {
+            drain();
+        } catch (RuntimeException | Error e) {
+            e.printStackTrace(System.out);
+            server.metrics.callbackFailures.increment();
+            failed();
+        }
+    }
+
+    /**
+     * Worker loop: deliver up to DRAIN_QUANTUM batches, then reschedule if
+     * there is more work.
+     */
+    private void drain()
+    {
+        for (int i = 0; i < DRAIN_QUANTUM; i++) {
+            List<String> batch = new ArrayList<String>();
+            long first;
+            synchronized (this) {
+                queuedAs = null;
+                if (closed) {
+                    scheduled = false;
+                    return;
+                }
+                if (resend > 0) {
+                    // Unacknowledged messages first, with the numbers they were sent with
+                    first = nextSequence - resend;
+                    Iterator<String> sent = unacked.iterator();
+                    for (int skip = unacked.size() - resend; skip > 0; skip--)
+                        sent.next();
+                    addBatch(batch, sent, resend);
+                    resend -= batch.size();
+                }
+                else {
+                    first = nextSequence;
+                    int limit = Server.DELIVERY_WINDOW - unacked.size();
+                    if (nextSequence < backlogEnd) {
+                        // The mailbox first, up to its end, once it may be streamed
+                        if (backlog != null && replayStarted)
+                            backlog.read(nextSequence, (int)Math.min(limit, backlogEnd - nextSequence), batch);
+                    }
+                    else {
+                        addBatch(batch, queue.iterator(), limit);
+                        for (int n = 0; n < batch.size(); n++)
+                            queue.poll();
+                    }
+                    nextSequence += batch.size();
+                    unacked.addAll(batch);
+                }
+                if (batch.isEmpty() || closed) {
+                    // Either done, or the window is full and an acknowledgement will reschedule
+                    scheduled = false;
+                    return;
+                }
+            }
+            long acknowledged;
+            try {
+                acknowledged = delivery.deliver(epoch, first, batch);
+            } catch (RemoteException e) {
+                System.out.println("Server unable to reach a logged in client.");
+                server.metrics.callbackFailures.increment();
+                failed();
+                return;
+            }
+            acknowledge(epoch, acknowledged);
+        }
+        submit();
+    }
+
+    /**
+     * Add messages to a batch, bounded by {@link Server#BATCH_MAX_MESSAGES}
+     * and {@link Server#BATCH_MAX_BYTES}.
+     *
+     * @param	 batch	 the batch to add to
+     * @param	 messages	 the messages to take, in order
+     * @param	 limit	 maximum number of messages to add
+     */
+    private static void addBatch(List<String> batch, Iterator<String> messages, int limit)
+    {
+        int bytes = 0;
+        while (messages.hasNext() && batch.size() < Math.min(limit, Server.BATCH_MAX_MESSAGES)) {
+            String message = messages.next();
+            if (!batch.isEmpty() && bytes + message.length() > Server.BATCH_MAX_BYTES)
+                break;
+            bytes += message.length();
+            batch.add(message);
+        }
+    }
+
+    /**
+     * Called by the worker when a delivery failed: open the circuit breaker
+     * and retry later, or close the Outbox and spill its messages if the
+     * client has failed too often.
+     */
+    private void failed()
+    {
+        List<String> spilled;
+        boolean streaming;
+        synchronized (this) {
+            if (!closed && ++failures < Server.BREAKER_FAILURES) {
+                // Send the unacknowledged messages again once the breaker
+                // closes. Until then, the worker stays scheduled so that new
+                // messages are only queued.
+                resend = unacked.size();
+                server.lingerTimer.schedule(this::submit, Server.BREAKER_OPEN_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            scheduled = false;
+            // A mailbox being streamed keeps the messages instead, but still has to take the Outbox's place
+            streaming = !closed && backlog != null;
+            spilled = close();
+        }
+        // An Outbox closed meanwhile has already handed its messages back
+        if (!spilled.isEmpty() || streaming)
+            server.spill(name, this, spilled);
+    }
+
+    /**
+     * Delivers batches of messages to a client, remembering which delivery
+     * methods the client supports.
+     *
+     * Batches are delivered with a single
+     * {@link ClientCallback#receiveSequenced} call if the client supports it.
+     * Clients built before receiveSequenced (or receiveMessages) existed reject
+     * the call with an UnmarshalException before executing anything, in which
+     * case the next older method is used instead, down to delivering the
+     * messages one at a time.
+     */
+    static class Delivery {
+        private static final int SEQUENCED = 2, BATCHED = 1, SINGLE = 0;
+
+        private final ClientCallback client;
+
+        /**
+         * Newest delivery method the client is not known to reject.
+         */
+        private int level = SEQUENCED;
+
+        Delivery(ClientCallback client) {
+            this.client = client;
+        }
+
+        /**
+         * Deliver a batch of messages.
+         *
+         * @param	 epoch	 epoch of the sequence numbers
+         * @param	 first	 sequence number of the first message
+         * @param	 batch	 messages to deliver, in order
+         * @return the sequence number up to which the client acknowledged all
+         *         messages; clients that do not number messages acknowledge
+         *         the batch by returning
+         * @throws RemoteException if the client could not be reached
+         */
+        long deliver(long epoch, long first, List<String> batch) throws RemoteException
+        {
+            if (level == SEQUENCED) {
+                try {
+                    return client.receiveSequenced(epoch, first, batch);
+                } catch (RemoteException e) {
+                    if (!isUnrecognizedMethod(e))
+                        throw e;
+                    level = BATCHED;
+                }
+            }
+            if (level == BATCHED && batch.size() > 1) {
+                try {
+                    client.receiveMessages(batch);
+                    return first + batch.size() - 1;
+                } catch (RemoteException e) {
+                    if (!isUnrecognizedMethod(e))
+                        throw e;
+                    level = SINGLE;
+                }
+            }
+            for (String message : batch)
+                client.receiveMessage(message);
+            return first + batch.size() - 1;
+        }
+    }
+
+    /**
+     * Whether a RemoteException indicates that the remote object does not
+     * implement the method that was called.
+     */
+    private static boolean isUnrecognizedMethod(RemoteException e)
+    {
+        for (Throwable t = e; t != null; t = t.getCause())
+            if (t instanceof UnmarshalException && t.getMessage() != null &&
+                t.getMessage().contains("unrecognized method hash"))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Admission control for logins, so that a reconnect storm, i.e. every client
+ * logging in at once after an outage, does not replay every mailbox at the
+ * same time.
+ *
+ * The replay of a mailbox by the Outbox of the client logging in, see
+ * {@link Outbox#replay()}, takes one of MAX_CONCURRENT slots, which it keeps
+ * until the client has acknowledged all of the mailbox's messages or goes
+ * away. If all slots are taken, the login still succeeds, but the replay
+ * waits for a slot; waiting replays get one in the order their logins came
+ * in. Once MAX_WAITING replays are waiting as well, logins that would need
+ * one are throttled, with a retry delay of RETRY_MILLIS give or take a
+ * random half, so that the clients turned away do not all come back at
+ * once. Logins of accounts with empty mailboxes are always admitted.
+ *
+ * A slot belongs to the account: a client that logs in again while its
+ * replay is running or waiting takes over its place.
+ *
+ * Replays are unlimited (0) by default.
+ */
+final class ReplayPool {
+    /**
+     * Number of mailboxes replayed at a time, or 0 for no limit.
+     * Configurable through the chatserver.replay.maxConcurrent system property.
+     */
+    static final int MAX_CONCURRENT = Integer.getInteger("chatserver.replay.maxConcurrent", 0);
+
+    /**
+     * Number of replays waiting for a slot above which logins are throttled,
+     * or 0 to never throttle. Configurable through the
+     * chatserver.replay.maxWaiting system property.
+     */
+    static final int MAX_WAITING = Integer.getInteger("chatserver.replay.maxWaiting", 0);
+
+    /**
+     * Time, in milliseconds, after which a throttled login may be retried,
+     * on average. Configurable through the chatserver.replay.retryMillis
+     * system property.
+     */
+    static final int RETRY_MILLIS = Math.max(1, Integer.getInteger("chatserver.replay.retryMillis", 1000));
+
+    /**
+     * The Outboxes replaying, by account name. Guarded by the pool's monitor.
+     */
+    private final HashMap<String, Outbox> running = new HashMap<String, Outbox>();
+
+    /**
+     * The Outboxes waiting for a slot, by account name, in the order they
+     * will get one. Guarded by the pool's monitor.
+     */
+    private final LinkedHashMap<String, Outbox> waiting = new LinkedHashMap<String, Outbox>();
+
+    /**
+     * Number of logins admitted that have not started their replay yet.
+     * Guarded by the pool's monitor.
+     */
+    private int reserved;
+
+    /**
+     * Starts the replays that get a slot freed by another, so that they are
+     * not started while the caller holds an Outbox's monitor
+     */
+    private final Executor starter;
+
+    private final Metrics metrics;
+
+    /**
+     * @param	 starter	 executor to start waiting replays on
+     * @param	 metrics	 metrics to count throttled logins in
+     */
+    ReplayPool(Executor starter, Metrics metrics) {
+        this.starter = starter;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return True if the number of replays is limited
+     */
+    static boolean enabled() {
+        return MAX_CONCURRENT > 0;
+    }
+
+    /**
+     * Decides whether to admit a login whose mailbox has to be replayed, and
+     * reserves a place for its replay if so, which {@link #start} or
+     * {@link #cancel()} takes up again.
+     *
+     * @return 0 if the login is admitted, or the time after which to retry it, in milliseconds
+     */
+    synchronized long admit() {
+        if (MAX_WAITING > 0 && running.size() + waiting.size() + reserved >= MAX_CONCURRENT + MAX_WAITING) {
+            metrics.loginsThrottled.increment();
+            return RETRY_MILLIS / 2 + ThreadLocalRandom.current().nextInt(RETRY_MILLIS);
+        }
+        reserved++;
+        return 0;
+    }
+
+    /**
+     * Gives up a place reserved by {@link #admit()}, because the login did
+     * not need it after all.
+     */
+    synchronized void cancel() {
+        reserved--;
+    }
+
+    /**
+     * Starts the replay of an Outbox, or queues it until a slot is free.
+     *
+     * @param	 name	 account name of the Outbox
+     * @param	 outbox	 an Outbox replaying a mailbox, which is registered for the account
+     * @param	 admitted	 whether a place was reserved for it by {@link #admit()}
+     */
+    void start(String name, Outbox outbox, boolean admitted) {
+        if (enabled()) {
+            synchronized (this) {
+                if (admitted)
+                    reserved--;
+                if (waiting.containsKey(name)) {
+                    waiting.put(name, outbox);
+                    return;
+                }
+                if (!running.containsKey(name) && running.size() >= MAX_CONCURRENT) {
+                    waiting.put(name, outbox);
+                    return;
+                }
+                running.put(name, outbox);
+            }
+        }
+        outbox.replay();
+    }
+
+    /**
+     * Frees the slot or place of an Outbox that has finished its replay or
+     * was closed, and starts the replay waiting longest in its place. Does
+     * nothing if the Outbox holds neither, e.g. because a later session of
+     * the account has taken over.
+     *
+     * @param	 name	 account name of the Outbox
+     * @param	 outbox	 the Outbox
+     */
+    void finished(String name, Outbox outbox) {
+        if (!enabled())
+            return;
+        Outbox next;
+        synchronized (this) {
+            if (waiting.get(name) == outbox) {
+                waiting.remove(name);
+                return;
+            }
+            if (running.get(name) != outbox)
+                return;
+            running.remove(name);
+            Iterator<Map.Entry<String, Outbox>> first = waiting.entrySet().iterator();
+            if (!first.hasNext())
+                return;
+            Map.Entry<String, Outbox> entry = first.next();
+            first.remove();
+            running.put(entry.getKey(), entry.getValue());
+            next = entry.getValue();
+        }
+        starter.execute(next::replay);
+    }
+
+    /**
+     * @return number of mailboxes being replayed
+     */
+    synchronized int running() {
+        return running.size();
+    }
+
+    /**
+     * @return number of replays waiting for a slot
+     */
+    synchronized int waiting() {
+        return waiting.size();
+    }
+}
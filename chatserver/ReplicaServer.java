@@ -0,0 +1,385 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import chatclient.ClientCallback;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A read replica of a server, answering the directory queries
+ * checkForAccount, listAccounts and listGroups (and their pages) in its
+ * place, so that they do not compete with the primary's writes.
+ *
+ * The replica keeps its own {@link Directory} and follows the changes to
+ * the primary's with long polls of {@link ReplicationSource#directoryChanges(long, long, long)}:
+ * the primary answers as soon as there is a change, or after POLL_MILLIS
+ * without one, and the replica asks again right away. Following costs the
+ * primary nothing on its send path, since only account creation and
+ * deletion change the directory.
+ *
+ * Staleness is bounded: the replica only answers while it has heard from
+ * the primary within the last MAX_STALENESS_MILLIS, counted from when it
+ * asked. Otherwise, e.g. while the primary cannot be reached, queries fail
+ * with an Error, and clients ask the primary instead. All other calls fail
+ * with an Error, as they have to go to the primary.
+ */
+public class ReplicaServer implements ChatServer {
+    /**
+     * Port of the registry a replica starts by default, next to the primary's
+     */
+    static final int DEFAULT_PORT = Registry.REGISTRY_PORT + 1;
+
+    /**
+     * Longest time the primary is asked to wait for a change, in
+     * milliseconds. Configurable through the chatserver.replica.pollMillis
+     * system property.
+     */
+    static final long POLL_MILLIS = Integer.getInteger("chatserver.replica.pollMillis", 500);
+
+    /**
+     * Longest time since the replica last heard from the primary for which it
+     * still answers queries, in milliseconds. Has to be well above
+     * POLL_MILLIS. Configurable through the chatserver.replica.maxStalenessMillis
+     * system property.
+     */
+    static final long MAX_STALENESS_MILLIS = Integer.getInteger("chatserver.replica.maxStalenessMillis", 2000);
+
+    /**
+     * Address of the primary's registry, "host" or "host:port", or null if
+     * the primary was handed in directly
+     */
+    private final String primaryAddress;
+
+    /**
+     * The primary, looked up again whenever it could not be reached
+     */
+    private ReplicationSource primary;
+
+    /**
+     * The replica's copy of the primary's directory, replaced by a new one
+     * for every snapshot
+     */
+    private volatile Directory directory = new Directory();
+
+    /**
+     * Source of the last change applied. Only accessed by the follower thread.
+     */
+    private long source;
+
+    /**
+     * Position after the last change applied. Only changed by the follower thread.
+     */
+    private volatile long position;
+
+    /**
+     * Value of System.nanoTime() when the replica last asked the primary for
+     * changes and got an answer
+     */
+    private volatile long syncedAt;
+
+    /**
+     * Whether the replica has had an answer from the primary at all
+     */
+    private volatile boolean synced;
+
+    /**
+     * Number of snapshots taken over from the primary
+     */
+    private final LongAdder snapshots = new LongAdder();
+
+    /**
+     * Counters and histograms of the replica's work, as for a {@link Server}
+     */
+    final Metrics metrics = new Metrics();
+
+    /**
+     * Stub that can be exported to allow clients to make RMI calls to the replica
+     */
+    private ChatServer myStub;
+
+    /**
+     * Creates a replica of the server registered as "ChatServer" in a registry.
+     * @param	 primaryAddress	 address of the primary's registry, "host" or "host:port"
+     */
+    public ReplicaServer(String primaryAddress) {
+        this.primaryAddress = primaryAddress;
+        startFollowing();
+    }
+
+    /**
+     * Creates a replica of a server in the same process.
+     * @param	 primary	 the primary
+     */
+    public ReplicaServer(ReplicationSource primary) {
+        this.primaryAddress = null;
+        this.primary = primary;
+        startFollowing();
+    }
+
+    private void startFollowing() {
+        Thread follower = new Thread(this::follow, "chatserver-replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Follower thread: apply the primary's changes until the process exits.
+     * Failures to reach the primary are retried after POLL_MILLIS.
+     */
+    private void follow() {
+        boolean reported = false;
+        while (true) {
+            try {
+                if (primary == null)
+                    primary = (ReplicationSource)Cluster.registry(primaryAddress).lookup("ChatServer");
+                long asked = System.nanoTime();
+                DirectoryChanges changes = primary.directoryChanges(source, position, POLL_MILLIS);
+                if (changes.snapshot) {
+                    Directory fresh = new Directory();
+                    fresh.apply(changes);
+                    directory = fresh;
+                    snapshots.increment();
+                }
+                else {
+                    directory.apply(changes);
+                }
+                source = changes.source;
+                position = changes.position;
+                syncedAt = asked;
+                synced = true;
+                reported = false;
+            } catch (RemoteException | NotBoundException | ClassCastException e) {
+                if (!reported)
+                    System.out.println("Unable to follow the primary: " + e);
+                reported = true;
+                if (primaryAddress != null)
+                    primary = null;
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return time since the replica last heard from the primary, in milliseconds, or -1 if it never has
+     */
+    long stalenessMillis() {
+        return synced ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - syncedAt) : -1;
+    }
+
+    /**
+     * @return the directory, if it is recent enough to answer queries from
+     * @throws Error if the replica has not heard from the primary recently enough
+     */
+    private Directory current() {
+        long staleness = stalenessMillis();
+        if (staleness < 0)
+            throw new Error("The replica has not caught up with the primary yet. Ask the primary instead.");
+        if (staleness > MAX_STALENESS_MILLIS)
+            throw new Error("The replica has not heard from the primary for " + staleness + " ms. Ask the primary instead.");
+        return directory;
+    }
+
+    /**
+     * @return an Error for calls that have to go to the primary
+     */
+    private static Error readOnly() {
+        return new Error("This is a read replica. Send this request to the primary server.");
+    }
+
+    @Override
+    public Boolean checkForAccount(String accountName) {
+        long start = System.nanoTime();
+        try {
+            return current().contains(accountName);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.CHECK_FOR_ACCOUNT);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.CHECK_FOR_ACCOUNT, start);
+        }
+    }
+
+    @Override
+    public List<String> listAccounts(String query) {
+        long start = System.nanoTime();
+        try {
+            return current().list(query, false);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_ACCOUNTS);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_ACCOUNTS, start);
+        }
+    }
+
+    @Override
+    public List<String> listGroups(String query) {
+        long start = System.nanoTime();
+        try {
+            return current().list(query, true);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_GROUPS);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_GROUPS, start);
+        }
+    }
+
+    @Override
+    public ListPage listAccountsPage(String query, String cursor, int pageSize) {
+        long start = System.nanoTime();
+        try {
+            return Server.listPage(current(), query, cursor, pageSize, false);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_ACCOUNTS_PAGE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_ACCOUNTS_PAGE, start);
+        }
+    }
+
+    @Override
+    public ListPage listGroupsPage(String query, String cursor, int pageSize) {
+        long start = System.nanoTime();
+        try {
+            return Server.listPage(current(), query, cursor, pageSize, true);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_GROUPS_PAGE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_GROUPS_PAGE, start);
+        }
+    }
+
+    @Override
+    public void login(String id, ClientCallback client) {
+        throw readOnly();
+    }
+
+    @Override
+    public LoginResult loginOrCreate(String id, ClientCallback client) {
+        throw readOnly();
+    }
+
+    @Override
+    public void logout(String id) {
+        throw readOnly();
+    }
+
+    @Override
+    public long renewLease(String id) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addAccount(String accountName) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addGroup(String groupName) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addGroupMember(String groupName, String accountName) {
+        throw readOnly();
+    }
+
+    @Override
+    public void sendMessage(String accountName, String message) {
+        throw readOnly();
+    }
+
+    @Override
+    public SendResult send(String sender, String accountName, String message) {
+        throw readOnly();
+    }
+
+    @Override
+    public FanoutSummary broadcastMessage(String groupName, String message) {
+        throw readOnly();
+    }
+
+    @Override
+    public int deleteAccount(String accountName) {
+        throw readOnly();
+    }
+
+    /**
+     * @return null, since a replica is not part of a cluster
+     */
+    @Override
+    public String locate(String accountName) {
+        return null;
+    }
+
+    /**
+     * Brings a client's copy of the directory up to date from the replica's.
+     * The replica does not push changes, so the client is not subscribed.
+     */
+    @Override
+    public DirectoryChanges syncDirectory(String id, long source, long position) {
+        long start = System.nanoTime();
+        try {
+            return current().catchUp(source, position);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.SYNC_DIRECTORY);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.SYNC_DIRECTORY, start);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the replica's metrics: the calls it answered, how
+     * far it is behind the primary, and the size of its directory.
+     * @return the snapshot
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+        long start = System.nanoTime();
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        metrics.addTo(values);
+        Directory copy = directory;
+        values.put("replica.stalenessMillis", stalenessMillis());
+        values.put("replica.position", position);
+        values.put("replica.snapshots", snapshots.sum());
+        values.put("directory.users", (long)copy.size(false));
+        values.put("directory.groups", (long)copy.size(true));
+        metrics.record(Metrics.Call.GET_METRICS, start);
+        return new MetricsSnapshot(System.currentTimeMillis(), values);
+    }
+
+    /**
+     * Starts a registry for the replica and registers it as "ChatServer", so
+     * that clients find it as they would find a server.
+     * @param	 port	 port of the registry to start
+     * @throws RemoteException on RMI failure, e.g. if the port is taken
+     */
+    public void export(int port) throws RemoteException {
+        if (System.getSecurityManager() ==  null){
+            System.setSecurityManager(new SecurityManager());
+        }
+        Registry registry = LocateRegistry.createRegistry(port);
+        myStub = (ChatServer) UnicastRemoteObject.exportObject(this, 0);
+        registry.rebind("ChatServer", myStub);
+    }
+}
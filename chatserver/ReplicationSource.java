@@ -0,0 +1,29 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The interface read replicas call on the primary server to follow the
+ * changes to its directory of accounts, see {@link ReplicaServer}.
+ */
+public interface ReplicationSource extends Remote {
+
+    /**
+     * Returns the changes to the directory after a given position, waiting
+     * for one if there is none yet. If the replica is too far behind, or
+     * follows an earlier run of the primary, a snapshot of the whole
+     * directory is returned instead.
+     * @param	 source	 source of the changes the replica has, or 0 if it has none yet
+     * @param	 position	 position after the last change the replica has
+     * @param	 waitMillis	 maximum time to wait for a change, in milliseconds
+     * @return the changes, possibly none if no change was made while waiting
+     * @throws RemoteException on RMI failure
+     */
+    DirectoryChanges directoryChanges(long source, long position, long waitMillis) throws RemoteException;
+}
@@ -0,0 +1,67 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of {@link ChatServer#send(String, String, String)}.
+ */
+public class SendResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How the message was handled
+     */
+    public final DeliveryStatus status;
+
+    /**
+     * Summary of the broadcast if the recipient is a group, or null
+     */
+    public final FanoutSummary summary;
+
+    /**
+     * Time after which the message may be sent again if it was throttled, in milliseconds, or 0
+     */
+    public final long retryAfterMillis;
+
+    public SendResult(DeliveryStatus status, FanoutSummary summary) {
+        this(status, summary, 0);
+    }
+
+    public SendResult(DeliveryStatus status, FanoutSummary summary, long retryAfterMillis) {
+        this.status = status;
+        this.summary = summary;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return True if the message was accepted for delivery
+     */
+    public boolean isAccepted() {
+        return status == DeliveryStatus.ONLINE || status == DeliveryStatus.STORED || status == DeliveryStatus.BROADCAST;
+    }
+
+    @Override
+    public String toString() {
+        switch (status) {
+            case ONLINE:
+                return "Message sent";
+            case STORED:
+                return "Recipient is offline, message stored";
+            case REJECTED:
+                return "Cannot send message. The recipient's mailbox is full.";
+            case BROADCAST:
+                return summary != null ? summary.toString() : "Message sent to group";
+            case NO_SUCH_ACCOUNT:
+                return "Cannot send message. No such recipient.";
+            case THROTTLED:
+                return "Cannot send message. Too many messages; try again in " + retryAfterMillis + " ms.";
+            default:
+                return status.toString();
+        }
+    }
+}
@@ -9,336 +9,2692 @@
 package chatserver;
 
 import chatclient.ClientCallback;
+import chatserver.DeliveryScheduler.Priority;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RMISocketFactory;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.stream.Collectors;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * A class to instantiate a chat server for any number of clients. It's interactions with the clientsr are described at
  * the package level.
  * All override methods, all of which throw remoteexceptions, are intended to be called over RMI from the client code
  */
-public class Server implements ChatServer{
+public class Server implements ChatServer, ReplicationSource, MetricsMXBean{
 
     /**
-     * Hashmap that pairs account names to the corresponding ClientCallback object
+     * Map that pairs account names to the corresponding ClientCallback object
      * needed to send messages to that account (user, group, etc).
      *
-     * The use of the HashMap allows constant lookup time
+     * The use of a hash map allows constant lookup time
      * of random items regardless of the number of accounts the server has,
      * making it a good way to store this information for this use.
+     *
+     * RMI dispatches incoming calls on many threads at once, so this is a
+     * ConcurrentHashMap: lookups never block and updates only contend on the
+     * bin of the affected key. Every transition of an entry (e.g. a client
+     * being swapped for a Mailbox on logout) is done with an atomic
+     * replace/putIfAbsent against the value that was observed, so that two
+     * racing calls can never both win.
+     */
+    private ConcurrentHashMap<String, ClientCallback> accounts = new ConcurrentHashMap<String, ClientCallback>();
+
+    /**
+     * Maximum number of messages queued in a logged in client's {@link Outbox}
+     * before it spills to a {@link Mailbox}. Configurable through the
+     * chatserver.outbox.capacity system property.
+     */
+    static final int OUTBOX_CAPACITY = Integer.getInteger("chatserver.outbox.capacity", 1024);
+
+    /**
+     * Number of threads delivering messages to logged in clients. Configurable
+     * through the chatserver.delivery.threads system property.
+     */
+    static final int DELIVERY_THREADS = Integer.getInteger("chatserver.delivery.threads",
+        4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of messages sent to a logged in client that it has not
+     * acknowledged yet, see {@link ClientCallback#receiveSequenced}.
+     * Configurable through the chatserver.delivery.window system property.
+     */
+    static final int DELIVERY_WINDOW = Integer.getInteger("chatserver.delivery.window", 1024);
+
+    /**
+     * Number of consecutive failed deliveries after which a logged in client
+     * is considered dead and its session is ended, keeping its messages in a
+     * mailbox. After each earlier failure, the client's circuit breaker opens
+     * for BREAKER_OPEN_MILLIS. Configurable through the
+     * chatserver.breaker.failures system property.
+     */
+    static final int BREAKER_FAILURES = Integer.getInteger("chatserver.breaker.failures", 3);
+
+    /**
+     * Time, in milliseconds, no delivery to a client is attempted after a
+     * failed one. Configurable through the chatserver.breaker.openMillis
+     * system property.
+     */
+    static final long BREAKER_OPEN_MILLIS = Long.getLong("chatserver.breaker.openMillis", 1000);
+
+    /**
+     * Maximum time, in milliseconds, a call to a client over RMI may take
+     * before it fails, unless sun.rmi.transport.tcp.responseTimeout is set
+     * explicitly. Configurable through the chatserver.callback.timeoutMillis
+     * system property.
+     */
+    static final long CALLBACK_TIMEOUT_MILLIS = Long.getLong("chatserver.callback.timeoutMillis", 10000);
+
+    /**
+     * Duration, in milliseconds, of the lease a client renews with
+     * {@link #renewLease(String)}. Configurable through the
+     * chatserver.lease.millis system property.
+     */
+    static final long LEASE_MILLIS = Math.max(1, Long.getLong("chatserver.lease.millis", 30000));
+
+    /**
+     * Timing wheel ending the sessions of clients whose lease ran out.
+     */
+    private final TimingWheel leaseWheel =
+        new TimingWheel(Math.max(1, Math.min(1000, LEASE_MILLIS / 16)), 512, "chatserver-lease");
+
+    /**
+     * Maximum number of messages coalesced into a single
+     * {@link ClientCallback#receiveMessages(List)} call. Configurable through
+     * the chatserver.batch.maxMessages system property.
+     */
+    static final int BATCH_MAX_MESSAGES = Integer.getInteger("chatserver.batch.maxMessages", 256);
+
+    /**
+     * Maximum size of a single batch, counting one byte per character. A single
+     * message larger than this is still sent, on its own. Configurable through
+     * the chatserver.batch.maxBytes system property.
+     */
+    static final int BATCH_MAX_BYTES = Integer.getInteger("chatserver.batch.maxBytes", 256 * 1024);
+
+    /**
+     * Time, in milliseconds, an idle {@link Outbox} waits after its first
+     * message for more messages to batch with it. 0 delivers right away; under
+     * load, messages still coalesce while the previous batch is in flight.
+     * Configurable through the chatserver.batch.lingerMillis system property.
+     */
+    static final long BATCH_LINGER_MILLIS = Long.getLong("chatserver.batch.lingerMillis", 0);
+
+    /**
+     * Timer used to delay Outbox drains by BATCH_LINGER_MILLIS.
+     */
+    final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chatserver-linger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Number of threads available for group fan-out. Configurable through the
+     * chatserver.fanout.threads system property.
+     */
+    static final int FANOUT_THREADS = Integer.getInteger("chatserver.fanout.threads",
+        Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of slices a single broadcast is split into, i.e. the
+     * maximum number of fan-out threads a single broadcast may occupy.
+     * Configurable through the chatserver.fanout.parallelism system property.
+     */
+    static final int FANOUT_PARALLELISM = Integer.getInteger("chatserver.fanout.parallelism", FANOUT_THREADS);
+
+    /**
+     * Groups with fewer members than this are broadcast to sequentially on the
+     * sender's thread, since handing off the work would cost more than it saves.
+     * Configurable through the chatserver.fanout.parallelThreshold system property.
+     */
+    static final int FANOUT_PARALLEL_THRESHOLD = Integer.getInteger("chatserver.fanout.parallelThreshold", 256);
+
+    /**
+     * Maximum time, in milliseconds, a sender waits for a broadcast to reach
+     * all group members. Deliveries still in progress at that point complete
+     * in the background and are reported as pending. Configurable through the
+     * chatserver.fanout.timeoutMillis system property.
+     */
+    static final long FANOUT_TIMEOUT_MILLIS = Long.getLong("chatserver.fanout.timeoutMillis", 5000);
+
+    /**
+     * Pool of workers performing parallel group fan-out.
+     */
+    private final ExecutorService fanoutWorkers = Executors.newFixedThreadPool(FANOUT_THREADS, r -> {
+        Thread t = new Thread(r, "chatserver-fanout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Off-heap storage for the messages queued in mailboxes. Segments are
+     * memory-mapped files in the directory given by the chatserver.mailstore.dir
+     * system property if it is set, and off-heap memory otherwise. Taken over
+     * from the journal, which recovers the mailboxes' messages into it.
+     */
+    final MailStore mailStore;
+
+    /**
+     * Maximum number of messages a mailbox may hold within its quota, or 0 for
+     * no limit. Configurable through the chatserver.mailbox.maxMessages system
+     * property.
+     */
+    static final int MAILBOX_MAX_MESSAGES = Integer.getInteger("chatserver.mailbox.maxMessages", 0);
+
+    /**
+     * Maximum total size, in bytes of UTF-8, of the messages a mailbox may hold
+     * within its quota, or 0 for no limit. Configurable through the
+     * chatserver.mailbox.maxBytes system property.
+     */
+    static final long MAILBOX_MAX_BYTES = Long.getLong("chatserver.mailbox.maxBytes", 0);
+
+    /**
+     * What to do with a message for a mailbox that is at its quota.
+     * Configurable through the chatserver.mailbox.policy system property.
+     */
+    static final MailboxPolicy MAILBOX_POLICY =
+        MailboxPolicy.valueOf(System.getProperty("chatserver.mailbox.policy", "REJECT_NEW"));
+
+    /**
+     * Time, in milliseconds, after which a message queued in a mailbox
+     * expires, or 0 if messages never expire. Configurable through the
+     * chatserver.mailbox.ttlMillis system property.
+     */
+    static final long MAILBOX_TTL_MILLIS = Long.getLong("chatserver.mailbox.ttlMillis", 0);
+
+    /**
+     * Storage for messages spilled to disk beyond the mailbox quota under the
+     * SPILL policy, in a directory of the server's own within the directory
+     * given by the chatserver.mailbox.spillDir system property, by default
+     * the system's temporary directory.
+     */
+    final MailStore spillStore = new MailStore(new File(System.getProperty("chatserver.mailbox.spillDir",
+        System.getProperty("java.io.tmpdir"))), true);
+
+    /**
+     * Timing wheel expiring mailbox messages, or null if messages never expire.
+     */
+    private final TimingWheel expiryWheel = MAILBOX_TTL_MILLIS > 0 ?
+        new TimingWheel(Math.max(1, Math.min(1000, MAILBOX_TTL_MILLIS / 16)), 512, "chatserver-expiry") : null;
+
+    /**
+     * Number of messages dropped from full mailboxes under the DROP_OLDEST policy.
+     */
+    private final LongAdder droppedMessages = new LongAdder();
+
+    /**
+     * Number of messages moved out of sparse segments of the MailStores, see {@link #compactMailStores()}.
+     */
+    private final LongAdder movedMessages = new LongAdder();
+
+    /**
+     * Number of messages rejected because the recipient's mailbox was full.
+     */
+    private final LongAdder rejectedMessages = new LongAdder();
+
+    /**
+     * Number of messages that expired in a mailbox before they could be delivered.
+     */
+    private final LongAdder expiredMessages = new LongAdder();
+
+    /**
+     * Counters and histograms of the server's work, see {@link #getMetrics()}.
+     */
+    final Metrics metrics = new Metrics();
+
+    /**
+     * Pool of workers draining the {@link Outbox}es of logged in clients,
+     * by the priority of their messages, see {@link DeliveryScheduler}.
+     */
+    private final DeliveryScheduler deliveryWorkers = new DeliveryScheduler(DELIVERY_THREADS, metrics);
+
+    /**
+     * Rate limits and load shedding of sends, see {@link Admission}. The
+     * backlog it sheds on is the number of Outbox drains waiting for a
+     * delivery worker.
+     */
+    private final Admission admission = new Admission(deliveryWorkers::queued, metrics);
+
+    /**
+     * Admission control for logins, which bounds the number of mailboxes
+     * replayed at a time, see {@link ReplayPool}.
+     */
+    final ReplayPool replays = new ReplayPool(lingerTimer, metrics);
+
+    /**
+     * Write-ahead log every change to accounts, groups and mailboxes is
+     * recorded in, so that the server can recover its state after a restart.
+     */
+    private final Journal journal;
+
+    /**
+     * IDs of the names of groups and of their members, see {@link Names}.
+     * Groups hold their members by ID. Also the reverse index of group
+     * membership, maintained by {@link Group#addMember(String)} and
+     * {@link Group#removeIfMember(String)}.
+     */
+    final Names names = new Names();
+
+    /**
+     * Sorted index of the names of all user accounts and groups, used for
+     * listing. Updated together with the account map, while holding the
+     * lock of the account's entry, so that it never disagrees with it for
+     * longer than a listing takes.
+     */
+    private final Directory directory = new Directory();
+
+    /**
+     * Interval, in milliseconds, at which changes to the directory are pushed
+     * to the clients that cache it. Configurable through the
+     * chatserver.directory.pushMillis system property.
+     */
+    static final long PUSH_MILLIS = Math.max(1, Long.getLong("chatserver.directory.pushMillis", 1000));
+
+    /**
+     * Time, in milliseconds, for which the attributes read over JMX are
+     * served from the same snapshot of the metrics, see {@link #jmxSnapshot()}.
+     * Configurable through the chatserver.metrics.jmxCacheMillis system
+     * property.
+     */
+    static final long JMX_CACHE_MILLIS = Long.getLong("chatserver.metrics.jmxCacheMillis", 1000);
+
+    /**
+     * A client caching the directory, see {@link #syncDirectory(String, long, long)}
+     */
+    private static final class Subscriber {
+        final Outbox outbox;
+
+        /**
+         * Position in the directory's changes the client has been sent up to
+         */
+        volatile long position;
+
+        /**
+         * Whether changes are being pushed to the client, so that pushes do
+         * not overtake each other
+         */
+        final AtomicBoolean pushing = new AtomicBoolean();
+
+        Subscriber(Outbox outbox, long position) {
+            this.outbox = outbox;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Clients caching the directory by the name of their account. A client
+     * is dropped when its session ends, or when it falls too far behind.
+     */
+    private final ConcurrentHashMap<String, Subscriber> subscribers = new ConcurrentHashMap<String, Subscriber>();
+
+    /**
+     * The cluster this server is a node of, or null if it runs on its own.
+     * Set by {@link #exportNode(String, List)} before the server is exported.
+     */
+    private Cluster cluster;
+
+    /**
+     * Maximum number of names on one page of a listing. Configurable through
+     * the chatserver.list.maxPageSize system property.
+     */
+    static final int MAX_PAGE_SIZE = Integer.getInteger("chatserver.list.maxPageSize", 1000);
+
+    /**
+     * RMI registry the server is registered to
+     */
+    private Registry registry;
+    /**
+     * Stub that can be exported to allow client to make RMI calls to the server
+     */
+    private ChatServer myStub;
+
+    /**
+     * Creates a server without persistent state.
+     */
+    public Server() {
+        this(Journal.disabled());
+    }
+
+    /**
+     * Creates a server that records its state in the given journal, starting
+     * from the state recovered from it. All recovered users start out offline.
+     *
+     * @param	 journal	 the journal to recover from and append to
+     */
+    public Server(Journal journal) {
+        this.journal = journal;
+        Journal.State recovered = journal.takeRecovered();
+        mailStore = recovered.store;
+        for (Map.Entry<String, Journal.Entry> account : recovered.accounts.entrySet()) {
+            Journal.Entry entry = account.getValue();
+            if (entry.group) {
+                Group group = new Group(this, account.getKey());
+                for (String member : entry.members)
+                    group.add(member);
+                accounts.put(account.getKey(), group);
+            }
+            else {
+                accounts.put(account.getKey(), track(account.getKey(), new Mailbox(account.getKey(), entry)));
+            }
+            directory.add(account.getKey(), entry.group);
+        }
+        lingerTimer.scheduleWithFixedDelay(this::pushDirectoryChanges, PUSH_MILLIS, PUSH_MILLIS, TimeUnit.MILLISECONDS);
+        if (Admission.enabled())
+            lingerTimer.scheduleWithFixedDelay(admission::sweep, 10, 10, TimeUnit.SECONDS);
+        if (MailStore.COMPACT_PERCENT > 0)
+            lingerTimer.scheduleWithFixedDelay(this::compactMailStores, MailStore.COMPACT_MILLIS,
+                MailStore.COMPACT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Class containing a set of accounts. Overrides the receiveMessage function in the client to send messages
+     * to all clients in the group.
+     */
+    public class Group implements ClientCallback {
+        /**
+         * The Server on which on which this group lives. This is used in receiveMessage to
+         * broadcast received messages to the members of the group.
+         */
+        private Server server;
+
+        /**
+         * The account name of this group.
+         */
+        private final String name;
+
+        /**
+         * The ID of the group's name, see {@link Names}.
+         */
+        private final int id;
+
+        /**
+         * The IDs of the account names of all accounts that any messages
+         * received by this group should be re-broadcast to. At all times, the
+         * accounts referenced here MUST refer to user accounts not group accounts.
+         *
+         * A broadcast reads the IDs in batches, so members may be added or
+         * removed while it runs.
+         */
+        private final IdSet members = new IdSet();
+
+        /**
+         * Number of member IDs a broadcast reads from the set at a time
+         */
+        private static final int BATCH = 64;
+
+        public Group(Server TheServer, String groupName) {
+            server = TheServer;
+            name = groupName;
+            id = server.names.intern(groupName);
+        }
+
+        /**
+         * Receives a message from the server and broadcasts it to all members of the group.
+         *
+         * It is important to note that this method calls back to the server object to perform
+         * the actual delivery of the messages, in order to properly handle all cases, e.g.
+         * a dropped client connection.
+         *
+         * @param	 message	 message to receive
+         */
+        @Override
+        public void receiveMessage(String message) throws RemoteException
+        {
+            broadcast(message);
+        }
+
+        /**
+         * Broadcasts a message to all members of the group and reports the outcome.
+         *
+         * Large groups are split into up to FANOUT_PARALLELISM slices which are
+         * delivered to concurrently by the server's fan-out workers. The caller
+         * waits for at most FANOUT_TIMEOUT_MILLIS; members not reached by then are
+         * reported as pending and still receive the message afterwards.
+         *
+         * @param	 message	 message to broadcast
+         * @return summary of the broadcast
+         */
+        public FanoutSummary broadcast(String message)
+        {
+            return broadcast(message, null);
+        }
+
+        /**
+         * Broadcasts a message like {@link #broadcast(String)}, for a known sender.
+         *
+         * @param	 message	 message to broadcast
+         * @param	 sender	 name of the sender's session, or null if it is unknown
+         * @return summary of the broadcast
+         */
+        FanoutSummary broadcast(String message, String sender)
+        {
+            long start = System.nanoTime();
+            int recipients = members.size();
+            // Per status counts, indexed by DeliveryStatus ordinal
+            AtomicIntegerArray counts = new AtomicIntegerArray(DeliveryStatus.values().length);
+            Priority priority = DeliveryScheduler.forGroup(recipients);
+            int slices = Math.min(FANOUT_PARALLELISM, recipients / Math.max(1, FANOUT_PARALLEL_THRESHOLD / 2));
+            if (recipients < FANOUT_PARALLEL_THRESHOLD || slices < 2) {
+                deliver(-1, Integer.MAX_VALUE, message, priority, sender, counts);
+            }
+            else {
+                // Each slice takes the members between two bounds, so that none are missed
+                // if members are added or removed meanwhile
+                int[] bounds = members.split(slices);
+                CountDownLatch done = new CountDownLatch(slices);
+                for (int i = 0; i < slices; i++) {
+                    int after = i == 0 ? -1 : Math.max(-1, bounds[i - 1] - 1);
+                    int last = i == slices - 1 ? Integer.MAX_VALUE : Math.max(after, bounds[i] - 1);
+                    server.fanoutWorkers.execute(() -> {
+                        try {
+                            deliver(after, last, message, priority, sender, counts);
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+                try {
+                    done.await(FANOUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int online = counts.get(DeliveryStatus.ONLINE.ordinal());
+            int stored = counts.get(DeliveryStatus.STORED.ordinal());
+            int failed = counts.get(DeliveryStatus.NO_SUCH_ACCOUNT.ordinal()) +
+                counts.get(DeliveryStatus.REJECTED.ordinal()) +
+                counts.get(DeliveryStatus.BROADCAST.ordinal());
+            long nanos = System.nanoTime() - start;
+            server.metrics.fanoutSize.record(recipients);
+            server.metrics.fanoutTime.record(nanos);
+            return new FanoutSummary(recipients, online, stored, failed,
+                Math.max(0, recipients - online - stored - failed), TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+
+        /**
+         * Delivers a message to the members with IDs in a range, reading them
+         * from the set a batch at a time. A member that is a user account on
+         * this node is delivered to through its delivery target, see
+         * {@link Names#target(int)}, without looking up its name; in a
+         * cluster, the members on other nodes are delivered to with one call
+         * per node once the range is done.
+         *
+         * @param	 after	 the IDs of the members are greater than this
+         * @param	 last	 the IDs of the members are at most this
+         * @param	 message	 message to deliver
+         * @param	 priority	 priority to deliver it with
+         * @param	 sender	 name of the sender's session, or null if it is unknown
+         * @param	 counts	 per status counts to add to, indexed by DeliveryStatus ordinal
+         */
+        private void deliver(int after, int last, String message, Priority priority, String sender,
+                             AtomicIntegerArray counts)
+        {
+            int[] batch = new int[BATCH];
+            Map<String, List<String>> elsewhere = server.cluster == null ? null : new HashMap<String, List<String>>();
+            while (true) {
+                int n = members.next(after, last, batch);
+                for (int i = 0; i < n; i++) {
+                    int member = batch[i];
+                    ClientCallback target = server.names.target(member);
+                    // Only a member without a target here may live on another node
+                    if (target == null && elsewhere != null && server.cluster.route(server.names.name(member), elsewhere))
+                        continue;
+                    counts.incrementAndGet(server.deliverTo(member, target, message, priority, sender).ordinal());
+                }
+                if (n < BATCH)
+                    break;
+                after = batch[n - 1];
+            }
+            if (elsewhere != null && !elsewhere.isEmpty())
+                server.cluster.deliverRemote(elsewhere, message, counts);
+        }
+
+        /**
+         * Adds a member to the group
+         * @param	 member	 member to add to the group
+         * @throws Error with appropriate message if adding the member fails
+         */
+        public void addMember(String member) throws Error
+        {
+            if (server.cluster != null && !server.cluster.owns(member)) {
+                server.cluster.checkMember(member);
+                add(member);
+                server.journal.addRemoteMember(name, member);
+                return;
+            }
+            if (!server.checkForAccount(member))
+                throw new Error("No such account");
+            if (server.accounts.get(member) instanceof Group)
+                throw new Error("Cannot add one group to another");
+            add(member);
+            // The account may have been deleted (and possibly recreated as a
+            // group) while we were adding it. deleteAccount removes the entry
+            // before purging the groups, so re-checking here closes that race.
+            if (!server.isUserAccount(member))
+                removeIfMember(member);
+            else
+                server.journal.addMember(name, member);
+        }
+
+        /**
+         * Adds a member to the group and the server's reverse membership index
+         * @param	 member	 member to add to the group
+         */
+        private void add(String member)
+        {
+            int memberId = server.names.intern(member);
+            if (members.add(memberId))
+                server.names.joined(memberId, id);
+        }
+
+        /**
+         * @return number of members
+         */
+        int memberCount()
+        {
+            return members.size();
+        }
+
+        /**
+         * @return the names of the members
+         */
+        private List<String> memberNames()
+        {
+            int[] ids = members.toArray();
+            List<String> result = new ArrayList<String>(ids.length);
+            for (int member : ids)
+                result.add(server.names.name(member));
+            return result;
+        }
+
+        /**
+         * Adds a member handed over from another node of the cluster, without
+         * checking it
+         * @param	 member	 member to add to the group
+         */
+        private void adopt(String member)
+        {
+            if (members.contains(server.names.intern(member)))
+                return;
+            add(member);
+            if (server.isUserAccount(member))
+                server.journal.addMember(name, member);
+            else
+                server.journal.addRemoteMember(name, member);
+        }
+
+        /**
+         * Removes a member from a group if was a member before (i.e.
+         * passing an account that's not a member is not an error).
+         *
+         * Note that this message MUST be called whenever an account that could
+         * have been a member of this group is removed in order to enforce that
+         * a group may not contain other groups as members (if this method is
+         * not called, a user account could be deleted and recreated as a group,
+         * leading to dispatch loops).
+         *
+         * @param	 member	 member to remove from the group
+         */
+        public void removeIfMember(String member) throws Error
+        {
+            int memberId = server.names.find(member);
+            if (memberId >= 0 && members.remove(memberId))
+                server.names.left(memberId, id);
+        }
+
+        /**
+         * Removes all members, because the group is deleted.
+         */
+        private void clear()
+        {
+            for (int member : members.toArray())
+                removeIfMember(server.names.name(member));
+        }
+    }
+
+    /**
+     * A ClientCallback that implements message queuing while the client is away.
+     * The server substitutes in an instance of this class as a placeholder
+     * whenever a client disconnects from the server (either voluntarily or
+     * forcibly due to an error condition). Once the client reconnects, the
+     * Mailbox is handed to the client's {@link Outbox}, which takes its place
+     * right away and streams its messages to the client in the background,
+     * removing them only as the client acknowledges them. If the client
+     * goes away before it has all of them, the Mailbox takes the place of
+     * the Outbox again, holding the messages that were not acknowledged,
+     * followed by those the Outbox had queued meanwhile.
+     *
+     * A Mailbox may be read by a sender that looked it up just before a login
+     * replaced it. To make sure such a message is neither lost nor delivered
+     * twice, a Mailbox is closed before it is swapped out of the account map;
+     * offering a message to a closed Mailbox fails and the sender has to look
+     * up the account again.
+     */
+    public class Mailbox implements ClientCallback {
+        /**
+         * The account name this mailbox belongs to, used to record changes in the journal.
+         */
+        private final String name;
+
+        /**
+         * Handles of the messages queued in this mailbox, stored in the server's
+         * {@link MailStore}s. This is a ring buffer holding count handles starting
+         * at index head. Guarded by the Mailbox's monitor.
+         */
+        private long[] handles = new long[4];
+
+        /**
+         * Index of the oldest queued message in handles. Guarded by the Mailbox's monitor.
+         */
+        private int head;
+
+        /**
+         * Number of queued messages. Guarded by the Mailbox's monitor.
+         */
+        private int count;
+
+        /**
+         * Sequence number of the message at the head of the mailbox, see
+         * {@link ClientCallback#receiveSequenced}. Messages keep their number
+         * while they are queued, and numbers are never reused within an
+         * epoch, so it also lets a delivery tell whether messages it is
+         * delivering were dropped or expired meanwhile. Guarded by the
+         * Mailbox's monitor.
+         */
+        private long headSequence;
+
+        /**
+         * Epoch of the account's sequence numbers.
+         */
+        private final long epoch;
+
+        /**
+         * The Outbox this mailbox replaced, as long as no delivery has been
+         * attempted from the mailbox. Only that Outbox's messages may get
+         * back their sequence numbers, see {@link #prepend}. Guarded by the
+         * Mailbox's monitor.
+         */
+        private Outbox predecessor;
+
+        /**
+         * Number and total size of the queued messages that count against the
+         * mailbox quota, i.e. that were not spilled to disk. Guarded by the
+         * Mailbox's monitor.
+         */
+        private int quotaCount;
+        private long quotaBytes;
+
+        /**
+         * Whether an expiry check is scheduled on the server's timing wheel.
+         * Guarded by the Mailbox's monitor.
+         */
+        private boolean expiryScheduled;
+
+        /**
+         * Set once the Mailbox has been emptied for good and is about to be
+         * replaced by a client. Guarded by the Mailbox's monitor.
+         */
+        private boolean closed;
+
+        /**
+         * Set while the Mailbox is handed to an Outbox, see {@link #freeze()}.
+         * No messages are added or expired meanwhile, so that the Outbox can
+         * read them by their sequence numbers. Guarded by the Mailbox's monitor.
+         */
+        private boolean frozen;
+
+        /**
+         * The Outbox the Mailbox was last handed to. Guarded by the Mailbox's monitor.
+         */
+        private Outbox owner;
+
+        /**
+         * Held while the Mailbox is being delivered to a client, closed or
+         * prepended to. Delivery removes messages from the head only after they
+         * have been delivered, so nothing else may add messages at the head
+         * meanwhile. Senders never take this lock.
+         */
+        private final Object deliveryLock = new Object();
+
+        /**
+         * Create a mailbox for a new account, starting a new epoch.
+         *
+         * @param accountName the account name this mailbox belongs to
+         */
+        public Mailbox(String accountName) {
+            this(accountName, newEpoch(), 1);
+        }
+
+        /**
+         * Create a mailbox for a new account.
+         *
+         * @param accountName the account name this mailbox belongs to
+         * @param epoch epoch of the account's sequence numbers
+         * @param nextSequence sequence number of the first message queued
+         */
+        private Mailbox(String accountName, long epoch, long nextSequence) {
+            name = accountName;
+            this.epoch = epoch;
+            headSequence = nextSequence;
+        }
+
+        /**
+         * Create a mailbox taking the place of a closed Outbox, continuing
+         * the numbering of its messages.
+         *
+         * @param accountName the account name this mailbox belongs to
+         * @param replaced the Outbox the mailbox replaces
+         */
+        Mailbox(String accountName, Outbox replaced) {
+            this(accountName, replaced.epoch(), replaced.nextSequence());
+            predecessor = replaced;
+        }
+
+        /**
+         * Create a mailbox holding messages recovered from the journal, which
+         * are already in the server's {@link MailStore}. The messages are not
+         * recorded in the journal again. Their time to live started over when
+         * they were recovered.
+         *
+         * @param accountName the account name this mailbox belongs to
+         * @param recovered the account's recovered state
+         */
+        Mailbox(String accountName, Journal.Entry recovered) {
+            this(accountName);
+            for (int i = 0; i < recovered.size(); i++) {
+                long handle = recovered.message(i);
+                add(handle);
+                quotaCount++;
+                quotaBytes += mailStore.length(handle);
+            }
+            scheduleExpiry();
+        }
+
+        /**
+         * Append a handle to the ring buffer, growing it if needed.
+         */
+        private void add(long handle)
+        {
+            if (count == handles.length) {
+                long[] grown = new long[handles.length * 2];
+                for (int i = 0; i < count; i++)
+                    grown[i] = handles[(head + i) % handles.length];
+                handles = grown;
+                head = 0;
+            }
+            handles[(head + count++) % handles.length] = handle;
+        }
+
+        /**
+         * Store a message, counting it against the quota unless it is spilled to disk.
+         *
+         * @return the message's handle
+         */
+        private long store(byte[] utf8, boolean spill)
+        {
+            long now = System.currentTimeMillis();
+            if (spill)
+                return spillStore.append(utf8, now);
+            quotaCount++;
+            quotaBytes += utf8.length;
+            return mailStore.append(utf8, now);
+        }
+
+        private MailStore storeOf(long handle)
+        {
+            return MailStore.isTagged(handle) ? spillStore : mailStore;
+        }
+
+        /**
+         * @return True if adding a message of the given size would exceed the quota
+         */
+        private boolean exceedsQuota(int bytes)
+        {
+            return (MAILBOX_MAX_MESSAGES > 0 && quotaCount + 1 > MAILBOX_MAX_MESSAGES) ||
+                   (MAILBOX_MAX_BYTES > 0 && quotaBytes + bytes > MAILBOX_MAX_BYTES);
+        }
+
+        /**
+         * Remove the message at the head of the mailbox and free its storage.
+         */
+        private void removeHead()
+        {
+            long handle = handles[head];
+            if (!MailStore.isTagged(handle)) {
+                quotaCount--;
+                quotaBytes -= mailStore.length(handle);
+            }
+            storeOf(handle).release(handle);
+            head = (head + 1) % handles.length;
+            count--;
+            headSequence++;
+        }
+
+        /**
+         * Queue a message for later delivery, applying the mailbox quota and
+         * the server's {@link MailboxPolicy} if the mailbox is full.
+         *
+         * @param message the message to queue
+         * @return STORED if the message was queued, REJECTED if the mailbox is
+         *         full and the policy is REJECT_NEW, and null if the Mailbox was
+         *         closed or handed to an Outbox and the message was not queued
+         */
+        public DeliveryStatus offer(String message)
+        {
+            // Encode outside the monitor; the same bytes go to the store and the journal
+            byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+            synchronized (this) {
+                if (closed || frozen)
+                    return null;
+                boolean spill = false;
+                if (exceedsQuota(utf8.length)) {
+                    if (MAILBOX_POLICY == MailboxPolicy.REJECT_NEW || MAILBOX_MAX_BYTES > 0 && utf8.length > MAILBOX_MAX_BYTES) {
+                        rejectedMessages.increment();
+                        return DeliveryStatus.REJECTED;
+                    }
+                    if (MAILBOX_POLICY == MailboxPolicy.DROP_OLDEST) {
+                        int dropped = 0;
+                        while (count > 0 && exceedsQuota(utf8.length)) {
+                            removeHead();
+                            dropped++;
+                        }
+                        if (dropped > 0) {
+                            droppedMessages.add(dropped);
+                            journal.drain(name, dropped);
+                        }
+                    }
+                    else {
+                        spill = true;
+                    }
+                }
+                add(store(utf8, spill));
+                journal.enqueue(name, utf8);
+                scheduleExpiry();
+                return DeliveryStatus.STORED;
+            }
+        }
+
+        /**
+         * Queue a message for later delivery
+         */
+        @Override
+        public void receiveMessage(String message) throws RemoteException
+        {
+            DeliveryStatus status = offer(message);
+            if (status == null)
+                throw new RemoteException("Mailbox is closed");
+            if (status == DeliveryStatus.REJECTED)
+                throw new Error("Mailbox full");
+        }
+
+        /**
+         * Queue messages that were never stored in a mailbox, e.g. the
+         * undelivered messages of a logged out client, ahead of all others.
+         * These messages had already been accepted, so they are queued
+         * regardless of the quota.
+         *
+         * The messages of the Outbox this mailbox replaced get back the
+         * sequence numbers they were sent with, provided nothing has been
+         * delivered since, so the client recognizes those it has already
+         * received. Otherwise, all queued messages are renumbered from the next
+         * unused sequence number: a client may have received higher numbers
+         * meanwhile, and must never be sent a new message with a lower one.
+         *
+         * @param undelivered the messages to queue, in delivery order
+         * @param from the Outbox that handed back the messages
+         * @return False if the Mailbox was closed or handed to an Outbox and the messages were not queued
+         */
+        boolean prepend(List<String> undelivered, Outbox from)
+        {
+            synchronized (deliveryLock) {
+                synchronized (this) {
+                    if (closed || frozen)
+                        return false;
+                    if (undelivered.isEmpty())
+                        return true;
+                    long[] old = handles;
+                    int oldHead = head;
+                    int oldCount = count;
+                    handles = new long[Math.max(4, Integer.highestOneBit(count + undelivered.size()) * 2)];
+                    head = 0;
+                    count = 0;
+                    for (String message : undelivered)
+                        add(store(message.getBytes(StandardCharsets.UTF_8), false));
+                    for (int i = 0; i < oldCount; i++)
+                        add(old[(oldHead + i) % old.length]);
+                    if (from == predecessor && from.resumeSequence() == headSequence - undelivered.size())
+                        headSequence = from.resumeSequence();
+                    else
+                        headSequence += oldCount;
+                    predecessor = null;
+                    journal.prepend(name, undelivered);
+                    scheduleExpiry();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Make sure an expiry check is scheduled for the message at the head
+         * of the mailbox, if messages expire at all.
+         */
+        private void scheduleExpiry()
+        {
+            if (expiryWheel == null || expiryScheduled || count == 0 || closed || frozen)
+                return;
+            expiryScheduled = true;
+            expiryWheel.schedule(storeOf(handles[head]).timestamp(handles[head]) + MAILBOX_TTL_MILLIS, this::expire);
+        }
+
+        /**
+         * Drop all messages at the head of the mailbox whose time to live has
+         * passed. Since messages are queued in order, this is usually all
+         * expired messages; a message that was prepended after a failed delivery
+         * may hold back older ones by up to one time to live.
+         */
+        private synchronized void expire()
+        {
+            expiryScheduled = false;
+            if (closed || frozen)
+                return;
+            long now = System.currentTimeMillis();
+            int expired = 0;
+            while (count > 0 && storeOf(handles[head]).timestamp(handles[head]) + MAILBOX_TTL_MILLIS <= now) {
+                removeHead();
+                expired++;
+            }
+            if (expired > 0) {
+                expiredMessages.add(expired);
+                journal.drain(name, expired);
+            }
+            scheduleExpiry();
+        }
+
+        /**
+         * Decode a batch of messages from the head of the mailbox without
+         * removing them, bounded like the batches of an {@link Outbox}.
+         *
+         * @param batch list to add the messages to, in delivery order
+         * @return the sequence number of the first message of the batch
+         */
+        private synchronized long peek(List<String> batch)
+        {
+            predecessor = null;
+            int bytes = 0;
+            // A frozen Mailbox is delivered by the Outbox it was handed to
+            while (!frozen && batch.size() < count && batch.size() < BATCH_MAX_MESSAGES) {
+                long handle = handles[(head + batch.size()) % handles.length];
+                int length = storeOf(handle).length(handle);
+                if (!batch.isEmpty() && bytes + length > BATCH_MAX_BYTES)
+                    break;
+                bytes += length;
+                batch.add(storeOf(handle).read(handle));
+            }
+            return headSequence;
+        }
+
+        /**
+         * Remove messages that have been delivered from the head of the
+         * mailbox and record that in the journal. Messages that were dropped
+         * or expired while they were being delivered are already gone. Nothing
+         * is recorded once the mailbox has been discarded, since its account
+         * no longer exists.
+         *
+         * @param first sequence number of the first message delivered
+         * @param delivered number of messages delivered
+         */
+        private synchronized void remove(long first, int delivered)
+        {
+            if (closed)
+                return;
+            int remaining = (int)Math.max(0, first + delivered - headSequence);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < remaining; i++) {
+                metrics.mailboxAge.record(now - storeOf(handles[head]).timestamp(handles[head]));
+                removeHead();
+            }
+            if (remaining > 0)
+                journal.drain(name, remaining);
+        }
+
+        /**
+         * Hands the Mailbox to the Outbox of a client logging in: from now on,
+         * messages are neither added nor expired, until the Mailbox is
+         * reopened. Fails if the Mailbox is closed, or handed to another
+         * Outbox already.
+         *
+         * @return True if the Mailbox is now frozen
+         */
+        boolean freeze()
+        {
+            synchronized (deliveryLock) {
+                synchronized (this) {
+                    if (closed || frozen)
+                        return false;
+                    frozen = true;
+                    predecessor = null;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Records the Outbox the frozen Mailbox is handed to, which may
+         * reopen it, see {@link #reopen(Outbox)}.
+         *
+         * @param owner the Outbox
+         */
+        synchronized void handTo(Outbox owner)
+        {
+            this.owner = owner;
+            frozen = true;
+        }
+
+        /**
+         * Reopens the Mailbox once it has taken the place of the Outbox it
+         * was handed to again.
+         *
+         * @param from the Outbox it takes the place of
+         */
+        synchronized void reopen(Outbox from)
+        {
+            if (owner != from || !frozen)
+                return;
+            frozen = false;
+            scheduleExpiry();
+        }
+
+        /**
+         * Decode messages from a frozen Mailbox without removing them, bounded
+         * like the batches of an {@link Outbox}.
+         *
+         * @param from sequence number of the first message to read
+         * @param limit maximum number of messages to read
+         * @param batch list to add the messages to, in delivery order
+         */
+        synchronized void read(long from, int limit, List<String> batch)
+        {
+            int offset = (int)(from - headSequence);
+            int bytes = 0;
+            while (offset >= 0 && offset + batch.size() < count && batch.size() < Math.min(limit, BATCH_MAX_MESSAGES)) {
+                long handle = handles[(head + offset + batch.size()) % handles.length];
+                int length = storeOf(handle).length(handle);
+                if (!batch.isEmpty() && bytes + length > BATCH_MAX_BYTES)
+                    break;
+                bytes += length;
+                batch.add(storeOf(handle).read(handle));
+            }
+        }
+
+        /**
+         * Remove the messages the client has acknowledged, and record that
+         * in the journal: the committed offset the Mailbox resumes from.
+         *
+         * @param sequence sequence number up to which the client has received all messages
+         */
+        synchronized void commit(long sequence)
+        {
+            if (sequence >= headSequence)
+                remove(headSequence, (int)Math.min(count, sequence - headSequence + 1));
+        }
+
+        /**
+         * Queue messages that were never stored in a mailbox at the tail,
+         * regardless of the quota, e.g. those an Outbox queued behind the
+         * messages of the Mailbox it was handed.
+         *
+         * @param messages the messages, in delivery order
+         */
+        synchronized void append(List<String> messages)
+        {
+            for (String message : messages) {
+                byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+                add(store(utf8, false));
+                journal.enqueue(name, utf8);
+            }
+        }
+
+        /**
+         * @return sequence number of the message at the head of the mailbox
+         */
+        synchronized long headSequence()
+        {
+            return headSequence;
+        }
+
+        /**
+         * @return epoch of the account's sequence numbers
+         */
+        long epoch()
+        {
+            return epoch;
+        }
+
+        /**
+         * @return sequence number of the next message queued; the account's
+         *         numbering continues from here
+         */
+        synchronized long nextSequence()
+        {
+            return headSequence + count;
+        }
+
+        /**
+         * @return number of queued messages
+         */
+        synchronized int depth()
+        {
+            return count;
+        }
+
+        /**
+         * @return time the message at the head of the mailbox was stored at, or 0 if the mailbox is empty
+         */
+        synchronized long headTimestamp()
+        {
+            return count == 0 ? 0 : storeOf(handles[head]).timestamp(handles[head]);
+        }
+
+        /**
+         * Move the queued messages that are in segments marked for
+         * evacuation, see {@link MailStore#evacuate()}, to the current
+         * segments of their stores. Their sequence numbers, timestamps and
+         * order stay the same, so this may be done while the Mailbox is frozen.
+         *
+         * @return number of messages moved
+         */
+        synchronized int compact()
+        {
+            int moved = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % handles.length;
+                MailStore store = storeOf(handles[index]);
+                if (store.evacuating(handles[index])) {
+                    handles[index] = store.move(handles[index]);
+                    moved++;
+                }
+            }
+            return moved;
+        }
+
+        /**
+         * Close the Mailbox and drop its messages, because its account was deleted.
+         */
+        private synchronized void discard()
+        {
+            if (closed)
+                return;
+            closed = true;
+            while (count > 0)
+                removeHead();
+        }
+
+        /**
+         * Close the Mailbox if no messages are queued.
+         *
+         * @return True if the Mailbox is now closed
+         */
+        private boolean closeIfEmpty()
+        {
+            synchronized (deliveryLock) {
+                synchronized (this) {
+                    if (count == 0 && !frozen)
+                        closed = true;
+                    return closed;
+                }
+            }
+        }
+
+        /**
+         * Deliver all queued messages to the specified client. Messages that
+         * arrive while the delivery is in progress are delivered as well.
+         *
+         * The messages are streamed from the {@link MailStore} in batches, see
+         * {@link Outbox.Delivery}, numbered with their sequence numbers. A
+         * batch is only removed from the mailbox once the call delivering it
+         * has returned, so if delivery fails, the failed batch and all
+         * following ones remain queued.
+         *
+         * @param to the client to deliver the messages to
+         * @throws RemoteException if the client could not be reached
+         */
+        public void deliverMessages(ClientCallback to) throws RemoteException
+        {
+            synchronized (deliveryLock) {
+                Outbox.Delivery delivery = new Outbox.Delivery(to);
+                while (true) {
+                    List<String> batch = new ArrayList<String>();
+                    long first = peek(batch);
+                    if (batch.isEmpty())
+                        return;
+                    delivery.deliver(epoch, first, batch);
+                    remove(first, batch.size());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds a group member to a group
+     * @param	 groupName	 name of group to add the member to
+     * @param	 accountName	 name of account to add to group
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    @Override
+    public void addGroupMember(String groupName, String accountName) throws RemoteException
+    {
+        long start = System.nanoTime();
+        try {
+            ClientCallback group = accounts.get(groupName);
+            if (!(group instanceof Group))
+                throw new Error("Not a group");
+            ((Group)group).addMember(accountName);
+            journal.sync();
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.ADD_GROUP_MEMBER);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.ADD_GROUP_MEMBER, start);
+        }
+    }
+
+    /**
+     * Checks if an account exists on the server
+     * @param	 accountName	 account to check for
+     * @return True if account exists, false if it does not
+     */
+    @Override
+    public Boolean checkForAccount(String accountName){
+        long start = System.nanoTime();
+        try {
+            return (accounts.containsKey(accountName));
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.CHECK_FOR_ACCOUNT);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.CHECK_FOR_ACCOUNT, start);
+        }
+    }
+
+    /**
+     * Checks if an account exists on the server and is a user account, i.e. not a group
+     * @param	 accountName	 account to check for
+     * @return True if account exists and is not a group, false otherwise
+     */
+    boolean isUserAccount(String accountName){
+        ClientCallback account = accounts.get(accountName);
+        return account != null && !(account instanceof Group);
+    }
+
+    /**
+     * Logs an account with the given name into the server and associates it
+     * with a ClientCallback.
+     *
+     * The client is wrapped in an {@link Outbox}, so that messages sent to it
+     * are delivered asynchronously and a slow client never blocks its senders.
+     *
+     * If there was a mailbox associated with this account name, it is handed
+     * to the Outbox, and login returns right away. The Outbox streams the
+     * mailbox's messages in the background, in bounded batches, before any
+     * new ones, so that the client receives its messages in the order they
+     * were sent. Messages are removed from the mailbox only as the client
+     * acknowledges them, so a stream that breaks off resumes after the last
+     * acknowledged message on the next login, without delivering any twice.
+     * The number of mailboxes streamed at a time may be limited, see
+     * {@link ReplayPool}, in which case logins are throttled when too many
+     * are waiting.
+     *
+     * @param	 id	 name of account to log in
+     * @param	 client	 reference to object with ClientCallback interface
+     * @throws Error if the name belongs to a group, or the login is throttled
+     */
+    @Override
+    public void login(String id, ClientCallback client){
+        long start = System.nanoTime();
+        try {
+            LoginResult result = _login(id, client, clientHost());
+            if (!result.isLoggedIn())
+                throw new Error(result.toString());
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LOGIN);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LOGIN, start);
+        }
+    }
+
+    /**
+     * Logs an account with the given name into the server, creating it if it
+     * does not exist yet, and reports the outcome. Works like
+     * {@link #login(String, ClientCallback)}, but takes a single round-trip
+     * for what would otherwise be checkForAccount, addAccount and login.
+     *
+     * @param	 id	 name of account to log in
+     * @param	 client	 reference to object with ClientCallback interface
+     * @return whether the account was created, logged in, or why not
+     */
+    @Override
+    public LoginResult loginOrCreate(String id, ClientCallback client){
+        long start = System.nanoTime();
+        try {
+            return _login(id, client, clientHost());
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LOGIN_OR_CREATE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LOGIN_OR_CREATE, start);
+        }
+    }
+
+    /**
+     * Method to log in an account, see {@link #login(String, ClientCallback)}
+     * @param	 id	 name of account to log in
+     * @param	 client	 reference to object with ClientCallback interface
+     * @param	 host	 host the client logs in from over RMI, or null
+     * @return whether the account was created, logged in, or why not
+     */
+    private LoginResult _login(String id, ClientCallback client, String host){
+       //on login, key/value pair of client name/reference to client is added to accounts.
+       //This is later used for lookup to send messages to that client
+        while (true) {
+            ClientCallback old = accounts.get(id);
+            if (old == null) {
+                Outbox outbox = new Outbox(this, id, client, deliveryWorkers, OUTBOX_CAPACITY, newEpoch(), 1);
+                outbox.host = host;
+                if (accounts.computeIfAbsent(id, name -> {
+                        journal.addAccount(name);
+                        directory.add(name, false);
+                        return track(name, outbox);
+                    }) == outbox) {
+                    journal.sync();
+                    return new LoginResult(LoginResult.Status.CREATED);
+                }
+            }
+            else if (old instanceof Mailbox) {
+                // The mailbox is handed to the client's Outbox, which streams
+                // its messages in the background. Fails if another login is
+                // handing it over already, or it has just been closed.
+                Mailbox mailbox = (Mailbox)old;
+                boolean admitted = ReplayPool.enabled() && mailbox.depth() > 0;
+                if (admitted) {
+                    long retryAfter = replays.admit();
+                    if (retryAfter > 0)
+                        return new LoginResult(LoginResult.Status.THROTTLED, retryAfter);
+                }
+                if (mailbox.freeze()) {
+                    Outbox outbox = new Outbox(this, id, client, deliveryWorkers, OUTBOX_CAPACITY,
+                        mailbox.epoch(), mailbox);
+                    outbox.host = host;
+                    mailbox.handTo(outbox);
+                    if (accounts.computeIfPresent(id, (name, current) ->
+                            current == mailbox ? track(name, outbox) : current) == outbox) {
+                        if (outbox.replaying() != null)
+                            replays.start(id, outbox, admitted);
+                        else if (admitted)
+                            replays.cancel();
+                        return new LoginResult(LoginResult.Status.LOGGED_IN);
+                    }
+                    mailbox.reopen(outbox);
+                }
+                if (admitted)
+                    replays.cancel();
+            }
+            else if (old instanceof Group) {
+                return new LoginResult(LoginResult.Status.NOT_A_USER);
+            }
+            else {
+                Outbox[] replaced = new Outbox[1];
+                accounts.compute(id, (name, current) -> {
+                    if (current != old)
+                        return current;
+                    // Messages still unacknowledged by a previous session go to
+                    // this one, with the sequence numbers they were sent with. If
+                    // the previous session was closed already, its messages are on
+                    // their way back through spill and will be numbered anew. If
+                    // it was still streaming a mailbox, this one takes that over.
+                    Outbox previous = (Outbox)old;
+                    List<String> pending = previous.close();
+                    Mailbox backlog = previous.replaying();
+                    if (backlog != null) {
+                        replaced[0] = new Outbox(this, id, client, deliveryWorkers, OUTBOX_CAPACITY,
+                            previous.epoch(), backlog);
+                        replaced[0].host = host;
+                        backlog.handTo(replaced[0]);
+                        return track(name, replaced[0]);
+                    }
+                    replaced[0] = new Outbox(this, id, client, deliveryWorkers, OUTBOX_CAPACITY,
+                        previous.epoch(), previous.nextSequence() - pending.size());
+                    replaced[0].host = host;
+                    replaced[0].requeue(pending);
+                    return track(name, replaced[0]);
+                });
+                if (replaced[0] != null) {
+                    // Takes over the previous session's place in the replay pool
+                    if (replaced[0].replaying() != null)
+                        replays.start(id, replaced[0], false);
+                    return new LoginResult(LoginResult.Status.LOGGED_IN);
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs out an account with the given name
+     *
+     * The account name will now refer to a mailbox instead, queueing up messages
+     * until the next time the user reconnects to this server. Messages that
+     * were still waiting in the client's {@link Outbox} are moved to the
+     * mailbox. An account that already has a mailbox keeps it.
+     *
+     * @param	 id	 name of account to log out
+     */
+    public void logout(String id){
+        long start = System.nanoTime();
+        try {
+            _logout(id, outbox -> true);
+            journal.sync();
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LOGOUT);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LOGOUT, start);
+        }
+    }
+
+    /**
+     * Logs out a client whose connection was closed, unless the account has
+     * logged in again with another client meanwhile. Works like
+     * {@link #logout(String)} otherwise.
+     *
+     * @param	 id	 name of the account the client was logged in as
+     * @param	 client	 the client whose connection was closed
+     */
+    void disconnected(String id, ClientCallback client){
+        if (_logout(id, outbox -> outbox.isFor(client)))
+            journal.sync();
+    }
+
+    /**
+     * Swaps the Outbox of a logged in client for a mailbox and hands its
+     * unacknowledged messages back to that mailbox.
+     *
+     * @param	 id	 name of the account to log out
+     * @param	 which	 decides whether the account's current Outbox is the one to close
+     * @return True if an Outbox was closed
+     */
+    private boolean _logout(String id, Predicate<Outbox> which){
+        List<String> pending = new ArrayList<String>();
+        Outbox[] closed = new Outbox[1];
+        Mailbox[] mailbox = new Mailbox[1];
+        accounts.compute(id, (name, current) -> {
+            if (!(current instanceof Outbox) || !which.test((Outbox)current))
+                return current;
+            closed[0] = (Outbox)current;
+            pending.addAll(closed[0].close());
+            return mailbox[0] = track(name, mailboxFor(name, closed[0]));
+        });
+        if (closed[0] == null)
+            return false;
+        mailbox[0].reopen(closed[0]);
+        replays.finished(id, closed[0]);
+        spill(id, closed[0], pending);
+        return true;
+    }
+
+    /**
+     * Renews the lease of the client logged in under the given name. The
+     * first renewal starts checking the lease; clients that never renew
+     * (such as clients built before leases existed) keep their session until
+     * they log out or cannot be reached.
+     * @param	 id	 name of the account the client is logged in as
+     * @return duration of the lease in milliseconds, or 0 if no client is logged in under that name
+     */
+    @Override
+    public long renewLease(String id){
+        long start = System.nanoTime();
+        try {
+            ClientCallback current = accounts.get(id);
+            if (!(current instanceof Outbox))
+                return 0;
+            Outbox outbox = (Outbox)current;
+            long expiry = System.currentTimeMillis() + LEASE_MILLIS;
+            if (outbox.renewLease(expiry))
+                leaseWheel.schedule(expiry, () -> checkLease(id, outbox));
+            return LEASE_MILLIS;
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.RENEW_LEASE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.RENEW_LEASE, start);
+        }
+    }
+
+    /**
+     * Ends the session of a client whose lease has run out, or checks again
+     * when the renewed lease will have run out. Runs on the lease wheel's
+     * thread.
+     *
+     * @param	 id	 name of the account the client is logged in as
+     * @param	 outbox	 the client's Outbox
+     */
+    private void checkLease(String id, Outbox outbox){
+        if (accounts.get(id) != outbox)
+            return;
+        long expiry = outbox.leaseExpiry();
+        if (expiry > System.currentTimeMillis()) {
+            leaseWheel.schedule(expiry, () -> checkLease(id, outbox));
+            return;
+        }
+        System.out.println("Lease of " + id + " expired.");
+        if (_logout(id, current -> current == outbox)) {
+            metrics.expiredLeases.increment();
+            journal.sync();
+        }
+    }
+
+    /**
+     * Passes an acknowledgement received separately from the delivery on to
+     * the client's {@link Outbox}, see {@link ClientCallback#receiveSequenced}.
+     *
+     * @param	 id	 name of the account the client is logged in as
+     * @param	 client	 the client acknowledging
+     * @param	 epoch	 epoch the acknowledgement refers to
+     * @param	 sequence	 sequence number up to which the client has received all messages
+     */
+    void acknowledge(String id, ClientCallback client, long epoch, long sequence){
+        ClientCallback current = accounts.get(id);
+        if (current instanceof Outbox && ((Outbox)current).isFor(client))
+            ((Outbox)current).acknowledge(epoch, sequence);
+    }
+
+    /**
+     * @return a fresh epoch for the sequence numbers of an account's messages
+     */
+    static long newEpoch(){
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /**
+     * Swaps a client that could not be reached for a mailbox, unless the
+     * account has changed since (e.g. because the user logged in again).
+     *
+     * @param	 id	 name of the account the client was logged in as
+     * @param	 client	 the client that could not be reached
+     */
+    private void park(String id, ClientCallback client){
+        if (client instanceof Outbox)
+            replaceOutbox(id, (Outbox)client);
+    }
+
+    /**
+     * Records where messages to an account go from now on, see
+     * {@link Names#target(int)}. Called from within the account's transitions
+     * in the account map, so that its entry there and its delivery target
+     * change together.
+     *
+     * @param	 name	 name of the account
+     * @param	 target	 the account's new Mailbox or Outbox, or null if it is removed
+     * @return the target
+     */
+    private <T extends ClientCallback> T track(String name, T target){
+        int id = target == null ? names.find(name) : names.intern(name);
+        if (id >= 0)
+            names.setTarget(id, target);
+        return target;
+    }
+
+    /**
+     * @param	 id	 name of the account
+     * @param	 outbox	 a closed Outbox of the account
+     * @return the mailbox to take the Outbox's place: the one it was
+     *         streaming, if it had not finished, or a new one
+     */
+    private Mailbox mailboxFor(String id, Outbox outbox){
+        Mailbox backlog = outbox.replaying();
+        return backlog != null ? backlog : new Mailbox(id, outbox);
+    }
+
+    /**
+     * Swaps a closed Outbox for a mailbox, unless that has happened already.
+     *
+     * @param	 id	 name of the account
+     * @param	 outbox	 the closed Outbox
+     */
+    private void replaceOutbox(String id, Outbox outbox){
+        Mailbox mailbox = mailboxFor(id, outbox);
+        boolean[] replaced = new boolean[1];
+        accounts.computeIfPresent(id, (name, current) -> {
+            if (current != outbox)
+                return current;
+            replaced[0] = true;
+            return track(name, mailbox);
+        });
+        // A mailbox the Outbox was streaming only takes messages again once it is back in place
+        if (replaced[0])
+            mailbox.reopen(outbox);
+        replays.finished(id, outbox);
+    }
+
+    /**
+     * Called by a closed {@link Outbox} to hand back its undelivered messages.
+     *
+     * The Outbox is swapped for a mailbox (unless that has happened
+     * already) and the messages are put at the head of that mailbox, keeping
+     * their sequence numbers. If the account has changed since, the messages
+     * are put at the head of its current mailbox or re-delivered to its
+     * current client instead.
+     *
+     * @param	 id	 name of the account the Outbox belonged to
+     * @param	 outbox	 the Outbox that was closed
+     * @param	 undelivered	 messages that were not acknowledged, in delivery order
+     */
+    void spill(String id, Outbox outbox, List<String> undelivered){
+        replaceOutbox(id, outbox);
+        if (undelivered.isEmpty())
+            return;
+        while (true) {
+            ClientCallback current = accounts.get(id);
+            if (current == null || current instanceof Group)
+                return;
+            if (current instanceof Mailbox) {
+                if (((Mailbox)current).prepend(undelivered, outbox))
+                    return;
+            }
+            else if (current instanceof Outbox) {
+                if (((Outbox)current).requeue(undelivered))
+                    return;
+            }
+            else {
+                for (String message : undelivered)
+                    _deliver(id, message, Priority.MAILBOX_REPLAY, null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method to add account or group to the HashMap storing account and group names
+     * @param	 accountName	 name of account to add
+     * @param	 x	 ClientCallback object corresponding to account name, which provides a reference so server can send messages
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    private void _addAccount(String accountName, ClientCallback x) throws RemoteException {
+        ClientCallback added = accounts.computeIfAbsent(accountName, name -> {
+            if (x instanceof Group)
+                journal.addGroup(name);
+            else
+                journal.addAccount(name);
+            directory.add(name, x instanceof Group);
+            return x instanceof Group ? x : track(name, x);
+        });
+        if (added != x) {
+            throw new Error("Account name already exists");
+        }
+        journal.sync();
+    }
+
+    /**
+     * Adds an account to the server
+     * @param	 accountName	 name of account to add
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    @Override
+    public void addAccount(String accountName) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            _addAccount(accountName, new Mailbox(accountName));
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.ADD_ACCOUNT);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.ADD_ACCOUNT, start);
+        }
+    }
+
+    /**
+     * Adds a group to the server
+     * @param	 groupName	 name of group to add
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    @Override
+    public void addGroup(String groupName) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            _addAccount(groupName, new Group(this, groupName));
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.ADD_GROUP);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.ADD_GROUP, start);
+        }
+    }
+
+    /**
+     * Lists accounts on the server, with an optional parameter query which lists a subset of accounts by wildcard
+     * @param	 query	 query with wildcard to return a subset of all groups
+     * @return list of accounts on server, sorted by name
+     * @throws RemoteException on RMI failure. Check connection to server.
+     * @throws Error if the query is not a valid regular expression
+     */
+    @Override
+    public List<String> listAccounts(String query) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            return directory.list(query, false);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_ACCOUNTS);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_ACCOUNTS, start);
+        }
+    }
+
+    /**
+     * Lists groups on the server, with an optional parameter query which lists a subset of accounts by wildcard
+     * @param	 query	 query with wildcard to return a subset of all groups
+     * @return list of groups, sorted by name
+     * @throws RemoteException on RMI failure. Check connection to server.
+     * @throws Error if the query is not a valid regular expression
+     */
+    @Override
+    public List<String> listGroups(String query) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            return directory.list(query, true);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_GROUPS);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_GROUPS, start);
+        }
+    }
+
+    /**
+     * Method to list one page of accounts or groups
+     * @param	 directory	 the index to list from
+     * @param	 query	 query with wildcard to return a subset of all accounts or groups
+     * @param	 cursor	 cursor returned with the previous page, or null to start at the beginning
+     * @param	 pageSize	 maximum number of names on the page, capped at {@link #MAX_PAGE_SIZE}
+     * @param	 groups	 True to list groups, false to list user accounts
+     * @return the page
+     * @throws Error if the query is not a valid regular expression or the cursor is malformed
+     */
+    static ListPage listPage(Directory directory, String query, String cursor, int pageSize, boolean groups) {
+        String after = null;
+        if (cursor != null) {
+            try {
+                after = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                throw new Error("Invalid cursor");
+            }
+        }
+        String[] next = new String[1];
+        List<String> names = directory.page(query, groups, after, Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE)), next);
+        return new ListPage(names, next[0] == null ? null : cursorAfter(next[0]));
+    }
+
+    /**
+     * @param	 name	 the last name on a page
+     * @return the cursor to continue a listing after the given name
+     */
+    static String cursorAfter(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lists one page of the accounts on the server
+     * @param	 query	 query with wildcard to return a subset of all accounts
+     * @param	 cursor	 cursor returned with the previous page, or null to start at the beginning
+     * @param	 pageSize	 maximum number of names on the page
+     * @return the page
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    @Override
+    public ListPage listAccountsPage(String query, String cursor, int pageSize) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            return listPage(directory, query, cursor, pageSize, false);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_ACCOUNTS_PAGE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_ACCOUNTS_PAGE, start);
+        }
+    }
+
+    /**
+     * Lists one page of the groups on the server
+     * @param	 query	 query with wildcard to return a subset of all groups
+     * @param	 cursor	 cursor returned with the previous page, or null to start at the beginning
+     * @param	 pageSize	 maximum number of names on the page
+     * @return the page
+     * @throws RemoteException on RMI failure. Check connection to server.
+     */
+    @Override
+    public ListPage listGroupsPage(String query, String cursor, int pageSize) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            return listPage(directory, query, cursor, pageSize, true);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LIST_GROUPS_PAGE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LIST_GROUPS_PAGE, start);
+        }
+    }
+
+    /**
+     * Deletes an account
+     *
+     * The account is removed from the account map before it is purged from
+     * the groups, see {@link Group#addMember(String)}. Only the groups the
+     * account is a member of are visited, as found in the reverse membership
+     * index.
+     *
+     * @param	 accountName	 name of account to delete
+     * @return 0 if successful and -1 if account does not exist
+     */
+    public int deleteAccount(String accountName){
+        long start = System.nanoTime();
+        try {
+            ClientCallback[] removed = new ClientCallback[1];
+            accounts.computeIfPresent(accountName, (name, account) -> {
+                removed[0] = account;
+                // A logged in client's Outbox stops delivering; its messages go with the account. It
+                // is closed first, as it may still append them to the mailbox it streams.
+                if (account instanceof Outbox)
+                    ((Outbox)account).close();
+                journal.delete(name);
+                directory.remove(name, account instanceof Group);
+                // Including a mailbox a logged in client is still streaming
+                Mailbox mailbox = account instanceof Mailbox ? (Mailbox)account :
+                    account instanceof Outbox ? ((Outbox)account).replaying() : null;
+                if (mailbox != null)
+                    mailbox.discard();
+                return track(name, null);
+            });
+            if(removed[0] != null){
+                // Then remove the account from all groups
+                _forgetMember(accountName);
+                if (removed[0] instanceof Group)
+                    ((Group)removed[0]).clear();
+                else if (removed[0] instanceof Outbox)
+                    replays.finished(accountName, (Outbox)removed[0]);
+                journal.sync();
+                return 0;
+            }
+            else{
+                return -1;
+            }
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.DELETE_ACCOUNT);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.DELETE_ACCOUNT, start);
+        }
+    }
+
+    /**
+     * Removes an account from all groups it is a member of
+     * @param	 accountName	 name of the account
+     */
+    private void _forgetMember(String accountName){
+        int id = names.find(accountName);
+        int[] groups = id < 0 ? null : names.leaveAll(id);
+        if (groups != null)
+            for (int groupId : groups) {
+                ClientCallback group = accounts.get(names.name(groupId));
+                if (group instanceof Group)
+                    ((Group)group).removeIfMember(accountName);
+            }
+    }
+
+    /**
+     * Removes an account deleted on another node of the cluster from the
+     * groups on this one
+     * @param	 accountName	 name of the deleted account
+     */
+    void forgetMember(String accountName){
+        if (accounts.containsKey(accountName))
+            return;
+        journal.delete(accountName);
+        _forgetMember(accountName);
+        journal.sync();
+    }
+
+    /**
+     * Sends a message to a given client or group of clients
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @throws Error if there is no such account, or the message is too long or throttled
+     */
+    @Override
+    public void sendMessage(String accountName, String message) {
+        sendMessageAs(session(null), accountName, message);
+    }
+
+    /**
+     * Sends a message like {@link #sendMessage(String, String)}, for a front
+     * end that knows who is sending it.
+     * @param	 session	 name the sender is rate limited by, see {@link #session(String)}, or null if it is unknown
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @throws Error if there is no such account, or the message is too long or throttled
+     */
+    void sendMessageAs(String session, String accountName, String message) {
+        long start = System.nanoTime();
+        try {
+            checkLength(message);
+            long retryAfter = admit(session, accounts.get(accountName));
+            if (retryAfter > 0)
+                throw new Error("Too many messages. Try again in " + retryAfter + " ms.");
+            DeliveryStatus status = _deliver(accountName, message, session);
+            if (status == DeliveryStatus.NO_SUCH_ACCOUNT)
+                throw new Error("No such account");
+            if (status == DeliveryStatus.REJECTED)
+                throw new Error("Mailbox full");
+            journal.sync();
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.SEND_MESSAGE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.SEND_MESSAGE, start);
+        }
+    }
+
+    /**
+     * Sends a message to a given client or group of clients and reports the
+     * outcome, instead of checking for the account first and throwing an
+     * Error if the message could not be sent.
+     * @param	 sender	 name of the account sending the message
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @return how the message was handled, with a summary of the broadcast if the recipient is a group
+     * @throws Error if the message is too long
+     */
+    @Override
+    public SendResult send(String sender, String accountName, String message) {
+        return sendAs(session(sender), accountName, message);
+    }
+
+    /**
+     * Sends a message like {@link #send(String, String, String)}, for a front
+     * end that knows who is sending it.
+     * @param	 session	 name the sender is rate limited by, see {@link #session(String)}, or null if it is unknown
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @return how the message was handled, with a summary of the broadcast if the recipient is a group
+     * @throws Error if the message is too long
+     */
+    SendResult sendAs(String session, String accountName, String message) {
+        long start = System.nanoTime();
+        try {
+            checkLength(message);
+            ClientCallback target = accounts.get(accountName);
+            long retryAfter = admit(session, target);
+            if (retryAfter > 0)
+                return new SendResult(DeliveryStatus.THROTTLED, null, retryAfter);
+            SendResult result;
+            if (target instanceof Group)
+                result = new SendResult(DeliveryStatus.BROADCAST, ((Group)target).broadcast(message, session));
+            else
+                result = new SendResult(_deliver(accountName, message, session), null);
+            if (result.isAccepted())
+                journal.sync();
+            return result;
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.SEND);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.SEND, start);
+        }
+    }
+
+    /**
+     * Broadcasts a message to all members of a group and reports the outcome
+     * @param	 groupName	 name of the group to send the message to
+     * @param	 message	 message to send
+     * @return summary of the broadcast
+     * @throws Error if there is no such group, or the message is too long or throttled
+     */
+    @Override
+    public FanoutSummary broadcastMessage(String groupName, String message) {
+        return broadcastMessageAs(session(null), groupName, message);
+    }
+
+    /**
+     * Broadcasts a message like {@link #broadcastMessage(String, String)},
+     * for a front end that knows who is sending it.
+     * @param	 session	 name the sender is rate limited by, see {@link #session(String)}, or null if it is unknown
+     * @param	 groupName	 name of the group to send the message to
+     * @param	 message	 message to send
+     * @return summary of the broadcast
+     * @throws Error if there is no such group, or the message is too long or throttled
+     */
+    FanoutSummary broadcastMessageAs(String session, String groupName, String message) {
+        long start = System.nanoTime();
+        try {
+            checkLength(message);
+            ClientCallback group = accounts.get(groupName);
+            if (!(group instanceof Group))
+                throw new Error("Not a group");
+            long retryAfter = admit(session, group);
+            if (retryAfter > 0)
+                throw new Error("Too many messages. Try again in " + retryAfter + " ms.");
+            FanoutSummary summary = ((Group)group).broadcast(message, session);
+            journal.sync();
+            return summary;
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.BROADCAST_MESSAGE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.BROADCAST_MESSAGE, start);
+        }
+    }
+
+    /**
+     * Rejects a message too long for a client's connection to frame, which
+     * could otherwise never be delivered, see {@link Frames#MAX_MESSAGE_BYTES}.
+     * @param	 message	 message to send
+     * @throws Error if the message is too long
+     */
+    private static void checkLength(String message) {
+        if (message != null && !Frames.fits(message))
+            throw new Error("Message too long");
+    }
+
+    /**
+     * Decides whether to admit a send, see {@link Admission}. A send to a
+     * group costs one delivery per member.
+     * @param	 sender	 name the sender is rate limited by, or null if it is unknown
+     * @param	 target	 account sent to, or null if there is none
+     * @return 0 if the send is admitted, or the time after which to retry it, in milliseconds
+     */
+    private long admit(String sender, ClientCallback target) {
+        if (!Admission.enabled())
+            return 0;
+        if (target instanceof Group)
+            return admission.admit(sender, ((Group)target).name, Math.max(1, ((Group)target).memberCount()));
+        return admission.admit(sender, null, 1);
+    }
+
+    /**
+     * @return the host of the client whose RMI call is being served, or null outside of an RMI call
      */
-    private HashMap<String, ClientCallback> accounts = new HashMap<String, ClientCallback>();
+    private static String clientHost() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return null;
+        }
+    }
 
     /**
-     * RMI registry the server is registered to
+     * Names the session a send over RMI comes from, which its sender is rate
+     * limited by, see {@link Admission}: the account the caller names as
+     * the sender, provided it is logged in from the caller's host, and the
+     * caller's host otherwise. Front ends that know the account logged in on
+     * a connection, like the {@link NioServer}, name the session themselves.
+     * @param	 sender	 name of the account the caller claims to send as, or null
+     * @return name of the session; the claimed sender outside of an RMI call
      */
-    private Registry registry;
+    String session(String sender) {
+        String host = clientHost();
+        if (host == null)
+            return sender;
+        if (sender != null) {
+            ClientCallback client = accounts.get(sender);
+            if (client instanceof Outbox && host.equals(((Outbox)client).host))
+                return sender;
+        }
+        return "host:" + host;
+    }
+
     /**
-     * Stub that can be exported to allow client to make RMI calls to the server
+     * Delivers a message to whatever is currently registered under the given
+     * account name.
+     *
+     * For a logged in client, this only queues the message in its
+     * {@link Outbox}. If the Outbox is closed or overflows, it is swapped for
+     * a mailbox and the message is retried against the new state of the account. If the
+     * account's mailbox was closed by a concurrent login, the message is
+     * likewise retried, and will reach the freshly logged in client.
+     *
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @param	 sender	 name of the sender's session, or null if it is unknown
+     * @return how the message was handled
      */
-    private ChatServer myStub;
+    private DeliveryStatus _deliver(String accountName, String message, String sender) {
+        return _deliver(accountName, message, Priority.DIRECT, sender);
+    }
 
     /**
-     * Class containing a set of accounts. Overrides the receiveMessage function in the client to send messages
-     * to all clients in the group.
+     * Delivers a message like {@link #_deliver(String, String, String)}, in the given
+     * class of deliveries.
+     *
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @param	 priority	 class of the delivery to a logged in client
+     * @param	 sender	 name of the sender's session, or null if it is unknown
+     * @return how the message was handled
      */
-    public class Group implements ClientCallback {
-        /**
-         * The Server on which on which this group lives. This is used in receiveMessage to
-         * broadcast received messages to the members of the group.
-         */
-        private Server server;
-        
-        /**
-         * The account names of all accounts that any messages received by this
-         * group should be re-broadcast to. At all times, the accounts referenced
-         * here MUST refer to user accounts not group accounts.
-         */
-        private Set<String> members;
+    private DeliveryStatus _deliver(String accountName, String message, Priority priority, String sender) {
+        return _deliver(accountName, message, true, priority, sender);
+    }
 
-        public Group(Server TheServer) {
-            server = TheServer;
-            members = new HashSet<String>();
+    /**
+     * Delivers a message like {@link #_deliver(String, String, Priority, String)}. In a
+     * cluster, a message for an account this node does not hold, but another
+     * node owns, is passed on to that node, e.g. when the sender routed it
+     * here while the account was being handed over.
+     *
+     * @param	 accountName	 name of account or group to send the message to
+     * @param	 message	 message to send
+     * @param	 forward	 whether to pass the message on to the account's node
+     * @param	 priority	 class of the delivery to a logged in client
+     * @param	 sender	 name of the sender's session, or null if it is unknown
+     * @return how the message was handled
+     */
+    private DeliveryStatus _deliver(String accountName, String message, boolean forward, Priority priority,
+                                    String sender) {
+        while (true) {
+            ClientCallback targetClient = accounts.get(accountName);
+            if (targetClient == null) {
+                if (forward && cluster != null && !cluster.owns(accountName))
+                    return cluster.deliver(accountName, message);
+                return DeliveryStatus.NO_SUCH_ACCOUNT;
+            }
+            if (targetClient instanceof Mailbox) {
+                DeliveryStatus status = ((Mailbox)targetClient).offer(message);
+                if (status != null)
+                    return status;
+                continue;
+            }
+            try {
+                if (targetClient instanceof Outbox)
+                    ((Outbox)targetClient).receiveMessage(message, priority, sender);
+                else if (targetClient instanceof Group)
+                    ((Group)targetClient).broadcast(message, sender);
+                else
+                    targetClient.receiveMessage(message);
+                return targetClient instanceof Group ? DeliveryStatus.BROADCAST : DeliveryStatus.ONLINE;
+            }
+            catch (RemoteException e){
+                if (targetClient instanceof Group)
+                    return DeliveryStatus.BROADCAST;
+                // If this was an actual client (or its Outbox overflowed), log
+                // out that client and deliver the message to the mailbox.
+                park(accountName, targetClient);
+            }
         }
+    }
 
-        /**
-         * Receives a message from the server and broadcasts it to all members of the group.
-         *
-         * It is important to note that this method calls back to the server object to perform
-         * the actual delivery of the messages, in order to properly handle all cases, e.g.
-         * a dropped client connection.
-         *
-         * @param	 message	 message to receive
-         */
-        @Override
-        public void receiveMessage(String message) throws RemoteException
-        {
-            List<String> deadMembers = new ArrayList<String>();
-            for (String member : members) {
-                server.sendMessage(member, message);
+    /**
+     * Delivers a message to a member of a group through the delivery target
+     * recorded for its ID, see {@link Names#target(int)}. A Mailbox or Outbox
+     * is closed before it is swapped out of the account map, so a target
+     * that is out of date rejects the message, which is then delivered by
+     * name like a direct message; so is a message to a member without a
+     * target.
+     * @param	 id	 ID of the member
+     * @param	 target	 the member's delivery target as read by the caller, or null
+     * @param	 message	 message to deliver
+     * @param	 priority	 priority to deliver it with
+     * @param	 sender	 name of the sender's session, or null if it is unknown
+     * @return how the message was handled
+     */
+    private DeliveryStatus deliverTo(int id, ClientCallback target, String message, Priority priority,
+                                     String sender) {
+        if (target instanceof Mailbox) {
+            DeliveryStatus status = ((Mailbox)target).offer(message);
+            if (status != null)
+                return status;
+        }
+        else if (target instanceof Outbox) {
+            try {
+                ((Outbox)target).receiveMessage(message, priority, sender);
+                return DeliveryStatus.ONLINE;
+            }
+            catch (RemoteException e){
+                park(names.name(id), target);
             }
         }
+        return _deliver(names.name(id), message, priority, sender);
+    }
 
-        /**
-         * Adds a member to the group
-         * @param	 member	 member to add to the group
-         * @throws Error with appropriate message if adding the member fails
-         */
-        public void addMember(String member) throws Error
-        {
-            if (!server.checkForAccount(member))
-                throw new Error("No such account");
-            if (server.accounts.get(member) instanceof Group)
-                throw new Error("Cannot add one group to another");
-            members.add(member);
+    /**
+     * Delivers a message to several user accounts on this node, for a group
+     * broadcast on another node of the cluster. Groups are skipped, as a
+     * group may only have users as members.
+     * @param	 accountNames	 names of the accounts
+     * @param	 message	 message to deliver
+     * @return number of accounts the message was delivered with each status, indexed by {@link DeliveryStatus} ordinal
+     */
+    int[] deliverAll(List<String> accountNames, String message) {
+        int[] counts = new int[DeliveryStatus.values().length];
+        // A single account is a message passed on by Cluster.deliver, or as good as one
+        Priority priority = accountNames.size() == 1 ? Priority.DIRECT : DeliveryScheduler.forGroup(accountNames.size());
+        for (String accountName : accountNames) {
+            if (accounts.get(accountName) instanceof Group)
+                counts[DeliveryStatus.NO_SUCH_ACCOUNT.ordinal()]++;
+            else
+                counts[_deliver(accountName, message, false, priority, null).ordinal()]++;
         }
+        journal.sync();
+        return counts;
+    }
 
-        /**
-         * Removes a member from a group if was a member before (i.e.
-         * passing an account that's not a member is not an error).
-         *
-         * Note that this message MUST be called whenever an account that could
-         * have been a member of this group is removed in order to enforce that
-         * a group may not contain other groups as members (if this method is
-         * not called, a user account could be deleted and recreated as a group,
-         * leading to dispatch loops).
-         *
-         * @param	 member	 member to remove from the group
-         */
-        public void removeIfMember(String member) throws Error
-        {
-            members.remove(member);
+    /**
+     * Takes over an account from another node of the cluster, creating it
+     * if this is the first part handed over
+     * @param	 accountName	 name of the account
+     * @param	 group	 whether the account is a group
+     * @param	 contents	 names of the members, or messages in the order they were sent
+     * @throws Error if the account exists here with the other type
+     */
+    void adopt(String accountName, boolean group, List<String> contents) {
+        ClientCallback account = accounts.computeIfAbsent(accountName, name -> {
+            if (group)
+                journal.addGroup(name);
+            else
+                journal.addAccount(name);
+            directory.add(name, group);
+            return group ? new Group(this, name) : track(name, new Mailbox(name));
+        });
+        if (group != account instanceof Group)
+            throw new Error("Account " + accountName + " exists with another type");
+        for (String content : contents) {
+            if (group)
+                ((Group)account).adopt(content);
+            else
+                _deliver(accountName, content, false, Priority.MAILBOX_REPLAY, null);
         }
+        journal.sync();
     }
 
     /**
-     * A ClientCallback that implements message queuing while the client is away.
-     * The server substitutes in an instance of this class as a placeholder
-     * whenever a client disconnects from the server (either voluntarily or
-     * forcibly due to an error condition). Once the client reconnects, the
-     * server invokes the deliverMessages method, instructing the Mailbox to
-     * deliver its messages. If this succeeds, the Mailbox will be removed, and
-     * the client will once again be reachable by its account name. If message
-     * delivery fails, the mailbox remains associated with the account name and
-     * keeps accumulating messages.
+     * Changes the nodes of the cluster, and hands the accounts that now
+     * belong to other nodes over to them. Clients logged in to such an account
+     * are logged out; they log in again through the new node when they renew
+     * their lease. Calling this again with the same nodes retries the
+     * accounts that could not be handed over.
+     * @param	 nodes	 addresses of all nodes of the cluster
+     * @return number of accounts handed over
+     * @throws Error if the server is not part of a cluster or some accounts could not be handed over
      */
-    public class Mailbox implements ClientCallback {
-        /**
-         * The messages queued in this mailbox
-         */
-        private List<String> messages;
-
-        public Mailbox() {
-            messages = new ArrayList<String>();
+    int setNodes(List<String> nodes) {
+        if (cluster == null)
+            throw new Error("Not part of a cluster");
+        cluster.setNodes(nodes);
+        int moved = 0, failed = 0;
+        for (String name : accounts.keySet()) {
+            if (cluster.owns(name))
+                continue;
+            try {
+                if (handOff(name))
+                    moved++;
+            } catch (RemoteException e) {
+                failed++;
+            }
         }
+        journal.sync();
+        if (failed > 0)
+            throw new Error(failed + " accounts could not be handed over");
+        return moved;
+    }
 
-        /**
-         * Queue a message for later delivery
-         */
-        @Override
-        public void receiveMessage(String message) throws RemoteException
-        {
-            messages.add(message);
-        }
+    /**
+     * Hands an account over to the node that now owns it. A logged in
+     * client is logged out first. The members of a group are handed over
+     * at once, the messages in a mailbox batch by batch, each removed only
+     * once the new node has it. The account is removed here once the new
+     * node has everything; messages that arrive after that are passed on by
+     * {@link #_deliver(String, String, boolean, Priority, String)}.
+     * @param	 name	 name of the account
+     * @return True if the account was handed over, false if it was gone already
+     * @throws RemoteException if the new node could not be reached
+     */
+    private boolean handOff(String name) throws RemoteException {
+        String owner = cluster.owner(name);
+        while (true) {
+            ClientCallback account = accounts.get(name);
+            if (account == null)
+                return false;
+            if (account instanceof Outbox) {
+                _logout(name, outbox -> outbox == account);
+            }
+            else if (account instanceof Group) {
+                Group group = (Group)account;
+                List<String> members = group.memberNames();
+                cluster.call(owner, node -> {
+                    node.adopt(name, true, members);
+                    return null;
+                });
+                if (accounts.remove(name, group)) {
+                    journal.handOff(name);
+                    directory.remove(name, true);
+                    group.clear();
+                    return true;
+                }
+            }
+            else if (account instanceof Mailbox) {
+                Mailbox mailbox = (Mailbox)account;
+                cluster.call(owner, node -> {
+                    node.adopt(name, false, new ArrayList<String>());
+                    return null;
+                });
+                mailbox.deliverMessages(new ClientCallback() {
+                    @Override
+                    public void receiveMessage(String message) throws RemoteException {
+                        receiveMessages(List.of(message));
+                    }
 
-        /**
-         * Deliver all queued messages to the specified client
-         *
-         * @param to the client to deliver the messages to
-         */
-        public void deliverMessages(ClientCallback to) throws RemoteException
-        {
-            for (String message : messages)
-                to.receiveMessage(message);
+                    @Override
+                    public void receiveMessages(List<String> messages) throws RemoteException {
+                        cluster.call(owner, node -> {
+                            node.adopt(name, false, messages);
+                            return null;
+                        });
+                    }
+                });
+                if (mailbox.closeIfEmpty() && accounts.computeIfPresent(name, (key, current) ->
+                        current == mailbox ? track(key, null) : current) == null) {
+                    journal.handOff(name);
+                    directory.remove(name, false);
+                    return true;
+                }
+            }
         }
     }
 
-
     /**
-     * Adds a group member to a group
-     * @param	 groupName	 name of group to add the member to
-     * @param	 accountName	 name of account to add to group
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * Finds the node of the cluster an account lives on
+     * @param	 accountName	 name of the account
+     * @return address of the node's registry, or null if the server is not part of a cluster
      */
     @Override
-    public void addGroupMember(String groupName, String accountName) throws RemoteException
-    {
-        if (!(accounts.get(groupName) instanceof Group))
-            throw new Error("Not a group");
-        ((Group)accounts.get(groupName)).addMember(accountName);
+    public String locate(String accountName) {
+        long start = System.nanoTime();
+        try {
+            return cluster == null ? null : cluster.owner(accountName);
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.LOCATE);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.LOCATE, start);
+        }
     }
 
     /**
-     * Checks if an account exists on the server
-     * @param	 accountName	 account to check for
-     * @return True if account exists, false if it does not
+     * Hands the changes to the server's directory of accounts to a read
+     * replica, see {@link ReplicaServer}.
      */
     @Override
-    public Boolean checkForAccount(String accountName){
-        return (accounts.containsKey(accountName));
+    public DirectoryChanges directoryChanges(long source, long position, long waitMillis) {
+        return directory.changesSince(source, position, waitMillis);
     }
 
     /**
-     * Logs an account with the given name into the server and associates it
-     * with a ClientCallback.
-     *
-     * Furthermore, we will attempt to deliver any queued messages if there was
-     * a mailbox associated with this account name.
-     *
-     * @param	 id	 name of account to log in
-     * @param	 client	 reference to object with ClientCallback interface
+     * Brings a client's copy of the directory up to date, and subscribes the
+     * client to the changes that follow, until its session ends.
+     * @param	 id	 name of the client's account, or null to not subscribe
+     * @param	 source	 source of the client's copy, or 0 if it has none
+     * @param	 position	 position in the changes the client's copy is at
+     * @return the changes after the position, or a snapshot
      */
     @Override
-    public void login(String id, ClientCallback client){
-       //on login, key/value pair of client name/reference to client is added to accounts.
-       //This is later used for lookup to send messages to that client
-        ClientCallback old = accounts.put(id, client);
-        if (old instanceof Mailbox) {
-            try {
-                ((Mailbox)old).deliverMessages(client);
-            } catch (RemoteException e) {
-                // If delivery of queued messages failed, put back the mail box
-                // until the client wants to login again.
-                accounts.put(id, old);
-            }
+    public DirectoryChanges syncDirectory(String id, long source, long position) {
+        long start = System.nanoTime();
+        try {
+            DirectoryChanges changes = directory.catchUp(source, position);
+            ClientCallback account = id == null ? null : accounts.get(id);
+            if (account instanceof Outbox)
+                subscribers.put(id, new Subscriber((Outbox)account, changes.position));
+            return changes;
+        } catch (RuntimeException | Error e) {
+            metrics.failed(Metrics.Call.SYNC_DIRECTORY);
+            throw e;
+        } finally {
+            metrics.record(Metrics.Call.SYNC_DIRECTORY, start);
         }
     }
 
     /**
-     * Logs out an account with the given name
-     *
-     * The account name will now refer to a mailbox instead, queueing up messages
-     * until the next time the user reconnects to this server.
-     *
-     * @param	 id	 name of account to log out
+     * Runs every PUSH_MILLIS: drops the subscribers whose session ended, and
+     * hands the others that are behind to the delivery workers to push the
+     * changes to. Changes made in between are pushed together.
      */
-    public void logout(String id){
-        accounts.put(id, new Mailbox());
+    private void pushDirectoryChanges() {
+        long changes = directory.changeCount();
+        for (Map.Entry<String, Subscriber> entry : subscribers.entrySet()) {
+            Subscriber subscriber = entry.getValue();
+            if (accounts.get(entry.getKey()) != subscriber.outbox)
+                subscribers.remove(entry.getKey(), subscriber);
+            else if (subscriber.position != changes && subscriber.pushing.compareAndSet(false, true))
+                deliveryWorkers.execute(() -> push(entry.getKey(), subscriber), Priority.LARGE_BROADCAST);
+        }
     }
 
     /**
-     * Method to add account or group to the HashMap storing account and group names
-     * @param	 accountName	 name of account to add
-     * @param	 x	 ClientCallback object corresponding to account name, which provides a reference so server can send messages
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * Pushes the changes a subscriber has not been sent yet. A subscriber too
+     * far behind is sent null instead, telling it to sync again, and dropped,
+     * as is one that cannot be reached.
+     * @param	 id	 name of the subscriber's account
+     * @param	 subscriber	 the subscriber
      */
-    private void _addAccount(String accountName, ClientCallback x) throws RemoteException {
-        if (accounts.containsKey(accountName)) {
-            throw new Error("Account name already exists");
+    private void push(String id, Subscriber subscriber) {
+        try {
+            while (subscriber.position != directory.changeCount()) {
+                DirectoryChanges changes = directory.changesSince(directory.source(), subscriber.position, 0);
+                if (changes.snapshot) {
+                    subscribers.remove(id, subscriber);
+                    subscriber.outbox.directoryChanged(null);
+                    return;
+                }
+                subscriber.outbox.directoryChanged(changes);
+                subscriber.position = changes.position;
+                metrics.directoryPushes.increment();
+            }
+        } catch (RemoteException | RuntimeException e) {
+            subscribers.remove(id, subscriber);
+            metrics.callbackFailures.increment();
+        } finally {
+            subscriber.pushing.set(false);
         }
-        accounts.put(accountName, x);
     }
 
     /**
-     * Adds an account to the server
-     * @param	 accountName	 name of account to add
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * Frees the segments of the MailStores that hold mostly released
+     * messages, see {@link MailStore}: marks them for evacuation, then moves
+     * the messages left in them, visiting every mailbox, including those
+     * Outboxes are replaying. Runs every MailStore.COMPACT_MILLIS, and only
+     * visits the accounts if a segment is marked, so it costs time
+     * proportional to the number of accounts and queued messages only while
+     * there is space to reclaim. A mailbox that is handed between a Mailbox
+     * and an Outbox meanwhile may be missed; its messages are moved in the
+     * next round, and their segments freed then.
      */
-    @Override
-    public void addAccount(String accountName) throws RemoteException {
-        _addAccount(accountName, new Mailbox());
+    void compactMailStores() {
+        try {
+            if (mailStore.evacuate() + spillStore.evacuate() == 0)
+                return;
+            int moved = 0;
+            for (ClientCallback account : accounts.values()) {
+                Mailbox mailbox = account instanceof Outbox ? ((Outbox)account).replaying()
+                    : account instanceof Mailbox ? (Mailbox)account : null;
+                if (mailbox != null)
+                    moved += mailbox.compact();
+            }
+            movedMessages.add(moved);
+        } catch (RuntimeException | Error e) {
+            // Keep the scheduled compaction running
+            e.printStackTrace(System.out);
+        }
     }
 
     /**
-     * Adds a group to the server
-     * @param	 groupName	 name of group to add
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * @return number of messages dropped from full mailboxes under the DROP_OLDEST policy
      */
-    @Override
-    public void addGroup(String groupName) throws RemoteException {
-        _addAccount(groupName, new Group(this));
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
     }
 
     /**
-     * Method to list accounts or groups, with an optional parameter query which lists a subset of accounts or groups by wildcard
-     * @param	 query	 query with wildcard to return a subset of all groups
-     * @param	 groups	
-     * @return list of accounts or groups
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * @return number of messages rejected because the recipient's mailbox was full
      */
-    private List<String> _listAccounts(String query, Boolean groups) throws RemoteException {
-        // MVP
-        List<String> keys = (new ArrayList<String>(accounts.keySet()));
-        keys = keys.stream()
-            .filter(k ->
-                !(groups ^ (accounts.get(k) instanceof Group)) &&
-                 (query.isEmpty() || k.matches(query)))
-            .collect(Collectors.toList());
-        return keys;
+    public long getRejectedMessages() {
+        return rejectedMessages.sum();
     }
 
     /**
-     * Lists accounts on the server, with an optional parameter query which lists a subset of accounts by wildcard
-     * @param	 query	 query with wildcard to return a subset of all groups
-     * @return list of accounts on server
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * @return number of messages that expired in a mailbox before they could be delivered
      */
-    @Override
-    public List<String> listAccounts(String query) throws RemoteException {
-        return _listAccounts(query, false);
+    public long getExpiredMessages() {
+        return expiredMessages.sum();
     }
 
     /**
-     * Lists groups on the server, with an optional parameter query which lists a subset of accounts by wildcard
-     * @param	 query	 query with wildcard to return a subset of all groups
-     * @return list of groups
-     * @throws RemoteException on RMI failure. Check connection to server.
+     * Takes a snapshot of the server's metrics, see {@link Metrics}. The
+     * numbers of online and offline accounts and of queued messages are
+     * counted by visiting every account, so taking a snapshot costs time
+     * proportional to the number of accounts; it is meant to be polled every
+     * few seconds at most.
+     * @return the snapshot
      */
     @Override
-    public List<String> listGroups(String query) throws RemoteException {
-        return _listAccounts(query, true);
+    public MetricsSnapshot getMetrics() {
+        long start = System.nanoTime();
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        metrics.addTo(values);
+        long now = System.currentTimeMillis();
+        long online = 0, offline = 0, groups = 0, queued = 0, deepest = 0, oldest = now, outboxes = 0;
+        for (ClientCallback account : accounts.values()) {
+            if (account instanceof Outbox) {
+                online++;
+                outboxes += ((Outbox)account).backlog();
+            }
+            else if (account instanceof Mailbox) {
+                Mailbox mailbox = (Mailbox)account;
+                int depth = mailbox.depth();
+                offline++;
+                queued += depth;
+                deepest = Math.max(deepest, depth);
+                if (depth > 0)
+                    oldest = Math.min(oldest, mailbox.headTimestamp());
+            }
+            else if (account instanceof Group)
+                groups++;
+        }
+        values.put("accounts.online", online);
+        values.put("accounts.offline", offline);
+        values.put("groups", groups);
+        values.put("mailbox.queued", queued);
+        values.put("mailbox.maxDepth", deepest);
+        values.put("mailbox.oldestAgeMillis", now - oldest);
+        values.put("outbox.queued", outboxes);
+        values.put("directory.changes", directory.changeCount());
+        values.put("directory.subscribers", (long)subscribers.size());
+        values.put("names.interned", (long)names.size());
+        values.put("admission.buckets", (long)admission.buckets());
+        values.put("replay.running", (long)replays.running());
+        values.put("replay.waiting", (long)replays.waiting());
+        for (Priority priority : Priority.values())
+            values.put("delivery." + priority.label + ".queued", (long)deliveryWorkers.queued(priority));
+        values.put("messages.dropped", droppedMessages.sum());
+        values.put("mailstore.segments", (long)(mailStore.segments() + spillStore.segments()));
+        values.put("mailstore.moved", movedMessages.sum());
+        values.put("messages.rejected", rejectedMessages.sum());
+        values.put("messages.expired", expiredMessages.sum());
+        metrics.record(Metrics.Call.GET_METRICS, start);
+        return new MetricsSnapshot(now, values);
+    }
+
+    @Override
+    public Map<String, Long> getValues() {
+        return jmxSnapshot().values;
+    }
+
+    @Override
+    public long getOnlineAccounts() {
+        return jmxSnapshot().get("accounts.online");
+    }
+
+    @Override
+    public long getOfflineAccounts() {
+        return jmxSnapshot().get("accounts.offline");
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        return jmxSnapshot().get("mailbox.queued");
     }
 
     /**
-     * Deletes an account
-     * @param	 accountName	 name of account to delete
-     * @return 0 if successful and -1 if account does not exist
+     * The snapshot the JMX attributes were last read from. Taken again once it
+     * is older than JMX_CACHE_MILLIS.
      */
-    public int deleteAccount(String accountName){
-        if(accounts.containsKey(accountName)){
-            // First remove the account from all groups
-            for (ClientCallback receiver : accounts.values())
-                if (receiver instanceof Group)
-                    ((Group)receiver).removeIfMember(accountName);
-            accounts.remove(accountName);
-            return 0;
-        }
-        else{
-            return -1;
+    private volatile MetricsSnapshot jmxSnapshot;
+
+    /**
+     * Serves the JMX attributes, which a console reads one at a time every
+     * time it refreshes. Every snapshot visits all accounts, see
+     * {@link #getMetrics()}, so the attributes of one refresh share one.
+     * @return a snapshot of the metrics at most JMX_CACHE_MILLIS old
+     */
+    private MetricsSnapshot jmxSnapshot() {
+        MetricsSnapshot snapshot = jmxSnapshot;
+        if (snapshot != null && System.currentTimeMillis() - snapshot.timestamp < JMX_CACHE_MILLIS)
+            return snapshot;
+        synchronized (this) {
+            // Another reader may have just taken one
+            snapshot = jmxSnapshot;
+            if (snapshot == null || System.currentTimeMillis() - snapshot.timestamp >= JMX_CACHE_MILLIS)
+                jmxSnapshot = snapshot = getMetrics();
+            return snapshot;
         }
     }
 
     /**
-     * Sends a message to a given client or group of clients
-     * @param	 accountName	 name of account or group to send the message to
-     * @param	 message	 message to send
+     * Registers the server's metrics with the platform MBean server, as
+     * chatserver:type=Metrics.
+     * @throws JMException if the metrics could not be registered
      */
-    @Override
-    public void sendMessage(String accountName, String message) {
-        ClientCallback targetClient = accounts.get(accountName);
-        Boolean IsClient = !(targetClient instanceof Group) &&
-            !(targetClient instanceof Mailbox);
-        try {
-            targetClient.receiveMessage(message);
-        }
-        catch (RemoteException e){
-            System.out.println("Server unable to reach a logged in client.");
-            // If this was an actual client, log out that client and deliver
-            // the message to the mailbox.
-            if (IsClient) {
-                logout(accountName);
-                sendMessage(accountName, message);
-            }
-        }
+    public void registerMetrics() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chatserver:type=Metrics"));
     }
 
     /**
@@ -354,14 +2710,102 @@ public class Server implements ChatServer{
         registry.rebind("ChatServer", myStub);
     }
 
+    /**
+     * Starts a registry for this server as a node of a cluster, and
+     * registers a {@link NodeServer} as "ChatNode" for the other nodes and a
+     * {@link ClusterServer} as "ChatServer" for clients.
+     * @param	 self	 address of this node, "host:port", where port is the port of the registry to start
+     * @param	 nodes	 addresses of all nodes of the cluster
+     * @throws RemoteException on RMI failure, e.g. if the port is taken
+     */
+    public void exportNode(String self, List<String> nodes) throws RemoteException {
+        if (System.getSecurityManager() ==  null){
+            System.setSecurityManager(new SecurityManager());
+        }
+        ClusterNode node = new NodeServer(this);
+        cluster = new Cluster(self, nodes, node);
+        registry = LocateRegistry.createRegistry(Cluster.port(self));
+        registry.rebind("ChatNode", UnicastRemoteObject.exportObject(node, 0));
+        myStub = (ChatServer) UnicastRemoteObject.exportObject(new ClusterServer(this, cluster), 0);
+        registry.rebind("ChatServer", myStub);
+    }
+
+    /**
+     * Bounds the time calls to clients over RMI may take, so that a client
+     * that hangs or whose host is gone holds a delivery worker for at most
+     * CALLBACK_TIMEOUT_MILLIS rather than the operating system's TCP
+     * timeouts. Must be called before the first RMI call is made. Settings
+     * given explicitly on the command line take precedence.
+     * @throws IOException if the RMI socket factory was already set
+     */
+    private static void setCallbackTimeouts() throws IOException {
+        String timeout = Long.toString(CALLBACK_TIMEOUT_MILLIS);
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null)
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", timeout);
+        if (System.getProperty("sun.rmi.transport.tcp.handshakeTimeout") == null)
+            System.setProperty("sun.rmi.transport.tcp.handshakeTimeout", timeout);
+        RMISocketFactory.setSocketFactory(new RMISocketFactory() {
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), (int)Math.min(Integer.MAX_VALUE, CALLBACK_TIMEOUT_MILLIS));
+                return socket;
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port) throws IOException {
+                return new ServerSocket(port);
+            }
+        });
+    }
+
     /**
      * Binds server upon startup
      * @param args
      */
     public static void main(String[] args) {
-        Server a = new Server();
         try {
-            a.exportServer();
+            setCallbackTimeouts();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to set timeouts for calls to clients.");
+        }
+        String primary = System.getProperty("chatserver.replica.primary");
+        if (primary != null) {
+            try {
+                int port = Integer.getInteger("chatserver.replica.port", ReplicaServer.DEFAULT_PORT);
+                new ReplicaServer(primary).export(port);
+                System.out.println("Replica of " + primary + " bound on port " + port + ". Ready for use.");
+            }
+            catch (Exception e)
+            {
+                System.out.println("Replica was not bound properly.");
+                e.printStackTrace(System.out);
+            }
+            return;
+        }
+        Server a;
+        String journalDir = System.getProperty("chatserver.journal.dir");
+        try {
+            a = journalDir == null ? new Server() : new Server(Journal.open(new File(journalDir)));
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to recover server state from the journal.");
+            e.printStackTrace(System.out);
+            return;
+        }
+        String clusterNodes = System.getProperty("chatserver.cluster.nodes");
+        if (clusterNodes != null && System.getProperty("chatserver.cluster.self") == null) {
+            System.out.println("Set chatserver.cluster.self to the address of this node among chatserver.cluster.nodes.");
+            return;
+        }
+        try {
+            if (clusterNodes == null)
+                a.exportServer();
+            else
+                a.exportNode(System.getProperty("chatserver.cluster.self"), Arrays.asList(clusterNodes.split(",")));
             System.out.println("Server bound. Ready for use.");
         }
         catch (Exception e)
@@ -369,5 +2813,29 @@ public class Server implements ChatServer{
             System.out.println("Server was not bound properly.");
             e.printStackTrace(System.out);
         }
+        try {
+            a.registerMetrics();
+        }
+        catch (JMException e)
+        {
+            System.out.println("Metrics could not be registered with JMX.");
+        }
+        Integer nioPort = Integer.getInteger("chatserver.nio.port");
+        if (nioPort == null)
+            return;
+        if (clusterNodes != null) {
+            System.out.println("The NIO front end is not available in a cluster.");
+            return;
+        }
+        try {
+            NioServer nio = new NioServer(a, nioPort);
+            nio.start();
+            System.out.println("NIO front end listening on port " + nio.getPort() + ".");
+        }
+        catch (IOException e)
+        {
+            System.out.println("NIO front end could not be started.");
+            e.printStackTrace(System.out);
+        }
     }
 }
@@ -0,0 +1,129 @@
+/**
+ * CS262 Assignment 1
+ * References: Remote Method Invocation and Object Serialization reading from class
+ *             Oracle Tutoral: An Overview of RMI Applications https://docs.oracle.com/javase/tutorial/rmi/overview.html
+ */
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel, used to expire mailbox messages without scanning
+ * all mailboxes.
+ *
+ * The wheel is a ring of buckets, each covering one tick. A task due in d
+ * ticks is put into bucket (current + d) mod size, together with the number
+ * of full turns of the wheel still to wait. A single thread advances the
+ * wheel by one bucket per tick and runs the tasks in that bucket whose turns
+ * are used up, so scheduling is O(1) and each tick only touches the tasks in
+ * one bucket. Tasks run on the wheel's thread and should be short; they may
+ * run up to one tick late.
+ */
+public class TimingWheel {
+    /**
+     * A task waiting in a bucket.
+     */
+    private static class Timeout {
+        final long deadline;
+        final Runnable task;
+        long rounds;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Length of a tick in milliseconds.
+     */
+    private final long tickMillis;
+
+    /**
+     * The buckets. Only accessed by the wheel's thread.
+     */
+    private final List<List<Timeout>> buckets;
+
+    /**
+     * Tasks scheduled since the last tick, to be put into their buckets by the
+     * wheel's thread.
+     */
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * Time the wheel was started, in milliseconds.
+     */
+    private final long start;
+
+    /**
+     * Number of ticks processed so far. Only accessed by the wheel's thread.
+     */
+    private long tick;
+
+    /**
+     * Creates a wheel and starts its thread.
+     *
+     * @param	 tickMillis	 length of a tick in milliseconds
+     * @param	 size	 number of buckets
+     * @param	 name	 name of the wheel's thread
+     */
+    public TimingWheel(long tickMillis, int size, String name) {
+        this.tickMillis = tickMillis;
+        buckets = new ArrayList<List<Timeout>>(size);
+        for (int i = 0; i < size; i++)
+            buckets.add(new ArrayList<Timeout>());
+        start = System.currentTimeMillis();
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task at (or up to one tick after) the given time.
+     *
+     * @param	 deadline	 time to run the task at, in milliseconds since the epoch
+     * @param	 task	 the task
+     */
+    public void schedule(long deadline, Runnable task) {
+        incoming.add(new Timeout(deadline, task));
+    }
+
+    private void run() {
+        while (true) {
+            long next = start + (tick + 1) * tickMillis;
+            long now;
+            while ((now = System.currentTimeMillis()) < next) {
+                try {
+                    Thread.sleep(next - now);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Timeout timeout;
+            while ((timeout = incoming.poll()) != null) {
+                // Ticks the task has to wait, counting from the tick processed next
+                long ticks = Math.max(0, (timeout.deadline - start) / tickMillis - tick);
+                timeout.rounds = ticks / buckets.size();
+                buckets.get((int)((tick + ticks) % buckets.size())).add(timeout);
+            }
+            List<Timeout> bucket = buckets.get((int)(tick % buckets.size()));
+            List<Timeout> due = new ArrayList<Timeout>();
+            bucket.removeIf(t -> {
+                if (t.rounds-- > 0)
+                    return false;
+                due.add(t);
+                return true;
+            });
+            tick++;
+            for (Timeout t : due) {
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+    }
+}
@@ -28,5 +28,13 @@
  * {@link chatserver.Server.Mailbox}, whose receiveMessage method will simply
  * queue any messages sent to it until the user once again reconnects to the
  * server.
+ *
+ * While a user is logged in, their entry is an {@link chatserver.Outbox}
+ * wrapping the client stub. Its receiveMessage method queues the message and
+ * returns immediately; a pool of delivery workers performs the actual RMI
+ * calls, one recipient at a time and in order. A sender is therefore never
+ * blocked by a slow or dead recipient. Should the Outbox overflow, or the
+ * client turn out to be unreachable, the undelivered messages are spilled
+ * into a {@link chatserver.Server.Mailbox}.
  */
 package chatserver;